@@ -0,0 +1,84 @@
+package ann.benchmark;
+
+import ann.InferenceModel;
+import ann.Network;
+import ann.layer.Hidden;
+import ann.layer.activation.Tanh;
+import ann.loss.MeanSquare;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Random;
+
+/**
+ * Throughput of training and inference of a network of depth Hidden+Tanh blocks of width x width, with a MeanSquare loss
+ * One operation is one batch : a training step, or every row of the batch predicted one by one, as served;
+ * samples per second are the score times batch, run with -prof gc for bytes per operation
+ * width        : inputs and outputs of every block
+ * batch        : rows per operation
+ * depth        : Hidden+Tanh blocks
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "--add-modules=jdk.incubator.vector")
+public class NetworkBenchmark {
+    @Param({"64", "256", "1024"})
+    int width;
+
+    @Param({"1", "32", "256"})
+    int batch;
+
+    @Param({"1", "3"})
+    int depth;
+
+    private Network network;
+    private InferenceModel model;
+    private float[][] x;
+    private float[][] y;
+    private float[] output;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(1);
+        network = new Network().setLoss(new MeanSquare());
+        for (int d = 0; d < depth; d++)
+            network.addLayer(new Hidden(width, width).setLearningRate(1e-6f)).addLayer(new Tanh());
+        model = network.toInferenceModel();
+        x = LayerBenchmark.matrix(random, batch, width);
+        y = LayerBenchmark.matrix(random, batch, width);
+        output = new float[width];
+    }
+
+    @Benchmark
+    public void train(Blackhole blackhole) {
+        network.train(x, y);
+        blackhole.consume(network.getLoss());
+    }
+
+    //Network.predict(...), which allocates its result
+    @Benchmark
+    public void networkPredict(Blackhole blackhole) {
+        for(float[] row:x)
+            blackhole.consume(network.predict(row));
+    }
+
+    //InferenceModel.predict(...) into a caller owned buffer
+    @Benchmark
+    public void inferenceModelPredict(Blackhole blackhole) {
+        for(float[] row:x) {
+            model.predict(row, output);
+            blackhole.consume(output);
+        }
+    }
+}
@@ -0,0 +1,467 @@
+package ann;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32C;
+
+/**
+ * Single file binary checkpoint, written and read through NIO channels
+ * Layout, little endian :
+ *  int     MAGIC ("ANNB")
+ *  int     VERSION
+ *  ...     records written by Network and its layers (ints, floats, strings, float32 tensors)
+ *  long    CRC32C of every byte before it
+ * A string is its UTF-8 length (int) followed by its bytes, a tensor is its length (int) followed by its float32 (or 16 bit) values
+ * Since version 2 :
+ *  tensor values start at a multiple of ALIGNMENT bytes in the file (zero padding after the length), so they can be used in place from a mapping
+ *  a record opened by beginRecord() starts with its length in bytes (int), so a reader can skip what it does not use
+ * Files are not limited in size, but a record is (its length is an int) : 2GB, and so is a tensor used in place from a mapping
+ */
+public class Checkpoint {
+    public static final int MAGIC   = 0x424E4E41;//"ANNB" in little endian
+    public static final int VERSION = 2;
+    public static final int ALIGNMENT = 64;
+
+    static int BUFFER_SIZE = 1<<20;
+    static long MAX_CHUNK = 1L<<30;
+
+    /**
+     * @param path  : file
+     * @return      : true if the file starts with MAGIC
+     */
+    public static boolean isCheckpoint(Path path) {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer magic = ByteBuffer.allocate(Integer.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            while (magic.hasRemaining() && channel.read(magic)>=0);
+            return !magic.hasRemaining() && magic.getInt(0)==MAGIC;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Writes through a direct buffer of BUFFER_SIZE bytes, into a temporary file next to path
+     * Record lengths are patched in place once the record ends, so the checksum is computed over the file by commit(),
+     * which then moves the file over path in one step; close() without commit() deletes it and leaves path as it was
+     * path         : destination
+     * temporary    : file written until commit(), path with a .tmp suffix
+     * flushed      : bytes written to the channel so far
+     * recordStart  : file position of the length of the open record, -1 if none
+     */
+    public static class Writer implements AutoCloseable {
+        private final Path path;
+        private final Path temporary;
+        private final FileChannel channel;
+        private final ByteBuffer buffer;
+        private long flushed;
+        private long recordStart = -1;
+        private boolean committed;
+
+        public Writer(Path path) throws IOException {
+            this.path = path;
+            temporary = path.resolveSibling(path.getFileName() + ".tmp");
+            channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            try {
+                buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+                writeInt(MAGIC);
+                writeInt(VERSION);
+            } catch (IOException | RuntimeException | Error e) {
+                try {
+                    close();
+                } catch (IOException suppressed) {
+                    e.addSuppressed(suppressed);
+                }
+                throw e;
+            }
+        }
+
+        private long position() {
+            return flushed + buffer.position();
+        }
+
+        //opens a record, records do not nest
+        public void beginRecord() throws IOException {
+            if(recordStart>=0)
+                throw new IllegalStateException("record already open");
+            recordStart = position();
+            writeInt(0);
+        }
+
+        //writes the length of the open record in front of it
+        public void endRecord() throws IOException {
+            if(recordStart<0)
+                throw new IllegalStateException("no open record");
+            long bytes = position()-recordStart-Integer.BYTES;
+            if(bytes>Integer.MAX_VALUE)
+                throw new IllegalStateException("record of " + bytes + " bytes, records are limited to 2GB");
+            int length = (int) bytes;
+            if(recordStart>=flushed)
+                buffer.putInt((int) (recordStart-flushed), length);
+            else {
+                ByteBuffer value = ByteBuffer.allocate(Integer.BYTES).order(ByteOrder.LITTLE_ENDIAN).putInt(0, length);
+                while (value.hasRemaining())
+                    channel.write(value, recordStart+value.position());
+            }
+            recordStart = -1;
+        }
+
+        public void writeInt(int value) throws IOException {
+            reserve(Integer.BYTES);
+            buffer.putInt(value);
+        }
+
+        public void writeLong(long value) throws IOException {
+            reserve(Long.BYTES);
+            buffer.putLong(value);
+        }
+
+        public void writeFloat(float value) throws IOException {
+            reserve(Float.BYTES);
+            buffer.putFloat(value);
+        }
+
+        public void writeString(String value) throws IOException {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            writeInt(bytes.length);
+            int i = 0;
+            while (i < bytes.length) {
+                reserve(1);
+                int count = Math.min(buffer.remaining(), bytes.length-i);
+                buffer.put(bytes, i, count);
+                i += count;
+            }
+        }
+
+        public void writeFloats(float[] values) throws IOException {
+            writeInt(values.length);
+            align();
+            int i = 0;
+            while (i < values.length) {
+                reserve(Float.BYTES);
+                int count = Math.min(buffer.remaining()/Float.BYTES, values.length-i);
+                buffer.asFloatBuffer().put(values, i, count);
+                buffer.position(buffer.position()+count*Float.BYTES);
+                i += count;
+            }
+        }
+
+        public void writeFloats(FloatBuffer values) throws IOException {
+            writeInt(values.limit());
+            align();
+            int i = 0;
+            while (i < values.limit()) {
+                reserve(Float.BYTES);
+                int count = Math.min(buffer.remaining()/Float.BYTES, values.limit()-i);
+                buffer.asFloatBuffer().put(0, values, i, count);
+                buffer.position(buffer.position()+count*Float.BYTES);
+                i += count;
+            }
+        }
+
+        //16 bit tensor, float16 or bfloat16 values (see Half)
+        public void writeShorts(short[] values) throws IOException {
+            writeInt(values.length);
+            align();
+            int i = 0;
+            while (i < values.length) {
+                reserve(Short.BYTES);
+                int count = Math.min(buffer.remaining()/Short.BYTES, values.length-i);
+                buffer.asShortBuffer().put(values, i, count);
+                buffer.position(buffer.position()+count*Short.BYTES);
+                i += count;
+            }
+        }
+
+        //int8 tensor
+        public void writeBytes(byte[] values) throws IOException {
+            writeInt(values.length);
+            align();
+            int i = 0;
+            while (i < values.length) {
+                reserve(1);
+                int count = Math.min(buffer.remaining(), values.length-i);
+                buffer.put(values, i, count);
+                i += count;
+            }
+        }
+
+        //zero padding up to the next multiple of ALIGNMENT
+        private void align() throws IOException {
+            int padding = (int) (-position() & (ALIGNMENT-1));
+            reserve(padding);
+            for (int i = 0; i < padding; i++)
+                buffer.put((byte) 0);
+        }
+
+        private void reserve(int bytes) throws IOException {
+            if(buffer.remaining()<bytes)
+                flush();
+        }
+
+        private void flush() throws IOException {
+            buffer.flip();
+            flushed += buffer.remaining();
+            while (buffer.hasRemaining())
+                channel.write(buffer);
+            buffer.clear();
+        }
+
+        //appends the checksum and replaces path with the complete file, call it once everything is written
+        public void commit() throws IOException {
+            if(recordStart>=0)
+                throw new IllegalStateException("record still open");
+            flush();
+            CRC32C crc = new CRC32C();
+            for (long position = 0; position < flushed; position += BUFFER_SIZE) {
+                buffer.clear().limit((int) Math.min(BUFFER_SIZE, flushed-position));
+                while (buffer.hasRemaining() && channel.read(buffer, position+buffer.position())>=0);
+                crc.update(buffer.flip());
+            }
+            buffer.clear().putLong(crc.getValue()).flip();
+            while (buffer.hasRemaining())
+                channel.write(buffer, flushed+buffer.position());
+            channel.force(false);
+            channel.close();
+            Files.move(temporary, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            committed = true;
+        }
+
+        //without commit() the temporary file is deleted, what was at path is kept
+        @Override
+        public void close() throws IOException {
+            try {
+                channel.close();
+            } finally {
+                if(!committed)
+                    Files.deleteIfExists(temporary);
+            }
+        }
+    }
+
+    /**
+     * Checks the magic, version and optionally the checksum, then reads records in the order they were written
+     * The file is mapped read only through a window of MAX_CHUNK bytes that moves forward with the reads, so files are not limited to 2GB;
+     * a value or tensor piece never spans two windows, the window is moved to it first
+     * Tensors are either copied to the heap (readFloats) or used in place (mapFloats)
+     * Checking the checksum reads the whole file; Reader(path, false) skips it, so only the pages that are used are touched
+     * channel      : file, open until close(); views returned by mapFloats() stay valid after
+     * version      : format version of the file
+     * end          : file position of the checksum
+     * window       : mapping of the file from windowStart
+     * position     : file position of the next value
+     * recordEnd    : end of the open record, -1 if none
+     */
+    public static class Reader implements AutoCloseable {
+        private final FileChannel channel;
+        private final int version;
+        private final long end;
+        private MappedByteBuffer window;
+        private long windowStart;
+        private long position;
+        private long recordEnd = -1;
+
+        public Reader(Path path) throws IOException {
+            this(path, true);
+        }
+
+        /**
+         * @param path      : file
+         * @param verify    : true to check the checksum of the whole file before reading
+         */
+        public Reader(Path path, boolean verify) throws IOException {
+            channel = FileChannel.open(path, StandardOpenOption.READ);
+            try {
+                long size = channel.size();
+                if(size<2*Integer.BYTES+Long.BYTES)
+                    throw new IOException(path + " is not a checkpoint");
+                end = size-Long.BYTES;
+                if(readInt()!=MAGIC)
+                    throw new IOException(path + " is not a checkpoint");
+                version = readInt();
+                if(version>VERSION)
+                    throw new IOException(path + " has version " + version + ", this build reads up to " + VERSION);
+                if(verify && checksum()!=read(end, Long.BYTES).getLong(0))
+                    throw new IOException(path + " is corrupted (checksum mismatch)");
+            } catch (IOException | RuntimeException | Error e) {
+                try {
+                    channel.close();
+                } catch (IOException suppressed) {
+                    e.addSuppressed(suppressed);
+                }
+                throw e;
+            }
+        }
+
+        //CRC32C of every byte before the checksum, mapped MAX_CHUNK bytes at a time
+        private long checksum() throws IOException {
+            CRC32C crc = new CRC32C();
+            for (long start = 0; start < end; start += MAX_CHUNK)
+                crc.update(channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(MAX_CHUNK, end-start)));
+            return crc.getValue();
+        }
+
+        private ByteBuffer read(long position, int bytes) throws IOException {
+            ByteBuffer buffer = ByteBuffer.allocate(bytes).order(ByteOrder.LITTLE_ENDIAN);
+            while (buffer.hasRemaining() && channel.read(buffer, position+buffer.position())>=0);
+            return buffer;
+        }
+
+        public int getVersion() {
+            return version;
+        }
+
+        //opens a record written between beginRecord() and endRecord(), nothing to do before version 2
+        public void beginRecord() {
+            if(version<2)
+                return;
+            int length = readInt();
+            recordEnd = position+length;
+        }
+
+        //skips what is left of the open record
+        public void endRecord() {
+            if(version<2)
+                return;
+            position = recordEnd;
+            recordEnd = -1;
+        }
+
+        //true while the open record has bytes left, so fields appended to a record can be read when present
+        public boolean hasRemaining() {
+            return version>=2 && recordEnd>=0 && position<recordEnd;
+        }
+
+        public int readInt() {
+            int index = at(Integer.BYTES);
+            return window.getInt(index);
+        }
+
+        public long readLong() {
+            int index = at(Long.BYTES);
+            return window.getLong(index);
+        }
+
+        public float readFloat() {
+            int index = at(Float.BYTES);
+            return window.getFloat(index);
+        }
+
+        public String readString() {
+            byte[] bytes = new byte[readInt()];
+            next(bytes.length).get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        public float[] readFloats() {
+            float[] values = new float[readInt()];
+            align();
+            copy(values);
+            return values;
+        }
+
+        /**
+         * @param values    : destination, its length must match the stored tensor
+         */
+        public void readFloats(float[] values) {
+            int length = readInt();
+            if(length!=values.length)
+                throw new IllegalStateException("tensor of " + length + " values read into " + values.length);
+            align();
+            copy(values);
+        }
+
+        //values from the position, a window at a time
+        private void copy(float[] values) {
+            for (int i = 0; i < values.length; ) {
+                int count = (int) Math.min(values.length-i, MAX_CHUNK/Float.BYTES);
+                next((long) count*Float.BYTES).asFloatBuffer().get(values, i, count);
+                i += count;
+            }
+        }
+
+        public short[] readShorts() {
+            short[] values = new short[readInt()];
+            align();
+            for (int i = 0; i < values.length; ) {
+                int count = (int) Math.min(values.length-i, MAX_CHUNK/Short.BYTES);
+                next((long) count*Short.BYTES).asShortBuffer().get(values, i, count);
+                i += count;
+            }
+            return values;
+        }
+
+        public byte[] readBytes() {
+            byte[] values = new byte[readInt()];
+            align();
+            for (int i = 0; i < values.length; ) {
+                int count = (int) Math.min(values.length-i, MAX_CHUNK);
+                next(count).get(values, i, count);
+                i += count;
+            }
+            return values;
+        }
+
+        /**
+         * Tensor used in place : a read only view of the mapping, nothing is copied to the heap
+         * The pages are shared with every other process mapping the same file
+         * @return      : little endian view of the tensor, valid as long as it is referenced, limited to 2GB
+         */
+        public FloatBuffer mapFloats() {
+            int length = readInt();
+            align();
+            long bytes = (long) length*Float.BYTES;
+            if(bytes>Integer.MAX_VALUE)
+                throw new IllegalStateException("tensor of " + length + " values is larger than one 2GB mapping");
+            return next(bytes).asFloatBuffer();
+        }
+
+        //little endian view of the next bytes, at most 2GB
+        private ByteBuffer next(long bytes) {
+            int index = at(bytes);
+            return window.slice(index, (int) bytes).order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        /**
+         * Moves the position past the next bytes, mapping a new window from the position first when they are not all in the current one
+         * @param bytes     : bytes about to be read, at most 2GB
+         * @return          : index of the first of them in window
+         */
+        private int at(long bytes) {
+            if(position+bytes>end)
+                throw new BufferUnderflowException();
+            if(window==null || position<windowStart || position+bytes>windowStart+window.limit()) {
+                try {
+                    window = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(Math.max(MAX_CHUNK, bytes), end-position));
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+                window.order(ByteOrder.LITTLE_ENDIAN);
+                windowStart = position;
+            }
+            int index = (int) (position-windowStart);
+            position += bytes;
+            return index;
+        }
+
+        //the mappings of mapFloats() stay valid after
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+
+        private void align() {
+            if(version>=2)
+                position += -position & (ALIGNMENT-1);
+        }
+    }
+}
@@ -0,0 +1,331 @@
+package ann;
+
+import ann.data.SparseVector;
+import ann.layer.HiddenActivation;
+import ann.layer.SparseHidden;
+import ann.layer.activation.Softmax;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Fixed, index based execution order of a network, built by Network.compile()
+ * A connection (from,to) takes the input of layer from and is added to the output of layer to;
+ * in backpropagation it takes the gradient at the output of layer to and adds its input gradient to the input of layer from
+ * Intermediate results are passed by reference, nothing is copied or looked up by key while running
+ * layers           : layers in forward order
+ * connections      : connection layers sorted by (from,to), which is also the order their outputs are added
+ * from,to          : [c] ends of connection c
+ * connectionsTo    : [l] connections added to the output of layer l
+ * connectionsFrom  : [l] connections feeding from the input of layer l
+ * steps            : [l] what runs for layer l; a Hidden layer l followed by an activation l+1 with no connection in between
+ *                    runs as one HiddenActivation at l with null at l+1, parameter updates still go through layers
+ * trained          : layers run by forward(...) and backward(...); a trailing Softmax is left out when the loss takes logits,
+ *                    predict(...) always runs every layer
+ * stepNames        : [l] name of steps[l] reported by the profiler, connectionNames : [c] the same for connection c
+ * profiler         : measures every layer call of forward(...), backward(...) and update(...) when not null
+ */
+final class ExecutionPlan {
+    final Layer[] layers;
+    final Layer[] connections;
+    final int[] from;
+    final int[] to;
+    final int[][] connectionsTo;
+    final int[][] connectionsFrom;
+    final Layer[] steps;
+    final int trained;
+    final String[] stepNames;
+    final String[] connectionNames;
+    Profiler profiler;
+
+    //batch buffers
+    private int rows = -1;
+    private float[][][] inputs;//[l] input of layer l
+    private float[][][] gradients;//[l] gradient at the output of layer l
+    private float[][][] sumY;//[l] output of layer l plus its connections
+    private float[][][] sumDy;//[l] input gradient of layer l plus its connections
+
+    /**
+     * @param layers        : layers in forward order
+     * @param connections   : skip connections
+     * @param snapshot      : plan over snapshots of the layers instead of the layers themselves
+     */
+    ExecutionPlan(List<Layer> layers, Map<Network.FromTo,Layer> connections, boolean snapshot){
+        this(layers,connections,snapshot,false);
+    }
+
+    /**
+     * @param layers        : layers in forward order
+     * @param connections   : skip connections
+     * @param snapshot      : plan over snapshots of the layers instead of the layers themselves
+     * @param logits        : true if the loss takes the input of a trailing Softmax (see Loss.takesLogits())
+     */
+    ExecutionPlan(List<Layer> layers, Map<Network.FromTo,Layer> connections, boolean snapshot, boolean logits){
+        int size = layers.size();
+        this.layers = new Layer[size];
+        for (int l = 0; l < size; l++)
+            this.layers[l] = snapshot?layers.get(l).snapshot():layers.get(l);
+
+        List<Network.FromTo> fromTos = new ArrayList<>(connections.keySet());
+        fromTos.sort(Comparator.comparingInt(Network.FromTo::from).thenComparingInt(Network.FromTo::to));
+        this.connections = new Layer[fromTos.size()];
+        from = new int[fromTos.size()];
+        to = new int[fromTos.size()];
+        for (int c = 0; c < fromTos.size(); c++) {
+            Network.FromTo fromTo = fromTos.get(c);
+            if(fromTo.from()<0 || fromTo.from()>fromTo.to() || fromTo.to()>=size)
+                throw new IllegalStateException("connection " + fromTo.from() + "=>" + fromTo.to() + " does not point forward inside the network");
+            Layer layer = connections.get(fromTo);
+            this.connections[c] = snapshot?layer.snapshot():layer;
+            from[c] = fromTo.from();
+            to[c] = fromTo.to();
+        }
+
+        connectionsTo = new int[size][];
+        connectionsFrom = new int[size][];
+        for (int l = 0; l < size; l++) {
+            connectionsTo[l] = indices(to,l);
+            connectionsFrom[l] = indices(from,l);
+        }
+
+        //backward(...) needs an input gradient from every layer but the first, and from every connection
+        for (int l = 0; l < size; l++)
+            if(!this.layers[l].hasInputGradient() && (l>0 || connectionsFrom[l].length>0))
+                throw new IllegalStateException(this.layers[l] + " at " + l + " has no input gradient, it can only be the first layer, with no connection from its input");
+        for (int c = 0; c < from.length; c++)
+            if(!this.connections[c].hasInputGradient())
+                throw new IllegalStateException(this.connections[c] + " has no input gradient, it can not be a connection");
+
+        trained = logits && size>0 && this.layers[size-1] instanceof Softmax && connectionsTo[size-1].length==0?size-1:size;
+
+        steps = this.layers.clone();
+        for (int l = 0; l+1 < size; l++) {
+            if(connectionsTo[l].length>0 || connectionsFrom[l+1].length>0)
+                continue;
+            HiddenActivation fused = HiddenActivation.fuse(this.layers[l],this.layers[l+1]);
+            if(fused!=null) {
+                steps[l] = fused;
+                steps[l+1] = null;
+                l++;
+            }
+        }
+
+        stepNames = new String[size];
+        for (int l = 0; l < size; l++)
+            stepNames[l] = l + ":" + this.layers[l].getName() + (steps[l]==null || steps[l]==this.layers[l]?"":"+" + this.layers[l+1].getName());
+        connectionNames = new String[from.length];
+        for (int c = 0; c < from.length; c++)
+            connectionNames[c] = from[c] + "=>" + to[c] + ":" + this.connections[c].getName();
+    }
+
+    //indices c with ends[c]==l
+    private static int[] indices(int[] ends,int l){
+        int count = 0;
+        for(int end:ends)
+            if(end==l)
+                count++;
+        int[] indices = new int[count];
+        count = 0;
+        for (int c = 0; c < ends.length; c++)
+            if(ends[c]==l)
+                indices[count++] = c;
+        return indices;
+    }
+
+    float[][] forward(float[][] x){
+        prepare(x.length);
+        return forward(x,0);
+    }
+
+    //sparse batch, run by the SparseHidden first layer
+    float[][] forward(SparseVector[] x){
+        prepare(x.length);
+        inputs[0] = null;
+        SparseHidden first = sparseInput();
+        if(profiler==null)
+            return forward(first.output(x),1);
+        LayerEvent event = profiler.begin();
+        long allocated = Profiler.allocated(), start = System.nanoTime();
+        float[][] y = first.output(x);
+        profiler.end(event,stepNames[0],Profiler.FORWARD,x.length,first.getFlops(Profiler.FORWARD,x.length,first.getInputSize()),start,allocated);
+        return forward(y,1);
+    }
+
+    //runs layers first.. on y, the output of layer first-1
+    private float[][] forward(float[][] y,int first){
+        for (int l = first; l < trained; l++) {
+            inputs[l] = y;
+            if(steps[l]!=null)
+                y = output(steps[l],stepNames[l],y);
+            int[] to = connectionsTo[l];
+            for (int c = 0; c < to.length; c++) {
+                sumY[l] = Workspace.matrix(sumY[l],y.length,y[0].length);
+                y = sum(y,output(connections[to[c]],connectionNames[to[c]],inputs[from[to[c]]]),sumY[l]);
+            }
+        }
+        return y;
+    }
+
+    //parameter gradients stay in the layers until update(...)
+    void backward(float[][] dy){
+        prepare(dy.length);
+        for (int l = trained-1; l >= 0; l--) {
+            gradients[l] = dy;
+            if(steps[l]!=null)
+                dy = backward(steps[l],stepNames[l],dy,l);
+            int[] from = connectionsFrom[l];
+            for (int c = 0; c < from.length; c++) {
+                sumDy[l] = Workspace.matrix(sumDy[l],dy.length,dy[0].length);
+                dy = sum(dy,backward(connections[from[c]],connectionNames[from[c]],gradients[to[from[c]]],l),sumDy[l]);
+            }
+        }
+    }
+
+    void update(int batchSize){
+        if(profiler!=null) {
+            //per step, the activation of a fused pair has nothing to update
+            for (int l = 0; l < layers.length; l++)
+                if(steps[l]==null)
+                    layers[l].update(batchSize);
+                else
+                    update(layers[l],stepNames[l],batchSize,inputSize(layers[l],l));
+            for (int c = 0; c < connections.length; c++)
+                update(connections[c],connectionNames[c],batchSize,inputSize(connections[c],from[c]));
+            return;
+        }
+        for(Layer layer:layers)
+            layer.update(batchSize);
+        for(Layer connection:connections)
+            connection.update(batchSize);
+    }
+
+    //layer.output(x), measured by the profiler
+    private float[][] output(Layer layer,String name,float[][] x){
+        if(profiler==null)
+            return layer.output(x);
+        LayerEvent event = profiler.begin();
+        long allocated = Profiler.allocated(), start = System.nanoTime();
+        float[][] y = layer.output(x);
+        profiler.end(event,name,Profiler.FORWARD,x.length,layer.getFlops(Profiler.FORWARD,x.length,x[0].length),start,allocated);
+        return y;
+    }
+
+    //layer.backward(dy) of a layer whose input is the input of layer l, measured by the profiler
+    private float[][] backward(Layer layer,String name,float[][] dy,int l){
+        if(profiler==null)
+            return layer.backward(dy);
+        LayerEvent event = profiler.begin();
+        long allocated = Profiler.allocated(), start = System.nanoTime();
+        float[][] dx = layer.backward(dy);
+        profiler.end(event,name,Profiler.BACKWARD,dy.length,layer.getFlops(Profiler.BACKWARD,dy.length,inputSize(layer,l)),start,allocated);
+        return dx;
+    }
+
+    //layer.update(batchSize), measured by the profiler
+    private void update(Layer layer,String name,int batchSize,int inputSize){
+        LayerEvent event = profiler.begin();
+        long allocated = Profiler.allocated(), start = System.nanoTime();
+        layer.update(batchSize);
+        profiler.end(event,name,Profiler.UPDATE,batchSize,layer.getFlops(Profiler.UPDATE,batchSize,inputSize),start,allocated);
+    }
+
+    //width of the input of layer l in the last batch, the layer's own input size when there is none (sparse input)
+    private int inputSize(Layer layer,int l){
+        return inputs==null || inputs[l]==null?layer.getInputSize():inputs[l][0].length;
+    }
+
+    private void prepare(int rows){
+        if(this.rows==rows)
+            return;
+        inputs = new float[layers.length][][];
+        gradients = new float[layers.length][][];
+        sumY = new float[layers.length][][];
+        sumDy = new float[layers.length][][];
+        this.rows = rows;
+    }
+
+    //y = a + b, y may be a
+    private static float[][] sum(float[][] a,float[][] b,float[][] y){
+        for (int i = 0; i < y.length; i++)
+            for (int j = 0; j < y[0].length; j++)
+                y[i][j] = a[i][j] + b[i][j];
+        return y;
+    }
+
+    /**
+     * Single vector prediction with buffers from vectors(x.length), stateless apart from those buffers
+     * @param x         : input
+     * @param y         : output of vectors.outputSize
+     * @param vectors   : buffers of the calling thread
+     */
+    void predict(float[] x,float[] y,Vectors vectors){
+        predict(x,y,vectors,0);
+        if(layers.length==0)
+            System.arraycopy(x,0,y,0,x.length);
+    }
+
+    //single sparse vector prediction, see predict(float[],float[],Vectors)
+    void predict(SparseVector x,float[] y,Vectors vectors){
+        float[] output = layers.length==1?y:vectors.y[0];
+        sparseInput().predict(x,output);
+        predict(output,y,vectors,1);
+    }
+
+    //runs layers first.. on input, the output of layer first-1
+    private void predict(float[] input,float[] y,Vectors vectors,int first){
+        for (int l = first; l < layers.length; l++) {
+            vectors.inputs[l] = input;
+            float[] output = input;//a fused step already wrote the output of layer l
+            if(steps[l]!=null) {
+                int end = l+1<layers.length && steps[l+1]==null?l+1:l;
+                output = end==layers.length-1?y:vectors.y[end];
+                steps[l].predict(input,output);
+            }
+            int[] to = connectionsTo[l];
+            for (int c = 0; c < to.length; c++) {
+                float[] connection = vectors.connectionY[to[c]];
+                connections[to[c]].predict(vectors.inputs[from[to[c]]],connection);
+                for (int i = 0; i < output.length; i++)
+                    output[i] += connection[i];
+            }
+            input = output;
+        }
+    }
+
+    //first layer, when it can take sparse inputs: a SparseHidden without connections at its input or output
+    SparseHidden sparseInput(){
+        if(trained==0 || !(steps[0] instanceof SparseHidden sparse) || connectionsFrom[0].length>0 || connectionsTo[0].length>0)
+            throw new IllegalStateException("sparse inputs need a SparseHidden first layer without connections");
+        return sparse;
+    }
+
+    Vectors vectors(int inputSize){
+        return new Vectors(inputSize);
+    }
+
+    //single vector buffers for one input size
+    final class Vectors {
+        final int inputSize;
+        final int outputSize;
+        final float[][] y;//[l] output of layer l
+        final float[][] connectionY;//[c] output of connection c
+        final float[][] inputs;//[l] input of layer l
+
+        private Vectors(int inputSize){
+            this.inputSize = inputSize;
+            y = new float[layers.length][];
+            connectionY = new float[connections.length][];
+            inputs = new float[layers.length][];
+            int size = inputSize;
+            for (int l = 0; l < layers.length; l++) {
+                size = layers[l].getOutputSize(size);
+                y[l] = new float[size];
+                for(int c:connectionsTo[l])
+                    connectionY[c] = new float[size];
+            }
+            outputSize = size;
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package ann;
+
+import ann.data.SparseVector;
+
+/**
+ * Immutable, thread safe inference view of a Network
+ * Layers are snapshots taken at construction, so training the network afterwards does not change the model
+ * Every thread gets its own buffers (ThreadLocal), so any number of threads may call predict at once without locks;
+ * predict(float[],float[]) allocates nothing once the calling thread has seen the input size
+ * plan     : execution plan over the layer snapshots
+ * vectors  : buffers of each thread
+ */
+public final class InferenceModel {
+    private final ExecutionPlan plan;
+    private final ThreadLocal<ExecutionPlan.Vectors> vectors;
+
+    public InferenceModel(Network network){
+        plan = new ExecutionPlan(network.layers,network.connections,true);
+        vectors = new ThreadLocal<>();
+    }
+
+    public float[] predict(float... x){
+        float[] y = new float[vectors(x.length).outputSize];
+        predict(x,y);
+        return y;
+    }
+
+    public float[][] predict(float[][] x){
+        float[][] y = new float[x.length][];
+        for (int t = 0; t < x.length; t++)
+            y[t] = predict(x[t]);
+        return y;
+    }
+
+    /**
+     * @param x     : input
+     * @param y     : output, of getOutputSize(x.length)
+     */
+    public void predict(float[] x, float[] y){
+        plan.predict(x,y,vectors(x.length));
+    }
+
+    //sparse input, the first layer must be a SparseHidden
+    public float[] predict(SparseVector x){
+        float[] y = new float[vectors(x.getSize()).outputSize];
+        plan.predict(x,y,vectors(x.getSize()));
+        return y;
+    }
+
+    public int getOutputSize(int inputSize){
+        return vectors(inputSize).outputSize;
+    }
+
+    private ExecutionPlan.Vectors vectors(int inputSize){
+        ExecutionPlan.Vectors v = vectors.get();
+        if(v==null || v.inputSize!=inputSize) {
+            v = plan.vectors(inputSize);
+            vectors.set(v);
+        }
+        return v;
+    }
+}
@@ -4,11 +4,14 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.util.List;
 import java.util.Random;
 import java.util.Scanner;
 
-public class Layer {
-    protected float[][] x;
+public class Layer implements Cloneable {
+    protected float[][] x;//input of the last output(...) call
+    protected float[][] y;//output buffer
+    protected float[][] dx;//input gradient buffer
     protected int inputSize;
     protected int outputSize;
     protected String name;
@@ -32,6 +35,11 @@ public class Layer {
         read(filename);
     }
 
+    public Layer(Checkpoint.Reader reader){
+        name = "LAYER";
+        read(reader);
+    }
+
     public int getInputSize() {
         return inputSize;
     }
@@ -45,21 +53,113 @@ public class Layer {
     }
 
     public float[][] output(float[]...inputs){
-        x = new float[inputs.length][inputSize];
+        x = Workspace.matrix(x, inputs.length, inputSize);
         for (int t = 0; t < x.length; t++) {
             System.arraycopy(inputs[t], 0, x[t], 0, x[t].length);
         }
         return x;
     }
 
+    //backward pass followed by the parameter update
     public float[][] gradient(float[]...gradients){
+        float[][] dx = backward(gradients);
+        update(gradients.length);
+        return dx;
+    }
+
+    //input gradient of the last output(...) call, parameter gradients are kept until update(...)
+    public float[][] backward(float[]...gradients){
         return gradients;
     }
 
+    //apply the parameter gradients of the last backward(...) call, averaged over batchSize rows
+    public void update(int batchSize){
+    }
+
+    /**
+     * Copy of this layer that shares its parameters but has its own forward state, buffers and gradients
+     * Used to run several shards of a batch at the same time
+     * @return      : replica
+     */
+    public Layer replica(){
+        try {
+            Layer replica = (Layer) clone();
+            replica.x = null;
+            replica.y = null;
+            replica.dx = null;
+            return replica;
+        } catch (CloneNotSupportedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Sets the parameter gradients of this layer to the sum of the replicas' gradients, in list order
+     * @param replicas  : replicas created by replica()
+     */
+    public void reduce(List<? extends Layer> replicas){
+    }
+
+    //learning rate of a layer with parameters, layers without any ignore it (see Network.forceLearningRate(...))
+    public Layer setLearningRate(float learningRate){
+        return this;
+    }
+
+    //update rule of a layer with parameters, layers without any ignore it (see Network.setOptimizer(...))
+    public Layer setOptimizer(Optimizer optimizer){
+        return this;
+    }
+
+    //false for an update rule this layer can not train with, Network.setOptimizer(...) then leaves the layer on its own
+    public boolean supports(Optimizer optimizer){
+        return true;
+    }
+
+    //false for a layer whose backward(...) returns no input gradient (sparse or id inputs), only accepted first in a network
+    public boolean hasInputGradient(){
+        return true;
+    }
+
     public float[] predict(float...inputs){
         return inputs;
     }
 
+    /**
+     * Stateless prediction into a caller owned buffer, safe to call from many threads at once
+     * Built-in layers override it without allocating; the default copies the result of predict(float...)
+     * @param inputs    : input vector
+     * @param outputs   : output vector of getOutputSize(inputs.length)
+     */
+    public void predict(float[] inputs,float[] outputs){
+        float[] y = predict(inputs);
+        System.arraycopy(y,0,outputs,0,outputs.length);
+    }
+
+    //output size for an input of inputSize, layers that adapt to their input override it
+    public int getOutputSize(int inputSize){
+        return outputSize;
+    }
+
+    /**
+     * Estimated floating point operations of one call, reported by the profiler (see ann.Profiler)
+     * A multiply-add counts as two; the default is one per output value for forward and backward and none for update
+     * @param phase     : Profiler.FORWARD, Profiler.BACKWARD or Profiler.UPDATE
+     * @param rows      : rows of the batch
+     * @param inputSize : input values per row
+     * @return          : operations
+     */
+    public long getFlops(String phase, int rows, int inputSize){
+        return phase.equals(Profiler.UPDATE)?0:(long) rows*getOutputSize(inputSize);
+    }
+
+    /**
+     * Copy of this layer with its own parameters, used for immutable inference models
+     * @return      : snapshot
+     */
+    public Layer snapshot(){
+        return replica();
+    }
+
     public void save(String filename){
         try {
             FileWriter writer = new FileWriter(filename+".layer");
@@ -88,6 +188,20 @@ public class Layer {
         }
     }
 
+    //record of this layer in a binary checkpoint, subclasses append their parameters after super.save(writer)
+    public void save(Checkpoint.Writer writer) throws IOException {
+        writer.writeInt(inputSize);
+        writer.writeInt(outputSize);
+        writer.writeString(name);
+    }
+
+    //reads the record written by save(Checkpoint.Writer), in the same order
+    public void read(Checkpoint.Reader reader){
+        inputSize = reader.readInt();
+        outputSize = reader.readInt();
+        name = reader.readString();
+    }
+
     @Override
     public String toString() {
         return name + "[" + inputSize + "," + outputSize + "]";
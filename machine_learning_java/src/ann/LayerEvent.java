@@ -0,0 +1,39 @@
+package ann;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight Recorder event of one profiled layer call, committed by Profiler while a recording runs
+ * e.g. java -XX:StartFlightRecording:filename=training.jfr ... then jfr print --events ann.Layer training.jfr
+ * The event duration is the wall time of the call
+ */
+@Name("ann.Layer")
+@Label("Layer Call")
+@Category({"ann", "Training"})
+@Description("Forward, backward or update call of a layer of a Network")
+@StackTrace(false)
+public class LayerEvent extends Event {
+    @Label("Layer")
+    @Description("Index and name of the layer in the execution plan")
+    String layer;
+
+    @Label("Phase")
+    String phase;
+
+    @Label("Rows")
+    int rows;
+
+    @Label("Floating Point Operations")
+    @Description("Estimate from Layer.getFlops(...)")
+    long flops;
+
+    @Label("Allocated")
+    @DataAmount
+    long allocated;
+}
@@ -1,8 +1,9 @@
 package ann;
 
-public class Loss {
+public class Loss implements Cloneable {
     protected String name;
     protected float loss;
+    protected float[][] g;//gradient buffer
 
     public Loss(){
         name = "LOSS";
@@ -17,11 +18,15 @@ public class Loss {
         return loss;
     }
 
+    //true when the loss expects the input of a trailing Softmax layer, which training then skips (see SoftmaxEntropy)
+    public boolean takesLogits(){
+        return false;
+    }
+
     public float[][] gradient(float[][]inputs, float[][]reference){
         loss = 0;
-        float[][] g =new float[inputs.length][];
+        g = Workspace.matrix(g, inputs.length, inputs[0].length);
         for (int t = 0; t < inputs.length; t++) {
-            g[t] = new float[inputs[t].length];
             for (int i = 0; i < inputs[t].length; i++) {
                 g[t][i] = inputs[t][i]-reference[t][i];
                 loss += 0.5*Math.pow(reference[t][i]-inputs[t][i],2);
@@ -31,6 +36,17 @@ public class Loss {
         return g;
     }
 
+    //copy with its own loss value, used by the shards of a parallel training step
+    public Loss replica(){
+        try {
+            Loss replica = (Loss) clone();
+            replica.g = null;
+            return replica;
+        } catch (CloneNotSupportedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
     @Override
     public String toString() {
         return name;
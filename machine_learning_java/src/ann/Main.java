@@ -1,4 +1,6 @@
 package ann;
+import ann.data.ArraySource;
+import ann.data.DataLoader;
 import ann.layer.Hidden;
 import ann.layer.activation.*;
 import ann.layer.hidden.*;
@@ -26,8 +28,9 @@ public class Main {
                 //.forceLearningRate(0.1f)
                 .setLoss(new MeanSquare());
 //
+        DataLoader loader = new DataLoader(new ArraySource(x,y)).setBatchSize(4).setPrefetch(0);
         for (int epoch = 0; epoch < 100000; epoch++) {
-            network.train(x,y);
+            network.fit(loader,1);
             System.out.println("epoch "+(epoch+1)+":"+network.getLoss());
         }
 //
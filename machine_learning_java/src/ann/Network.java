@@ -1,20 +1,42 @@
 package ann;
 
+import ann.data.DataLoader;
+import ann.data.SparseVector;
 import ann.layer.Activation;
+import ann.layer.Attention;
+import ann.layer.Conv1D;
+import ann.layer.Conv2D;
+import ann.layer.Embedding;
+import ann.layer.HalfHidden;
 import ann.layer.Hidden;
+import ann.layer.MappedHidden;
+import ann.layer.Pooling;
+import ann.layer.Recurrent;
+import ann.layer.QuantizedHidden;
+import ann.layer.SparseHidden;
 import ann.layer.activation.Relu;
 import ann.layer.activation.Sigmoid;
 import ann.layer.activation.Softmax;
 import ann.layer.activation.Tanh;
 import ann.layer.hidden.HiddenAdam;
+import ann.layer.pooling.AvgPooling;
+import ann.layer.pooling.MaxPooling;
+import ann.layer.recurrent.GRU;
+import ann.layer.recurrent.LSTM;
 import ann.loss.BinaryEntropy;
 import ann.loss.Entropy;
 import ann.loss.MeanSquare;
+import ann.loss.SoftmaxEntropy;
 
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 public class Network {
     protected List<Layer> layers;
@@ -22,6 +44,19 @@ public class Network {
     protected Map<FromTo,Layer> connections;
     protected float forceLearningRate=-1;
 
+    //data parallel training
+    protected int threads = 1;
+    protected ForkJoinPool pool;
+    protected Network[] replicas;
+    private int revision;//counts the changes that make replicas stale
+
+    //compiled execution plan, rebuilt by compile() after the topology changes
+    protected ExecutionPlan plan;
+    private ExecutionPlan.Vectors vectors;
+
+    //per layer instrumentation of training, null when off
+    protected Profiler profiler;
+
     public Network(){
         layers = new ArrayList<>();
         loss = new Loss();
@@ -36,32 +71,120 @@ public class Network {
 
     public Network addLayer(Layer layer){
         layers.add(layer);
+        changed();
         return this;
     }
 
     public Network addLayers(Layer...layers){
         this.layers.addAll(Arrays.asList(layers));
+        changed();
         return this;
     }
 
     public Network addConnection(int from,int to,Layer layer){
         connections.put(new FromTo(from,to),layer);
+        changed();
+        return this;
+    }
+
+    //topology changed: replicas and plan are stale
+    private void changed(){
+        replicas = null;
+        plan = null;
+        vectors = null;
+        revision++;
+    }
+
+    /**
+     * Changes to the topology, optimizers or learning rates so far
+     * Replicas copy the optimizer and learning rate of each layer, so whoever keeps replicas (Hogwild) rebuilds them when this moves
+     * @return      : revision
+     */
+    public int getRevision() {
+        return revision;
+    }
+
+    /**
+     * Turns the layers and skip connections into a fixed, index based execution plan
+     * train(...) and predict(...) compile on first use, so calling this is only needed to fail early on a bad topology
+     * @return      : this network
+     */
+    public Network compile(){
+        if(plan==null) {
+            plan = new ExecutionPlan(layers,connections,false,loss.takesLogits());
+            plan.profiler = profiler;
+        }
+        return this;
+    }
+
+    /**
+     * Measures every forward, backward and update call of the layers in train(...), see Profiler
+     * @param profiler  : profiler, null to turn it off
+     * @return          : this network
+     */
+    public Network setProfiler(Profiler profiler){
+        this.profiler = profiler;
+        if(plan!=null)
+            plan.profiler = profiler;
+        if(replicas!=null)
+            for(Network replica:replicas)
+                replica.setProfiler(profiler);
+        return this;
+    }
+
+    public Profiler getProfiler() {
+        return profiler;
+    }
+
+    /**
+     * Number of threads used by train(...)
+     * With more than one thread each batch is split into that many contiguous shards,
+     * forward and backward run per shard, and the shard gradients are summed in shard order before one update,
+     * so results are deterministic for a fixed thread count
+     * @param threads   : number of threads (1 trains on the calling thread)
+     * @return          : this network
+     */
+    public Network setThreads(int threads){
+        if(pool!=null)
+            pool.shutdown();
+        this.threads = Math.max(1,threads);
+        pool = this.threads>1?new ForkJoinPool(this.threads):null;
+        replicas = null;
         return this;
     }
 
     public Network forceLearningRate(float learningRate){
         for(Layer layer:layers)
-            if(layer instanceof Hidden)
-                ((Hidden) layer).setLearningRate(learningRate);
+            layer.setLearningRate(learningRate);
         for(Layer layer:connections.values())
-            if(layer instanceof Hidden)
-                ((Hidden) layer).setLearningRate(learningRate);
+            layer.setLearningRate(learningRate);
         forceLearningRate = learningRate;
+        replicas = null;
+        revision++;
+        return this;
+    }
+
+    /**
+     * Gives every layer and connection with parameters its own copy of optimizer, with fresh state (see Layer.setOptimizer(...))
+     * Layers that do not support it (Layer.supports(...), e.g. an Embedding with anything but SGD or Adam) keep their optimizer
+     * @param optimizer : update rule
+     * @return          : this network
+     */
+    public Network setOptimizer(Optimizer optimizer){
+        for(Layer layer:layers)
+            if(layer.supports(optimizer))
+                layer.setOptimizer(optimizer);
+        for(Layer layer:connections.values())
+            if(layer.supports(optimizer))
+                layer.setOptimizer(optimizer);
+        replicas = null;
+        revision++;
         return this;
     }
 
     public Network setLoss(Loss loss){
         this.loss = loss;
+        changed();
         return this;
     }
 
@@ -71,79 +194,195 @@ public class Network {
 
     //training
     public void train(float[][]x,float[][] y_ref){
-        //forward
-        float[][] y = x;
-        Map<Integer,float[][]> fromY = new HashMap<>();
-        for(FromTo fromTo: connections.keySet())
-            if(!fromY.containsKey(fromTo.from()))
-                fromY.put(fromTo.from(), new float[x.length][connections.get(fromTo).getInputSize()]);
-        int l=0;
-        for (Layer layer:layers){
-            if(fromY.containsKey(l))
-                System.arraycopy(y,0,fromY.get(l),0,y.length);
-            y = layer.output(y);
-            List<FromTo> fromTos = FromTo.getAllTo(l,connections.keySet().stream().toList());
-            for(FromTo fromTo:fromTos)
-                y = sum(y,connections.get(fromTo).output(fromY.get(fromTo.from())));
-            l++;
+        if(threads>1 && x.length>=threads) {
+            trainParallel(x, y_ref);
+            return;
         }
+        float[][] y = forward(x);
+        float[][] dy = loss.gradient(y,y_ref);
+        backward(dy);
+        update(x.length);
+    }
 
-        //loss
+    /**
+     * Trains on a batch of sparse inputs, the first layer must be a SparseHidden (see ExecutionPlan.sparseInput())
+     * Always runs on the calling thread
+     * @param x         : inputs
+     * @param y_ref     : reference outputs
+     */
+    public void train(SparseVector[] x,float[][] y_ref){
+        float[][] y = compile().plan.forward(x);
         float[][] dy = loss.gradient(y,y_ref);
+        backward(dy);
+        update(x.length);
+    }
 
-        //backpropagation
-        l = layers.size();
-        Map<Integer,float[][]> toDy = new HashMap<>();
-        for(FromTo fromTo: connections.keySet())
-            if(!toDy.containsKey(fromTo.to()))
-                toDy.put(fromTo.to(), new float[x.length][connections.get(fromTo).getOutputSize()]);
-        Collections.reverse(layers);
-        for (Layer layer:layers){
-            if(toDy.containsKey(l))
-                System.arraycopy(dy,0,toDy.get(l),0,dy.length);
-            dy = layer.gradient(dy);
-            List<FromTo> fromTos = FromTo.getAllFrom(l,connections.keySet().stream().toList());
-            for(FromTo fromTo:fromTos)
-                dy = sum(dy,connections.get(fromTo).gradient(toDy.get(fromTo.to)));
-            l--;
+    /**
+     * Trains on every batch of the loader, epochs times
+     * getLoss() is then the mean loss per row over the last epoch
+     * @param loader    : mini-batches, reads ahead on its own thread if it prefetches
+     * @param epochs    : passes over the data
+     */
+    public void fit(DataLoader loader,int epochs){
+        for (int epoch = 0; epoch < epochs; epoch++) {
+            double sum = 0;
+            long rows = 0;
+            DataLoader.Batch batch;
+            while ((batch = loader.next())!=null) {
+                train(batch.getX(), batch.getY());
+                sum += (double) loss.loss*batch.size();
+                rows += batch.size();
+            }
+            if(rows>0)
+                loss.loss = (float) (sum/rows);
         }
-        Collections.reverse(layers);
     }
-    private static float[][] sum(float[][]...ys){
-        float[][] y = new float[ys[0].length][ys[0][0].length];
-        for (int i = 0; i < y.length; i++)
-            for (int j = 0; j < y[0].length; j++)
-                for (float[][] floats : ys) y[i][j] += floats[i][j];
-        return y;
+
+    private void trainParallel(float[][]x,float[][] y_ref){
+        if(replicas==null || replicas.length!=threads) {
+            replicas = new Network[threads];
+            for (int s = 0; s < threads; s++)
+                replicas[s] = replica();
+        }
+
+        //forward and backward per shard
+        List<Callable<Void>> shards = new ArrayList<>(threads);
+        for (int s = 0; s < threads; s++) {
+            Network replica = replicas[s];
+            int from = s*x.length/threads;
+            int to = (s+1)*x.length/threads;
+            shards.add(() -> {
+                float[][] y = replica.forward(Arrays.copyOfRange(x,from,to));
+                float[][] dy = replica.loss.gradient(y,Arrays.copyOfRange(y_ref,from,to));
+                replica.backward(dy);
+                return null;
+            });
+        }
+        try {
+            for(Future<Void> future:pool.invokeAll(shards))
+                future.get();
+        } catch (InterruptedException | ExecutionException e) {
+            throw new RuntimeException(e);
+        }
+
+        //reduce in shard order, then one update for the whole batch
+        for (int l = 0; l < layers.size(); l++) {
+            List<Layer> shardLayers = new ArrayList<>(threads);
+            for(Network replica:replicas)
+                shardLayers.add(replica.layers.get(l));
+            layers.get(l).reduce(shardLayers);
+        }
+        compile();
+        for (int c = 0; c < plan.connections.length; c++) {
+            List<Layer> shardLayers = new ArrayList<>(threads);
+            for(Network replica:replicas)
+                shardLayers.add(replica.plan.connections[c]);
+            plan.connections[c].reduce(shardLayers);
+        }
+        float sum = 0;
+        for (int s = 0; s < threads; s++)
+            sum += replicas[s].loss.loss*((s+1)*x.length/threads-s*x.length/threads);
+        loss.loss = sum/x.length;
+        update(x.length);
+    }
+
+    /**
+     * Network sharing this network's parameters, with its own layer state, gradients and loss
+     * Training a replica updates the parameters of this network
+     * @return      : replica
+     */
+    public Network replica(){
+        Network replica = new Network();
+        for(Layer layer:layers)
+            replica.layers.add(layer.replica());
+        for(FromTo fromTo: connections.keySet())
+            replica.connections.put(fromTo,connections.get(fromTo).replica());
+        replica.loss = loss.replica();
+        replica.profiler = profiler;
+        return replica;
+    }
+
+    protected float[][] forward(float[][]x){
+        return compile().plan.forward(x);
+    }
+
+    //backpropagation, parameter gradients stay in the layers until update(...)
+    protected void backward(float[][] dy){
+        compile().plan.backward(dy);
+    }
+
+    protected void update(int batchSize){
+        compile().plan.update(batchSize);
+    }
+
+    //immutable, thread safe copy of this network for serving predictions
+    public InferenceModel toInferenceModel(){
+        return new InferenceModel(this);
     }
 
     //predict
     public float[] predict(float...x){
-        float[] y = x;
-        Map<Integer,float[]> fromY = new HashMap<>();
-        for(FromTo fromTo: connections.keySet())
-            if(!fromY.containsKey(fromTo.from()))
-                fromY.put(fromTo.from(), new float[connections.get(fromTo).getInputSize()]);
-        int l=0;
-        for (Layer layer:layers){
-            if(fromY.containsKey(l))
-                System.arraycopy(y,0,fromY.get(l),0,y.length);
-            y = layer.predict(y);
-            List<FromTo> fromTos = FromTo.getAllTo(l,connections.keySet().stream().toList());
-            for(FromTo fromTo:fromTos)
-                y = sum(y,connections.get(fromTo).predict(fromY.get(fromTo.from())));
-            l++;
-        }
+        compile();
+        if(vectors==null || vectors.inputSize!=x.length)
+            vectors = plan.vectors(x.length);
+        float[] y = new float[vectors.outputSize];
+        plan.predict(x,y,vectors);
         return y;
     }
-    private static float[] sum(float[]...ys){
-        float[] y = new float[ys[0].length];
-        for (int i = 0; i < y.length; i++)
-            for (float[] floats : ys) y[i] += floats[i];
+
+    public float[] predict(SparseVector x){
+        compile();
+        if(vectors==null || vectors.inputSize!=x.getSize())
+            vectors = plan.vectors(x.getSize());
+        float[] y = new float[vectors.outputSize];
+        plan.predict(x,y,vectors);
         return y;
     }
 
+    /**
+     * Saves the network as a single binary checkpoint, filename.ann (see Checkpoint)
+     * The file is replaced only once it is complete, a save that fails leaves the previous checkpoint in place
+     * Layout after the checkpoint header :
+     *  int layers, then for each layer its name and its record (Layer.save(Checkpoint.Writer), in a Checkpoint record)
+     *  int connections, then for each connection in (from,to) order from, to, its name and its record
+     *  loss name, forced learning rate (-1 if none)
+     * @param filename  : file name without extension
+     */
     public void save(String filename){
+        try (Checkpoint.Writer writer = new Checkpoint.Writer(Path.of(filename+".ann"))) {
+            writer.writeInt(layers.size());
+            for(Layer layer:layers) {
+                writer.writeString(layer.getName());
+                writer.beginRecord();
+                layer.save(writer);
+                writer.endRecord();
+            }
+            List<FromTo> fromTos = new ArrayList<>(connections.keySet());
+            fromTos.sort(Comparator.comparingInt(FromTo::from).thenComparingInt(FromTo::to));
+            writer.writeInt(fromTos.size());
+            for(FromTo fromTo:fromTos) {
+                Layer layer = connections.get(fromTo);
+                writer.writeInt(fromTo.from);
+                writer.writeInt(fromTo.to);
+                writer.writeString(layer.getName());
+                writer.beginRecord();
+                layer.save(writer);
+                writer.endRecord();
+            }
+            writer.writeString(loss.getName());
+            writer.writeFloat(forceLearningRate);
+            writer.commit();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Saves the network in the text format : filename.ann index plus one filename_i.layer file per layer and connection
+     * Kept for migration and inspection, read(...) reads both formats
+     * @param filename  : file name without extension
+     */
+    public void saveText(String filename){
         try {
             FileWriter writer = new FileWriter(filename+".ann");
             writer.write(layers.size()+"\n");
@@ -168,7 +407,17 @@ public class Network {
         }
     }
 
+    //reads filename.ann written by save(...) or saveText(...)
     public void read(String filename){
+        Path path = Path.of(filename+".ann");
+        if(Checkpoint.isCheckpoint(path)) {
+            try (Checkpoint.Reader reader = new Checkpoint.Reader(path)) {
+                read(reader,false);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            return;
+        }
         try {
             Scanner reader = new Scanner(new File(filename+".ann"));
             int size = reader.nextInt();
@@ -187,6 +436,7 @@ public class Network {
                 }
             }
             connections = new HashMap<>();
+            changed();
             if(reader.hasNextInt()){
                 size = reader.nextInt();
                 for (int i = 0; i < size; i++){
@@ -211,6 +461,7 @@ public class Network {
                     case "MEAN_SQUARE" -> loss = new MeanSquare();
                     case "BINARY_CROSS_ENTROPY" -> loss = new BinaryEntropy();
                     case "CATEGORICAL_CROSS_ENTROPY" -> loss = new Entropy();
+                    case "SOFTMAX_CROSS_ENTROPY" -> loss = new SoftmaxEntropy();
             }
             if(reader.hasNextFloat()){
                 float learningRate = reader.nextFloat();
@@ -223,6 +474,118 @@ public class Network {
         }
     }
 
+    /**
+     * Reads a binary checkpoint with its dense layers mapped read only from the file instead of copied to the heap (see MappedHidden)
+     * Loading costs an mmap, and the pages are shared by every JVM mapping the same file
+     * The checksum is not checked, that would read the whole file; map(filename, true) checks it
+     * The network can predict (or be turned into an InferenceModel) but not train
+     * @param filename  : file name without extension, written by save(...)
+     */
+    public void map(String filename){
+        map(filename,false);
+    }
+
+    /**
+     * @param filename  : file name without extension, written by save(...)
+     * @param verify    : true to check the checksum first, reading the whole file
+     */
+    public void map(String filename,boolean verify){
+        try (Checkpoint.Reader reader = new Checkpoint.Reader(Path.of(filename+".ann"),verify)) {
+            if(reader.getVersion()<2)
+                throw new IOException(filename + ".ann has version " + reader.getVersion() + ", read and save it again to map it");
+            read(reader,true);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Moves the parameters of every Hidden layer and connection to direct memory outside the heap (see MappedHidden)
+     * The network can predict but not train afterwards
+     * @return          : this
+     */
+    public Network moveOffHeap(){
+        layers.replaceAll(layer -> layer instanceof Hidden hidden?new MappedHidden(hidden):layer);
+        connections.replaceAll((fromTo,layer) -> layer instanceof Hidden hidden?new MappedHidden(hidden):layer);
+        changed();
+        return this;
+    }
+
+    /**
+     * Converts the weights of every Hidden layer and connection to 16 bit storage for inference (see HalfHidden)
+     * Halves the weight memory and the bytes read per predict; sums stay float
+     * The network can predict but not train afterwards
+     * @param bfloat16  : true for bfloat16, false for float16
+     * @return          : this
+     */
+    public Network toHalfPrecision(boolean bfloat16){
+        layers.replaceAll(layer -> layer instanceof Hidden hidden?new HalfHidden(hidden,bfloat16):layer);
+        connections.replaceAll((fromTo,layer) -> layer instanceof Hidden hidden?new HalfHidden(hidden,bfloat16):layer);
+        changed();
+        return this;
+    }
+
+    private void read(Checkpoint.Reader reader,boolean mapped){
+        int size = reader.readInt();
+        layers = new ArrayList<>(size);
+        for (int i = 0; i < size; i++)
+            layers.add(layer(reader.readString(),reader,mapped));
+        size = reader.readInt();
+        connections = new HashMap<>();
+        for (int i = 0; i < size; i++) {
+            int from = reader.readInt();
+            int to = reader.readInt();
+            connections.put(new FromTo(from,to),layer(reader.readString(),reader,mapped));
+        }
+        String lossName = reader.readString();
+        switch (lossName.trim().toUpperCase()) {
+            case "LOSS" -> loss = new Loss();
+                case "MEAN_SQUARE" -> loss = new MeanSquare();
+                case "BINARY_CROSS_ENTROPY" -> loss = new BinaryEntropy();
+                case "CATEGORICAL_CROSS_ENTROPY" -> loss = new Entropy();
+                case "SOFTMAX_CROSS_ENTROPY" -> loss = new SoftmaxEntropy();
+            default -> throw new IllegalStateException("unknown loss " + lossName);
+        }
+        float learningRate = reader.readFloat();
+        forceLearningRate = -1;
+        changed();
+        if(learningRate>0)
+            forceLearningRate(learningRate);
+    }
+
+    //layer of a binary checkpoint from its name and record, dense layers are mapped in place if mapped
+    private static Layer layer(String name, Checkpoint.Reader reader, boolean mapped){
+        reader.beginRecord();
+        Layer layer = switch (name.trim().toUpperCase()) {
+            case "LAYER" -> new Layer(reader);
+                case "HIDDEN" -> mapped?new MappedHidden(reader):new Hidden(reader);
+                    case "HIDDEN_ADAM" -> mapped?new MappedHidden(reader):new HiddenAdam(reader);
+                    case "HIDDEN_FP16", "HIDDEN_BF16" -> new HalfHidden(reader);
+                    case "HIDDEN_INT8" -> new QuantizedHidden(reader);
+                    case "HIDDEN_SPARSE" -> new SparseHidden(reader);
+            case "EMBEDDING" -> new Embedding(reader);
+            case "CONV2D" -> new Conv2D(reader);
+                case "CONV1D" -> new Conv1D(reader);
+            case "POOLING" -> new Pooling(reader);
+                case "AVG_POOLING" -> new AvgPooling(reader);
+                case "MAX_POOLING" -> new MaxPooling(reader);
+            case "RECURRENT" -> new Recurrent(reader);
+                case "LSTM" -> new LSTM(reader);
+                case "GRU" -> new GRU(reader);
+            case "ATTENTION" -> new Attention(reader);
+            case "ACTIVATION" -> new Activation();
+                case "RELU" -> new Relu();
+                case "SIGMOID" -> new Sigmoid();
+                case "SOFTMAX" -> new Softmax();
+                case "TANH" -> new Tanh();
+            default -> throw new IllegalStateException("unknown layer " + name);
+        };
+        if(layer instanceof Activation)
+            layer.read(reader);
+        reader.endRecord();
+        return layer;
+    }
+
     @Override
     public String toString() {
         StringBuilder builder = new StringBuilder();
@@ -237,21 +600,13 @@ public class Network {
         return builder.toString();
     }
 
-    private static record FromTo(int from,int to){
+    static record FromTo(int from,int to){
         @Override
         public boolean equals(Object obj) {
             FromTo fromTo = (FromTo) obj;
             return from==fromTo.from && to==fromTo.to;
         }
 
-        public static List<FromTo> getAllFrom(int from,List<FromTo> fromTos){
-            return fromTos.stream().filter(fromTo -> fromTo.from==from).toList();
-        }
-
-        public static List<FromTo> getAllTo(int to,List<FromTo> fromTos){
-            return fromTos.stream().filter(fromTo -> fromTo.to==to).toList();
-        }
-
         public static List<Integer> getAllFromInAscendingOrder(List<FromTo> fromTos){
             List<Integer> froms = new ArrayList<>();
             fromTos.forEach(fromTo -> {if(!froms.contains(fromTo.from))froms.add(fromTo.from);});
@@ -0,0 +1,153 @@
+package ann;
+
+import ann.optimizer.Adam;
+import ann.optimizer.AdamW;
+import ann.optimizer.Momentum;
+import ann.optimizer.Nesterov;
+import ann.optimizer.QuantizedAdam;
+import ann.optimizer.RmsProp;
+
+import java.io.IOException;
+
+/**
+ * Update rule of the parameters of a layer, plain SGD here, see ann.optimizer for the others
+ * A layer owns one optimizer and hands it flat parameter and gradient buffers, one slot per buffer (Hidden : 0 weights, 1 biases)
+ * step() is called once per update before the slots, so what only depends on the step count (bias corrections) is computed once;
+ * update(...) is then one fused pass over each buffer
+ * steps        : number of step() calls
+ * state        : state[slot][k] buffers of the length of the slot's parameters (moments), allocated by allocate(...)
+ */
+public class Optimizer implements Cloneable {
+    protected String name;
+    protected long steps;
+    protected float[][][] state;
+
+    public Optimizer(){
+        name = "SGD";
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getSteps() {
+        return steps;
+    }
+
+    //restores the step count of saved state
+    public void setSteps(long steps) {
+        this.steps = steps;
+    }
+
+    //buffer of the state of a slot, null before allocate(...)
+    public float[] getState(int slot, int buffer) {
+        return state==null?null:state[slot][buffer];
+    }
+
+    //state buffers per parameter buffer
+    protected int stateBuffers(){
+        return 0;
+    }
+
+    /**
+     * Zeroed state for parameter buffers of the given lengths, the step count restarts
+     * @param lengths   : length of the parameter buffer of each slot
+     */
+    public void allocate(int... lengths){
+        steps = 0;
+        state = new float[lengths.length][stateBuffers()][];
+        for (int slot = 0; slot < lengths.length; slot++)
+            for (int s = 0; s < stateBuffers(); s++)
+                state[slot][s] = new float[lengths[slot]];
+    }
+
+    //estimated floating point operations per parameter of update(...), for profiling (see ann.Profiler)
+    public int getFlops(){
+        //scale, multiply, subtract
+        return 3;
+    }
+
+    //once per update, before update(...) of every slot
+    public void step(){
+        steps++;
+    }
+
+    /**
+     * @param slot          : index of the parameter buffer
+     * @param p             : parameters, updated in place
+     * @param g             : gradients summed over the batch
+     * @param learningRate  : learning rate of the layer
+     * @param batchSize     : rows in the batch
+     */
+    public void update(int slot, float[] p, float[] g, float learningRate, int batchSize){
+        //p_k -= learning * g_k
+        for (int k = 0; k < p.length; k++)
+            p[k] -= learningRate * g[k]/ batchSize;
+    }
+
+    //same settings and no state, for another layer
+    public Optimizer copy(){
+        try {
+            Optimizer copy = (Optimizer) clone();
+            copy.steps = 0;
+            copy.state = null;
+            return copy;
+        } catch (CloneNotSupportedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    //shares the state and keeps its own step count, for the replicas of a layer updated asynchronously (Hogwild)
+    public Optimizer replica(){
+        try {
+            return (Optimizer) clone();
+        } catch (CloneNotSupportedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    //settings, step count, then every state buffer, so training resumes where it stopped
+    public void save(Checkpoint.Writer writer) throws IOException {
+        saveSettings(writer);
+        writer.writeLong(steps);
+        writer.writeInt(state==null?0:state.length);
+        if(state!=null)
+            for(float[][] slot:state)
+                for(float[] buffer:slot)
+                    writer.writeFloats(buffer);
+    }
+
+    public void read(Checkpoint.Reader reader){
+        readSettings(reader);
+        setSteps(reader.readLong());
+        state = new float[reader.readInt()][stateBuffers()][];
+        for(float[][] slot:state)
+            for (int s = 0; s < slot.length; s++)
+                slot[s] = reader.readFloats();
+    }
+
+    protected void saveSettings(Checkpoint.Writer writer) throws IOException {
+    }
+
+    protected void readSettings(Checkpoint.Reader reader){
+    }
+
+    //optimizer with default settings from its saved name
+    public static Optimizer of(String name){
+        return switch (name.trim().toUpperCase()) {
+            case "SGD" -> new Optimizer();
+            case "MOMENTUM" -> new Momentum();
+            case "NESTEROV" -> new Nesterov();
+            case "RMSPROP" -> new RmsProp();
+            case "ADAM" -> new Adam();
+            case "ADAMW" -> new AdamW();
+            case "ADAM_INT8" -> new QuantizedAdam();
+            default -> throw new IllegalStateException("unknown optimizer " + name);
+        };
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
@@ -0,0 +1,124 @@
+package ann;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Per layer instrumentation of training, enabled with Network.setProfiler(...), off (null) by default
+ * Every forward, backward and update call of the execution plan is measured: wall time, estimated floating point operations
+ * (Layer.getFlops(...)) and bytes allocated by the calling thread; each call goes to the listeners and,
+ * while a Flight Recorder recording runs, is committed as a LayerEvent
+ * When disabled the plan only tests for a null profiler around each call, nothing is timed or allocated
+ * Calls are named by execution plan step: "l:NAME" for layer l, "l:HIDDEN+TANH" for a fused pair, "from=>to:NAME" for a connection
+ * With Network.setThreads(...) the shards run their calls on their own threads, so listeners must be thread safe
+ * listeners    : receivers of every call, in order
+ */
+public class Profiler {
+    public static final String FORWARD  = "forward";
+    public static final String BACKWARD = "backward";
+    public static final String UPDATE   = "update";
+
+    private static final com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private final Listener[] listeners;
+
+    /**
+     * @param listeners     : receivers of every call, none to only commit Flight Recorder events
+     */
+    public Profiler(Listener... listeners) {
+        this.listeners = listeners.clone();
+    }
+
+    public interface Listener {
+        /**
+         * One measured call
+         * @param layer     : plan step that ran, see Profiler
+         * @param phase     : FORWARD, BACKWARD or UPDATE
+         * @param rows      : rows of the batch
+         * @param nanos     : wall time
+         * @param flops     : estimated floating point operations
+         * @param bytes     : bytes allocated by the calling thread during the call
+         */
+        void record(String layer, String phase, int rows, long nanos, long flops, long bytes);
+    }
+
+    //bytes allocated by the calling thread so far
+    static long allocated(){
+        return threads.getCurrentThreadAllocatedBytes();
+    }
+
+    //event of a call about to start
+    LayerEvent begin(){
+        LayerEvent event = new LayerEvent();
+        event.begin();
+        return event;
+    }
+
+    /**
+     * Ends a call started with begin(), allocated() and System.nanoTime(), in that order
+     * @param event     : event returned by begin()
+     * @param layer     : plan step that ran
+     * @param phase     : FORWARD, BACKWARD or UPDATE
+     * @param rows      : rows of the batch
+     * @param flops     : estimated floating point operations
+     * @param start     : System.nanoTime() before the call
+     * @param allocated : allocated() before the call
+     */
+    void end(LayerEvent event, String layer, String phase, int rows, long flops, long start, long allocated){
+        long nanos = System.nanoTime()-start;
+        long bytes = allocated()-allocated;
+        event.end();
+        if(event.shouldCommit()) {
+            event.layer = layer;
+            event.phase = phase;
+            event.rows = rows;
+            event.flops = flops;
+            event.allocated = bytes;
+            event.commit();
+        }
+        for(Listener listener:listeners)
+            listener.record(layer, phase, rows, nanos, flops, bytes);
+    }
+
+    /**
+     * Listener summing the calls of each layer and phase, printed as a table by toString()
+     * totals       : [layer][phase] calls, nanoseconds, floating point operations and bytes
+     */
+    public static class Summary implements Listener {
+        private final Map<String,Map<String,long[]>> totals = new LinkedHashMap<>();
+
+        @Override
+        public synchronized void record(String layer, String phase, int rows, long nanos, long flops, long bytes) {
+            long[] total = totals.computeIfAbsent(layer, key -> new LinkedHashMap<>()).computeIfAbsent(phase, key -> new long[4]);
+            total[0]++;
+            total[1] += nanos;
+            total[2] += flops;
+            total[3] += bytes;
+        }
+
+        public synchronized void reset() {
+            totals.clear();
+        }
+
+        //wall time of every call of phase of layer, 0 if there was none
+        public synchronized long getNanos(String layer, String phase) {
+            long[] total = totals.getOrDefault(layer, Map.of()).get(phase);
+            return total==null?0:total[1];
+        }
+
+        //one line per layer and phase, in the order they first ran, with achieved GFLOP/s
+        @Override
+        public synchronized String toString() {
+            StringBuilder table = new StringBuilder(String.format("%-24s %-8s %8s %12s %12s %10s %14s%n",
+                    "layer", "phase", "calls", "ms", "gflop", "gflop/s", "bytes"));
+            for(Map.Entry<String,Map<String,long[]>> layer:totals.entrySet())
+                for(Map.Entry<String,long[]> phase:layer.getValue().entrySet()) {
+                    long[] total = phase.getValue();
+                    table.append(String.format("%-24s %-8s %8d %12.3f %12.3f %10.2f %14d%n", layer.getKey(), phase.getKey(),
+                            total[0], total[1]/1e6, total[2]/1e9, total[1]==0?0:(double) total[2]/total[1], total[3]));
+                }
+            return table.toString();
+        }
+    }
+}
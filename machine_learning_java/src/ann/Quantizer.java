@@ -0,0 +1,77 @@
+package ann;
+
+import ann.layer.Hidden;
+import ann.layer.QuantizedHidden;
+
+/**
+ * Post training int8 quantization of a trained Network
+ * calibrate(...) runs the float network over sample inputs and records the largest absolute input of every Hidden layer and connection,
+ * quantize() then builds a new network where each of them is a QuantizedHidden with that input range and other layers are snapshots
+ * The float network is left unchanged and stays the reference for accuracy checks
+ * plan             : execution plan over snapshots of the float network
+ * layerRanges      : [l] largest absolute input seen by layer l
+ * connectionRanges : [c] largest absolute input seen by connection c of the plan
+ * samples          : number of calibration inputs seen
+ */
+public class Quantizer {
+    private final Network network;
+    private final ExecutionPlan plan;
+    private final float[] layerRanges;
+    private final float[] connectionRanges;
+    private int samples;
+
+    public Quantizer(Network network){
+        this.network = network;
+        plan = new ExecutionPlan(network.layers,network.connections,true);
+        layerRanges = new float[plan.layers.length];
+        connectionRanges = new float[plan.connections.length];
+    }
+
+    /**
+     * @param x     : sample inputs, representative of what the quantized network will see; may be called several times
+     * @return      : this
+     */
+    public Quantizer calibrate(float[]... x){
+        ExecutionPlan.Vectors vectors = null;
+        float[] y = null;
+        for(float[] row:x){
+            if(vectors==null || vectors.inputSize!=row.length) {
+                vectors = plan.vectors(row.length);
+                y = new float[vectors.outputSize];
+            }
+            plan.predict(row,y,vectors);
+            for (int l = 0; l < plan.layers.length; l++)
+                layerRanges[l] = Math.max(layerRanges[l],range(vectors.inputs[l]));
+            for (int c = 0; c < plan.connections.length; c++)
+                connectionRanges[c] = Math.max(connectionRanges[c],range(vectors.inputs[plan.from[c]]));
+        }
+        samples += x.length;
+        return this;
+    }
+
+    /**
+     * @return      : new network with int8 Hidden layers and connections, for inference only
+     */
+    public Network quantize(){
+        if(samples==0)
+            throw new IllegalStateException("calibrate(...) before quantize()");
+        Network quantized = new Network();
+        for (int l = 0; l < plan.layers.length; l++)
+            quantized.addLayer(quantize(plan.layers[l],layerRanges[l]));
+        for (int c = 0; c < plan.connections.length; c++)
+            quantized.addConnection(plan.from[c],plan.to[c],quantize(plan.connections[c],connectionRanges[c]));
+        return quantized.setLoss(network.loss.replica());
+    }
+
+    private static Layer quantize(Layer layer,float range){
+        return layer instanceof Hidden hidden?new QuantizedHidden(hidden,range):layer;
+    }
+
+    //max_i(|x_i|)
+    private static float range(float[] x){
+        float max = 0;
+        for(float value:x)
+            max = Math.max(max,Math.abs(value));
+        return max;
+    }
+}
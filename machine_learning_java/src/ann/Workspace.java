@@ -0,0 +1,44 @@
+package ann;
+
+/**
+ * Reusable buffers for the training step
+ * Layers and losses keep their batch buffers and pass them through here every step;
+ * a buffer is only reallocated when its shape changes, so training at a fixed batch size allocates nothing after the first step
+ * Buffers returned by output(...), backward(...) and Loss.gradient(...) are therefore only valid until the next call on the same object
+ */
+public class Workspace {
+
+    /**
+     * @param buffer    : current buffer (may be null)
+     * @param rows      : batch size
+     * @param size      : row length
+     * @return          : buffer if it has the shape [rows][size], a new matrix otherwise
+     */
+    public static float[][] matrix(float[][] buffer, int rows, int size){
+        if(buffer!=null && buffer.length==rows && (rows==0 || buffer[0].length==size))
+            return buffer;
+        return new float[rows][size];
+    }
+
+    /**
+     * @param buffer    : current buffer (may be null)
+     * @param rows      : batch size
+     * @return          : buffer if it has rows rows, a new array of row references otherwise
+     */
+    public static float[][] rows(float[][] buffer, int rows){
+        if(buffer!=null && buffer.length==rows)
+            return buffer;
+        return new float[rows][];
+    }
+
+    /**
+     * @param buffer    : current buffer (may be null)
+     * @param size      : length
+     * @return          : buffer if it has length size, a new array otherwise
+     */
+    public static float[] vector(float[] buffer, int size){
+        if(buffer!=null && buffer.length==size)
+            return buffer;
+        return new float[size];
+    }
+}
@@ -0,0 +1,110 @@
+package ann.benchmark;
+
+import ann.Loss;
+import ann.Network;
+import ann.layer.Attention;
+import ann.layer.Conv2D;
+import ann.layer.Embedding;
+import ann.layer.Hidden;
+import ann.layer.activation.Relu;
+import ann.layer.activation.Sigmoid;
+import ann.layer.activation.Softmax;
+import ann.layer.activation.Tanh;
+import ann.layer.hidden.HiddenAdam;
+import ann.layer.pooling.AvgPooling;
+import ann.layer.pooling.MaxPooling;
+import ann.layer.recurrent.GRU;
+import ann.layer.recurrent.LSTM;
+import ann.loss.BinaryEntropy;
+import ann.loss.Entropy;
+import ann.loss.MeanSquare;
+import ann.loss.SoftmaxEntropy;
+import ann.optimizer.Adam;
+
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+
+/**
+ * Checks that a steady state training step allocates nothing
+ * Trains, at a fixed batch size, one network per group of built-in layers and losses :
+ * dense layers with every activation and a skip connection, Softmax with Entropy and with SoftmaxEntropy (logits),
+ * BinaryEntropy, convolution and pooling, recurrent layers, attention, and an embedding with Adam;
+ * then reads the thread's allocated bytes (com.sun.management.ThreadMXBean) around STEPS more steps of each
+ * Exits with status 1 when any bytes were allocated after the warm up
+ */
+public class AllocationCheck {
+    static int WARM_UP  = 20000;
+    static int STEPS    = 1000;
+    static int BATCH    = 32;
+
+    public static void main(String[] args) {
+        boolean allocated = false;
+        allocated |= check("dense", 16, 4, false, new MeanSquare(), new Network()
+                .addLayer(new Hidden(16,32))
+                .addLayer(new Tanh())
+                .addLayer(new HiddenAdam(32,32))
+                .addLayer(new Relu())
+                .addLayer(new Hidden(32,4))
+                .addLayer(new Sigmoid())
+                .addConnection(2,3,new Hidden(32,32)));
+        allocated |= check("softmax_entropy", 16, 4, false, new Entropy(), new Network()
+                .addLayer(new Hidden(16,4))
+                .addLayer(new Softmax()));
+        allocated |= check("softmax_logits", 16, 4, false, new SoftmaxEntropy(), new Network()
+                .addLayer(new Hidden(16,4))
+                .addLayer(new Softmax()));
+        allocated |= check("binary_entropy", 16, 4, false, new BinaryEntropy(), new Network()
+                .addLayer(new Hidden(16,4))
+                .addLayer(new Sigmoid()));
+        allocated |= check("convolution", 16, 4, false, new MeanSquare(), new Network()
+                .addLayer(new Conv2D(4,4,1,4,3,1,1))
+                .addLayer(new MaxPooling(4,4,4,2))
+                .addLayer(new AvgPooling(2,2,4,2))
+                .addLayer(new Hidden(4,4)));
+        allocated |= check("recurrent", 16, 4, false, new MeanSquare(), new Network()
+                .addLayer(new LSTM(4,4,8,true))
+                .addLayer(new GRU(4,8,4)));
+        allocated |= check("attention", 16, 4, false, new MeanSquare(), new Network()
+                .addLayer(new Attention(4,4,2,true))
+                .addLayer(new Hidden(16,4)));
+        allocated |= check("embedding", 4, 4, true, new MeanSquare(), new Network()
+                .addLayer(new Embedding(10,4,4).setOptimizer(new Adam()))
+                .addLayer(new Hidden(16,4)));
+        if(allocated)
+            System.exit(1);
+    }
+
+    /**
+     * @param name      : printed with the result
+     * @param inputs    : input size
+     * @param outputs   : output size
+     * @param ids       : inputs are ids below 10 instead of values in [0,1)
+     * @param loss      : loss of the network
+     * @param network   : network to train
+     * @return          : true if bytes were allocated after the warm up
+     */
+    private static boolean check(String name, int inputs, int outputs, boolean ids, Loss loss, Network network) {
+        network.setLoss(loss);
+        Random random = new Random(1);
+        float[][] x = new float[BATCH][inputs];
+        float[][] y = new float[BATCH][outputs];
+        for (int t = 0; t < BATCH; t++) {
+            for (int i = 0; i < x[t].length; i++)
+                x[t][i] = ids?random.nextInt(10):random.nextFloat();
+            for (int j = 0; j < y[t].length; j++)
+                y[t][j] = random.nextFloat();
+        }
+
+        for (int step = 0; step < WARM_UP; step++)
+            network.train(x, y);
+
+        com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long before = bean.getCurrentThreadAllocatedBytes();
+        for (int step = 0; step < STEPS; step++)
+            network.train(x, y);
+        long bytes = bean.getCurrentThreadAllocatedBytes()-before;
+
+        System.out.println(name + " : bytes allocated per step after warm up: " + (float) bytes/STEPS);
+        return bytes>0;
+    }
+}
@@ -0,0 +1,93 @@
+package ann.benchmark;
+
+import ann.layer.Attention;
+import ann.layer.activation.Softmax;
+
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+
+/**
+ * Time and memory of the blocked attention of Attention.attend(...) against a naive one
+ * The naive attention builds the length x length score matrix of each head, applies Softmax to it and multiplies by v;
+ * both run on the same packed q,k,v rows and the largest difference between their outputs is printed
+ * Bytes are the ones allocated by the calling thread during one call (com.sun.management.ThreadMXBean),
+ * the naive attention stops with out_of_memory once its score matrices no longer fit in the heap
+ */
+public class AttentionBenchmark {
+    static int[] LENGTHS    = {128, 512, 2048, 8192};
+    static int SIZE         = 64;
+    static int HEADS        = 4;
+    static int REPEATS      = 3;
+
+    public static void main(String[] args) {
+        Random random = new Random(1);
+        Softmax softmax = new Softmax();
+        System.out.println("method,length,heads,milliseconds,allocated_bytes,max_difference");
+        for(int length:LENGTHS) {
+            float[][] qkv = new float[length][3*SIZE];
+            for(float[] row:qkv)
+                for (int c = 0; c < row.length; c++)
+                    row[c] = (float) random.nextGaussian();
+            float[][] blocked = new float[length][SIZE];
+            float[][] naive = new float[length][SIZE];
+
+            long[] run = measure(() -> Attention.attend(qkv, HEADS, false, softmax, blocked, null));
+            System.out.println("blocked," + length + "," + HEADS + "," + run[0]/1e6 + "," + run[1] + ",0");
+            try {
+                run = measure(() -> naive(qkv, HEADS, softmax, naive));
+                System.out.println("naive," + length + "," + HEADS + "," + run[0]/1e6 + "," + run[1] + "," + difference(blocked, naive));
+            } catch (OutOfMemoryError e) {
+                System.out.println("naive," + length + "," + HEADS + ",out_of_memory,,");
+            }
+        }
+    }
+
+    //best time in nanoseconds and bytes allocated of REPEATS calls
+    private static long[] measure(Runnable call) {
+        com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long best = Long.MAX_VALUE, bytes = 0;
+        for (int r = 0; r < REPEATS; r++) {
+            long allocated = bean.getCurrentThreadAllocatedBytes();
+            long start = System.nanoTime();
+            call.run();
+            best = Math.min(best, System.nanoTime()-start);
+            bytes = bean.getCurrentThreadAllocatedBytes()-allocated;
+        }
+        return new long[]{best, bytes};
+    }
+
+    //o = softmax(q.k^T*scale).v per head, with the whole score matrix
+    private static void naive(float[][] qkv, int heads, Softmax softmax, float[][] o) {
+        int length = qkv.length;
+        int size = o[0].length;
+        int headSize = size/heads;
+        float scale = (float) (1/Math.sqrt(headSize));
+        for (int head = 0; head < heads; head++) {
+            int q = head*headSize, k = size+head*headSize, v = 2*size+head*headSize;
+            float[][] scores = new float[length][length];
+            for (int i = 0; i < length; i++)
+                for (int j = 0; j < length; j++) {
+                    float s = 0;
+                    for (int c = 0; c < headSize; c++)
+                        s += qkv[i][q+c]*qkv[j][k+c];
+                    scores[i][j] = s*scale;
+                }
+            float[][] p = softmax.output(scores);
+            for (int i = 0; i < length; i++)
+                for (int c = 0; c < headSize; c++) {
+                    float sum = 0;
+                    for (int j = 0; j < length; j++)
+                        sum += p[i][j]*qkv[j][v+c];
+                    o[i][q+c] = sum;
+                }
+        }
+    }
+
+    private static float difference(float[][] a, float[][] b) {
+        float max = 0;
+        for (int i = 0; i < a.length; i++)
+            for (int c = 0; c < a[i].length; c++)
+                max = Math.max(max, Math.abs(a[i][c]-b[i][c]));
+        return max;
+    }
+}
@@ -0,0 +1,103 @@
+package ann.benchmark;
+
+import ann.Network;
+import ann.Optimizer;
+import ann.layer.Attention;
+import ann.layer.Conv2D;
+import ann.layer.Embedding;
+import ann.layer.Hidden;
+import ann.layer.hidden.HiddenAdam;
+import ann.layer.recurrent.LSTM;
+import ann.loss.MeanSquare;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.function.Supplier;
+
+/**
+ * Checks that training resumes exactly from a binary checkpoint, for every layer with parameters and every optimizer
+ * Each network is trained STEPS steps, saved and read back, then the original and the copy both train STEPS more steps
+ * and their predictions must be equal to the last bit
+ * Prints one line per layer and optimizer, exits with status 1 when a copy differs or fails to save or read
+ */
+public class CheckpointCheck {
+    static int STEPS    = 5;
+    static int BATCH    = 8;
+
+    public static void main(String[] args) throws IOException {
+        Path directory = Files.createTempDirectory("checkpoint");
+        boolean failed = false;
+        System.out.println("layer,optimizer,max_difference");
+        for(String layer:new String[]{"HIDDEN", "HIDDEN_ADAM", "CONV2D", "LSTM", "ATTENTION", "EMBEDDING"})
+            for(String optimizer:new String[]{"SGD", "MOMENTUM", "NESTEROV", "RMSPROP", "ADAM", "ADAMW", "ADAM_INT8"}) {
+                String result;
+                try {
+                    float difference = check(layer, Optimizer.of(optimizer), directory.resolve(layer + "_" + optimizer).toString());
+                    result = Float.toString(difference);
+                    failed |= difference!=0;
+                } catch (RuntimeException e) {
+                    result = e.toString();
+                    failed = true;
+                }
+                System.out.println(layer + "," + optimizer + "," + result);
+            }
+        if(failed)
+            System.exit(1);
+    }
+
+    //largest difference between the predictions of the original and of the copy
+    private static float check(String layer, Optimizer optimizer, String filename) {
+        Random random = new Random(1);
+        Network network = network(layer).setOptimizer(optimizer);
+        float[][] x = inputs(layer, random);
+        float[][] y = new float[BATCH][network.predict(x[0]).length];
+        for(float[] row:y)
+            for (int j = 0; j < row.length; j++)
+                row[j] = random.nextFloat();
+
+        for (int step = 0; step < STEPS; step++)
+            network.train(x, y);
+        network.save(filename);
+        Network copy = new Network(filename);
+        for (int step = 0; step < STEPS; step++) {
+            network.train(x, y);
+            copy.train(x, y);
+        }
+
+        float difference = 0;
+        for(float[] row:x) {
+            float[] a = network.predict(row), b = copy.predict(row);
+            for (int j = 0; j < a.length; j++)
+                difference = Math.max(difference, Math.abs(a[j]-b[j]));
+        }
+        return difference;
+    }
+
+    private static Network network(String layer) {
+        Supplier<Network> network = () -> new Network().setLoss(new MeanSquare());
+        return switch (layer) {
+            case "HIDDEN" -> network.get().addLayer(new Hidden(8, 4));
+            case "HIDDEN_ADAM" -> network.get().addLayer(new HiddenAdam(8, 4));
+            case "CONV2D" -> network.get().addLayer(new Conv2D(4, 4, 1, 2, 3, 1, 1));
+            case "LSTM" -> network.get().addLayer(new LSTM(4, 2, 4, false));
+            case "ATTENTION" -> network.get().addLayer(new Attention(4, 4, 2));
+            case "EMBEDDING" -> network.get().addLayer(new Embedding(10, 4, 2));
+            default -> throw new IllegalStateException("unknown layer " + layer);
+        };
+    }
+
+    private static float[][] inputs(String layer, Random random) {
+        int size = switch (layer) {
+            case "HIDDEN", "HIDDEN_ADAM", "LSTM" -> 8;
+            case "CONV2D", "ATTENTION" -> 16;
+            default -> 2;
+        };
+        float[][] x = new float[BATCH][size];
+        for(float[] row:x)
+            for (int i = 0; i < size; i++)
+                row[i] = layer.equals("EMBEDDING")?random.nextInt(10):random.nextFloat();
+        return x;
+    }
+}
@@ -0,0 +1,99 @@
+package ann.benchmark;
+
+import ann.kernel.FastMath;
+import ann.kernel.Kernel;
+
+import java.util.Random;
+
+/**
+ * Accuracy and speed of the FastMath approximations
+ * Accuracy : every float (or every stride-th, first argument) in [-RANGE,RANGE] through FastMath and through the kernel fast paths,
+ * compared with the double precision java.lang.Math results against the bounds documented in FastMath
+ * Speed : rows of LENGTH values through the exact and the fast kernels, best of ROUNDS
+ * Exits with status 1 when a bound is exceeded
+ * Run with --add-modules jdk.incubator.vector to check the vector kernels
+ */
+public class FastMathCheck {
+    static float RANGE  = 128;
+    static int LENGTH   = 256;
+    static int ROWS     = 20000;
+    static int ROUNDS   = 10;
+
+    public static void main(String[] args) {
+        int stride = args.length>0?Integer.parseInt(args[0]):1;
+        Kernel kernel = Kernel.get();
+        System.out.println("kernel: " + kernel.getName() + ", stride " + stride);
+
+        double[] errors = new double[6];//exp, sigmoid, tanh of FastMath, then of the kernel
+        float[] x = new float[LENGTH];
+        float[] exp = new float[LENGTH];
+        float[] sigmoid = new float[LENGTH];
+        float[] tanh = new float[LENGTH];
+        //positive floats in bit order, each followed by its negative
+        int last = Float.floatToIntBits(RANGE);
+        for (long bits = 0; bits <= last; ) {
+            int length = 0;
+            for (; length < LENGTH && bits <= last; bits += stride) {
+                x[length] = Float.intBitsToFloat((int) bits);
+                x[length+1] = -x[length];
+                length += 2;
+            }
+            kernel.fastExp(x, 0, exp, length);
+            kernel.fastSigmoid(x, sigmoid, length);
+            kernel.fastTanh(x, tanh, length);
+            for (int i = 0; i < length; i++) {
+                float v = x[i];
+                double e = Math.exp(v);
+                double s = 1/(1+Math.exp(-v));
+                double t = Math.tanh(v);
+                if(v>=FastMath.MIN_EXP && v<=FastMath.MAX_EXP) {
+                    errors[0] = Math.max(errors[0], Math.abs(FastMath.exp(v)/e-1));
+                    errors[3] = Math.max(errors[3], Math.abs(exp[i]/e-1));
+                }
+                errors[1] = Math.max(errors[1], Math.abs(FastMath.sigmoid(v)-s));
+                errors[4] = Math.max(errors[4], Math.abs(sigmoid[i]-s));
+                errors[2] = Math.max(errors[2], Math.abs(FastMath.tanh(v)-t));
+                errors[5] = Math.max(errors[5], Math.abs(tanh[i]-t));
+            }
+        }
+
+        boolean pass = true;
+        String[] sources = {"FastMath", kernel.getName()};
+        for (int source = 0; source < 2; source++) {
+            pass &= check(sources[source] + " exp relative error", errors[3*source], FastMath.EXP_ERROR);
+            pass &= check(sources[source] + " sigmoid absolute error", errors[3*source+1], FastMath.SIGMOID_ERROR);
+            pass &= check(sources[source] + " tanh absolute error", errors[3*source+2], FastMath.TANH_ERROR);
+        }
+
+        Random random = new Random(1);
+        float[][] rows = new float[ROWS][LENGTH];
+        for(float[] row:rows)
+            for (int i = 0; i < LENGTH; i++)
+                row[i] = (float) random.nextGaussian()*4;
+        float[] y = new float[LENGTH];
+        System.out.println("function,exact_ns_per_value,fast_ns_per_value");
+        System.out.printf("exp,%.2f,%.2f%n", time(rows, r -> kernel.exp(r, 0, y, LENGTH)), time(rows, r -> kernel.fastExp(r, 0, y, LENGTH)));
+        System.out.printf("sigmoid,%.2f,%.2f%n", time(rows, r -> kernel.sigmoid(r, y, LENGTH)), time(rows, r -> kernel.fastSigmoid(r, y, LENGTH)));
+        System.out.printf("tanh,%.2f,%.2f%n", time(rows, r -> kernel.tanh(r, y, LENGTH)), time(rows, r -> kernel.fastTanh(r, y, LENGTH)));
+
+        if(!pass)
+            System.exit(1);
+    }
+
+    private static boolean check(String name, double error, float bound){
+        System.out.printf("%s: %.3e (bound %.1e)%n", name, error, bound);
+        return error<bound;
+    }
+
+    //best of ROUNDS passes, ns per value
+    private static double time(float[][] rows, java.util.function.Consumer<float[]> function){
+        double best = Double.MAX_VALUE;
+        for (int round = 0; round < ROUNDS; round++) {
+            long start = System.nanoTime();
+            for(float[] row:rows)
+                function.accept(row);
+            best = Math.min(best, (double) (System.nanoTime()-start)/rows.length/LENGTH);
+        }
+        return best;
+    }
+}
@@ -0,0 +1,106 @@
+package ann.benchmark;
+
+import ann.Network;
+import ann.layer.Hidden;
+import ann.layer.activation.Sigmoid;
+import ann.loss.MeanSquare;
+import ann.trainer.Hogwild;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Convergence versus throughput of Hogwild against plain Network.train
+ * Both train networks of the same shape on the same synthetic regression data with the same mini-batch size;
+ * after every epoch the mean square error over the whole data set and the samples per second so far are printed
+ */
+public class HogwildBenchmark {
+    static int SAMPLES      = 20000;
+    static int INPUTS       = 64;
+    static int HIDDEN       = 128;
+    static int OUTPUTS      = 8;
+    static int BATCH_SIZE   = 8;
+    static int EPOCHS       = 5;
+
+    public static void main(String[] args) {
+        int threads = args.length>0?Integer.parseInt(args[0]):Runtime.getRuntime().availableProcessors();
+        Random random = new Random(1);
+        float[][] x = new float[SAMPLES][INPUTS];
+        float[][] y = new float[SAMPLES][OUTPUTS];
+        float[][] teacher = new float[OUTPUTS][INPUTS];
+        for(float[] row:teacher)
+            for (int i = 0; i < INPUTS; i++)
+                row[i] = (float) random.nextGaussian()/ (float) Math.sqrt(INPUTS);
+        for (int t = 0; t < SAMPLES; t++) {
+            for (int i = 0; i < INPUTS; i++)
+                x[t][i] = (float) random.nextGaussian();
+            for (int j = 0; j < OUTPUTS; j++) {
+                float sum = 0;
+                for (int i = 0; i < INPUTS; i++)
+                    sum += teacher[j][i]*x[t][i];
+                y[t][j] = (float) (1/(1+Math.exp(-sum)));
+            }
+        }
+
+        //warm up the JIT so the first method measured is not penalised
+        Network warmUp = network();
+        for (int t = 0; t + BATCH_SIZE <= x.length; t += BATCH_SIZE)
+            warmUp.train(Arrays.copyOfRange(x,t,t+BATCH_SIZE), Arrays.copyOfRange(y,t,t+BATCH_SIZE));
+
+        System.out.println("method,threads,epoch,seconds,samples_per_second,mse");
+        plain(x, y);
+        for (int n = 1; n <= threads; n *= 2)
+            hogwild(x, y, n);
+    }
+
+    private static Network network(){
+        return new Network()
+                .addLayer(new Hidden(INPUTS,HIDDEN).setLearningRate(0.5f))
+                .addLayer(new Sigmoid())
+                .addLayer(new Hidden(HIDDEN,OUTPUTS).setLearningRate(0.5f))
+                .addLayer(new Sigmoid())
+                .setLoss(new MeanSquare());
+    }
+
+    private static void plain(float[][] x, float[][] y){
+        Network network = network();
+        long start = System.nanoTime();
+        for (int epoch = 1; epoch <= EPOCHS; epoch++) {
+            for (int t = 0; t < x.length; t += BATCH_SIZE) {
+                int rows = Math.min(BATCH_SIZE,x.length-t);
+                float[][] xb = new float[rows][];
+                float[][] yb = new float[rows][];
+                System.arraycopy(x,t,xb,0,rows);
+                System.arraycopy(y,t,yb,0,rows);
+                network.train(xb, yb);
+            }
+            report("plain", 1, epoch, start, x.length, mse(network, x, y));
+        }
+    }
+
+    private static void hogwild(float[][] x, float[][] y, int threads){
+        Network network = network();
+        Hogwild hogwild = new Hogwild(network, threads).setBatchSize(BATCH_SIZE).setSeed(1);
+        long start = System.nanoTime();
+        for (int epoch = 1; epoch <= EPOCHS; epoch++) {
+            hogwild.train(x, y, 1);
+            report("hogwild", threads, epoch, start, x.length, mse(network, x, y));
+        }
+    }
+
+    private static void report(String method, int threads, int epoch, long start, int samples, float mse){
+        double seconds = (System.nanoTime()-start)/1e9;
+        System.out.printf("%s,%d,%d,%.3f,%.0f,%.6f%n", method, threads, epoch, seconds, epoch*samples/seconds, mse);
+    }
+
+    //0.5*(y-y_ref)^2 averaged over rows, same as MeanSquare
+    private static float mse(Network network, float[][] x, float[][] y){
+        double loss = 0;
+        for (int t = 0; t < x.length; t++) {
+            float[] p = network.predict(x[t]);
+            for (int j = 0; j < p.length; j++)
+                loss += 0.5*(p[j]-y[t][j])*(p[j]-y[t][j]);
+        }
+        return (float) (loss/x.length);
+    }
+}
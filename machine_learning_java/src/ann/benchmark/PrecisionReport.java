@@ -0,0 +1,94 @@
+package ann.benchmark;
+
+import ann.InferenceModel;
+import ann.Network;
+import ann.Quantizer;
+import ann.layer.Hidden;
+import ann.layer.activation.Tanh;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Accuracy versus throughput of reduced precision weights against float weights
+ * A network is saved and read back : as is, as float16 and bfloat16 (Network.toHalfPrecision)
+ * and as int8 (Quantizer, calibrated on the first CALIBRATION samples)
+ * For each, single vector predict is timed on an InferenceModel and the outputs (logits) are compared with the float ones :
+ * weight_bytes, predictions_per_second, max_abs_error, relative_error (sum of absolute errors over sum of absolute float outputs),
+ * argmax_agreement (share of equal largest outputs)
+ * Run with --add-modules jdk.incubator.vector to measure the vector kernels
+ */
+public class PrecisionReport {
+    static int SAMPLES      = 2048;
+    static int INPUTS       = 512;
+    static int HIDDEN       = 2048;
+    static int OUTPUTS      = 16;
+    static int ROUNDS       = 5;
+    static int CALIBRATION  = 256;
+
+    public static void main(String[] args) throws IOException {
+        Random random = new Random(1);
+        float[][] x = new float[SAMPLES][INPUTS];
+        for(float[] row:x)
+            for (int i = 0; i < INPUTS; i++)
+                row[i] = (float) (random.nextGaussian()/Math.sqrt(INPUTS));//keeps the tanh out of saturation
+
+        Network network = new Network()
+                .addLayer(new Hidden(INPUTS,HIDDEN))
+                .addLayer(new Tanh())
+                .addLayer(new Hidden(HIDDEN,OUTPUTS));
+
+        File file = File.createTempFile("precision_report", ".ann");
+        String filename = file.getPath().substring(0, file.getPath().length()-".ann".length());
+        network.save(filename);
+        long weights = (long) INPUTS*HIDDEN + (long) HIDDEN*OUTPUTS;
+
+        InferenceModel reference = new Network(filename).toInferenceModel();
+        float[][] expected = reference.predict(x);
+
+        System.out.println("format,weight_bytes,predictions_per_second,max_abs_error,relative_error,argmax_agreement");
+        report("float32", weights*Float.BYTES, reference, x, expected);
+        report("float16", weights*Short.BYTES, new Network(filename).toHalfPrecision(false).toInferenceModel(), x, expected);
+        report("bfloat16", weights*Short.BYTES, new Network(filename).toHalfPrecision(true).toInferenceModel(), x, expected);
+        Quantizer quantizer = new Quantizer(new Network(filename)).calibrate(Arrays.copyOf(x, CALIBRATION));
+        report("int8", weights, quantizer.quantize().toInferenceModel(), x, expected);
+        file.delete();
+    }
+
+    private static void report(String format, long bytes, InferenceModel model, float[][] x, float[][] expected){
+        float[] output = new float[model.getOutputSize(x[0].length)];
+        double maxError = 0, sumError = 0, sum = 0;
+        int agree = 0;
+        for (int t = 0; t < x.length; t++) {
+            model.predict(x[t], output);
+            for (int j = 0; j < output.length; j++) {
+                double error = Math.abs(output[j]-expected[t][j]);
+                maxError = Math.max(maxError, error);
+                sumError += error;
+                sum += Math.abs(expected[t][j]);
+            }
+            if(argmax(output)==argmax(expected[t]))
+                agree++;
+        }
+
+        //best of ROUNDS passes over the data, the first ones warm up the JIT
+        double best = 0;
+        for (int round = 0; round < ROUNDS; round++) {
+            long start = System.nanoTime();
+            for(float[] row:x)
+                model.predict(row, output);
+            best = Math.max(best, x.length/((System.nanoTime()-start)/1e9));
+        }
+        System.out.printf("%s,%d,%.0f,%.3e,%.3e,%.4f%n", format, bytes, best, maxError, sumError/sum, (float) agree/x.length);
+    }
+
+    private static int argmax(float[] values){
+        int best = 0;
+        for (int j = 1; j < values.length; j++)
+            if(values[j]>values[best])
+                best = j;
+        return best;
+    }
+}
@@ -0,0 +1,49 @@
+package ann.data;
+
+/**
+ * DataSource over samples already in memory
+ * x        : inputs
+ * y_ref    : reference outputs
+ * position : index of the next sample
+ */
+public class ArraySource implements DataSource {
+    private final float[][] x;
+    private final float[][] y_ref;
+    private int position;
+
+    public ArraySource(float[][] x, float[][] y_ref){
+        if(x.length!=y_ref.length)
+            throw new IllegalArgumentException(x.length + " inputs for " + y_ref.length + " reference outputs");
+        this.x = x;
+        this.y_ref = y_ref;
+    }
+
+    @Override
+    public int getInputSize() {
+        return x.length==0?0:x[0].length;
+    }
+
+    @Override
+    public int getOutputSize() {
+        return y_ref.length==0?0:y_ref[0].length;
+    }
+
+    @Override
+    public boolean next(float[] x, float[] y) {
+        if(position==this.x.length)
+            return false;
+        System.arraycopy(this.x[position], 0, x, 0, x.length);
+        System.arraycopy(y_ref[position], 0, y, 0, y.length);
+        position++;
+        return true;
+    }
+
+    @Override
+    public void reset() {
+        position = 0;
+    }
+
+    @Override
+    public void close() {
+    }
+}
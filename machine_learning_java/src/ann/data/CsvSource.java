@@ -0,0 +1,109 @@
+package ann.data;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+
+/**
+ * DataSource streaming a CSV file one line at a time, so the file never has to fit in memory
+ * Each line holds inputSize inputs followed by outputSize reference outputs; blank lines are skipped
+ * filename     : CSV file
+ * header       : true if the first line holds column names
+ * reader       : open reader, null before the first epoch
+ * line         : number of the last line read, for error messages
+ */
+public class CsvSource implements DataSource {
+    private final String filename;
+    private final int inputSize;
+    private final int outputSize;
+    private boolean header;
+    private BufferedReader reader;
+    private long line;
+
+    public CsvSource(String filename, int inputSize, int outputSize){
+        this.filename = filename;
+        this.inputSize = inputSize;
+        this.outputSize = outputSize;
+    }
+
+    public CsvSource setHeader(boolean header) {
+        this.header = header;
+        return this;
+    }
+
+    @Override
+    public int getInputSize() {
+        return inputSize;
+    }
+
+    @Override
+    public int getOutputSize() {
+        return outputSize;
+    }
+
+    @Override
+    public boolean next(float[] x, float[] y) {
+        try {
+            if(reader==null)
+                reset();
+            String text;
+            do {
+                text = reader.readLine();
+                line++;
+                if(text==null)
+                    return false;
+            }while (text.isBlank());
+
+            int start = 0;
+            for (int i = 0; i < inputSize+outputSize; i++) {
+                int end = text.indexOf(',', start);
+                if(end<0)
+                    end = text.length();
+                if(start>end || (end==text.length() && i<inputSize+outputSize-1))
+                    throw new IllegalStateException(filename + ":" + line + " has fewer than " + (inputSize+outputSize) + " columns");
+                float value;
+                try {
+                    value = Float.parseFloat(text.substring(start, end).trim());
+                } catch (NumberFormatException e) {
+                    throw new IllegalStateException(filename + ":" + line + " column " + (i+1) + " is not a number", e);
+                }
+                if(i<inputSize)
+                    x[i] = value;
+                else
+                    y[i-inputSize] = value;
+                start = end+1;
+            }
+            if(start<=text.length())
+                throw new IllegalStateException(filename + ":" + line + " has more than " + (inputSize+outputSize) + " columns");
+            return true;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public void reset() {
+        try {
+            close();
+            reader = new BufferedReader(new FileReader(filename), 1<<16);
+            line = 0;
+            if(header) {
+                reader.readLine();
+                line++;
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            if(reader!=null)
+                reader.close();
+            reader = null;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
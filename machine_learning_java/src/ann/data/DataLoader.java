@@ -0,0 +1,287 @@
+package ann.data;
+
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Streams mini-batches from a DataSource for Network.fit(...)
+ * Samples go through a shuffle buffer: the first shuffleBuffer samples are read, then each batch row is drawn at random from the buffer
+ * and its slot refilled with the next sample, so shuffling is bounded in memory (1 keeps the file order, >= data size is a full shuffle)
+ * Batches are reused: the one returned by next() is only valid until the following call
+ * With prefetch > 0 a background thread fills up to that many batches ahead of the trainer, so training does not wait on I/O
+ * source           : samples
+ * batchSize        : rows in one batch, the last batch of an epoch may be smaller
+ * shuffleBuffer    : samples held for shuffling
+ * prefetch         : batches filled ahead by the background thread, 0 fills them on the calling thread
+ * bufferX,bufferY  : shuffle buffer, its first filled slots hold samples
+ * free,full        : batches waiting to be filled and batches ready to train on
+ * current          : batch handed out by the last next()
+ * producer         : background thread of the running epoch, null when idle
+ */
+public class DataLoader implements AutoCloseable {
+    private static final Batch END = new Batch(0,0,0);//end of epoch marker
+
+    private final DataSource source;
+    private int batchSize;
+    private int shuffleBuffer;
+    private int prefetch;
+    private Random random;
+
+    private float[][] bufferX;
+    private float[][] bufferY;
+    private int filled;
+    private boolean exhausted;
+
+    private BlockingQueue<Batch> free;
+    private BlockingQueue<Batch> full;
+    private Batch current;
+    private boolean running;
+    private Thread producer;
+    private volatile Throwable failure;
+
+    public DataLoader(DataSource source){
+        this.source = source;
+        this.batchSize = 1;
+        this.shuffleBuffer = 1;
+        this.prefetch = 1;
+        this.random = new Random();
+    }
+
+    public DataLoader setBatchSize(int batchSize) {
+        stop();
+        this.batchSize = Math.max(1,batchSize);
+        free = null;
+        return this;
+    }
+
+    public DataLoader setShuffleBuffer(int shuffleBuffer) {
+        stop();
+        this.shuffleBuffer = Math.max(1,shuffleBuffer);
+        bufferX = null;
+        return this;
+    }
+
+    public DataLoader setPrefetch(int prefetch) {
+        stop();
+        this.prefetch = Math.max(0,prefetch);
+        free = null;
+        return this;
+    }
+
+    public DataLoader setSeed(long seed) {
+        stop();
+        random = new Random(seed);
+        return this;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public int getInputSize() {
+        return source.getInputSize();
+    }
+
+    public int getOutputSize() {
+        return source.getOutputSize();
+    }
+
+    /**
+     * Next batch of the current epoch; after the last one it returns null and the following call starts a new epoch
+     * @return      : batch, valid until the next call, or null at the end of the epoch
+     */
+    public Batch next(){
+        if(!running)
+            start();
+        if(current!=null && prefetch>0)
+            free.add(current);
+        current = null;
+
+        Batch batch;
+        if(prefetch==0) {
+            batch = fill(free.peek())?free.peek():END;
+        } else {
+            try {
+                batch = full.take();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        if(batch==END) {
+            running = false;
+            producer = null;
+            if(failure!=null) {
+                Throwable cause = failure;
+                failure = null;
+                throw new RuntimeException("data loading failed", cause);
+            }
+            return null;
+        }
+        current = batch;
+        return batch;
+    }
+
+    //rewinds the source and starts filling the batches of a new epoch
+    private void start(){
+        if(bufferX==null) {
+            bufferX = new float[shuffleBuffer][source.getInputSize()];
+            bufferY = new float[shuffleBuffer][source.getOutputSize()];
+        }
+        if(free==null) {
+            free = new ArrayBlockingQueue<>(prefetch+1);
+            full = new ArrayBlockingQueue<>(prefetch+2);
+            for (int b = 0; b < prefetch+1; b++)
+                free.add(new Batch(batchSize, source.getInputSize(), source.getOutputSize()));
+        }
+        source.reset();
+        filled = 0;
+        exhausted = false;
+        current = null;
+        running = true;
+        if(prefetch>0) {
+            producer = new Thread(this::produce, "data-loader");
+            producer.setDaemon(true);
+            producer.start();
+        }
+    }
+
+    //background thread: fills free batches until the source is exhausted, then queues END
+    private void produce(){
+        Batch batch = null;
+        try {
+            while (true) {
+                batch = free.take();
+                if(!fill(batch))
+                    break;
+                full.put(batch);
+                batch = null;
+            }
+        } catch (InterruptedException e) {
+            if(batch!=null)
+                free.add(batch);
+            return;//stopped by stop()
+        } catch (Throwable e) {
+            failure = e;
+        }
+        if(batch!=null)
+            free.add(batch);
+        full.add(END);
+    }
+
+    //abandons the running epoch, if any, and puts every batch back in free
+    private void stop(){
+        if(!running)
+            return;
+        if(producer!=null) {
+            producer.interrupt();
+            try {
+                producer.join();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            producer = null;
+            if(current!=null)
+                free.add(current);
+            for(Batch batch:full)
+                if(batch!=END)
+                    free.add(batch);
+            full.clear();
+        }
+        current = null;
+        failure = null;
+        running = false;
+    }
+
+    /**
+     * Fills a batch with up to batchSize samples drawn from the shuffle buffer
+     * Rows are swapped with buffer slots rather than copied, the freed slot is refilled from the source
+     * @return      : false if the epoch has no samples left
+     */
+    private boolean fill(Batch batch){
+        int rows = 0;
+        while (rows<batchSize) {
+            while (!exhausted && filled<shuffleBuffer) {
+                if(source.next(bufferX[filled], bufferY[filled]))
+                    filled++;
+                else
+                    exhausted = true;
+            }
+            if(filled==0)
+                break;
+
+            int r = filled==1?0:random.nextInt(filled);
+            float[] x = batch.rowsX[rows];
+            float[] y = batch.rowsY[rows];
+            batch.rowsX[rows] = bufferX[r];
+            batch.rowsY[rows] = bufferY[r];
+            //the last filled slot moves to r, the row arrays of the batch take its place
+            filled--;
+            bufferX[r] = bufferX[filled];
+            bufferY[r] = bufferY[filled];
+            bufferX[filled] = x;
+            bufferY[filled] = y;
+            rows++;
+        }
+        batch.resize(rows);
+        return rows>0;
+    }
+
+    @Override
+    public void close() {
+        stop();
+        source.close();
+    }
+
+    /**
+     * Reusable mini-batch
+     * rowsX,rowsY  : row arrays, batchSize of them
+     * x,y          : the first size rows, rowsX/rowsY themselves for full batches
+     * partialX,partialY : views of the last, smaller batch of an epoch
+     */
+    public static class Batch {
+        private final float[][] rowsX;
+        private final float[][] rowsY;
+        private float[][] x;
+        private float[][] y;
+        private float[][] partialX;
+        private float[][] partialY;
+
+        private Batch(int batchSize, int inputSize, int outputSize){
+            rowsX = new float[batchSize][inputSize];
+            rowsY = new float[batchSize][outputSize];
+            x = rowsX;
+            y = rowsY;
+        }
+
+        private void resize(int rows){
+            if(rows==rowsX.length) {
+                x = rowsX;
+                y = rowsY;
+                return;
+            }
+            //partial batches only happen at the end of an epoch, their views are kept while the size does not change
+            if(partialX==null || partialX.length!=rows) {
+                partialX = new float[rows][];
+                partialY = new float[rows][];
+            }
+            System.arraycopy(rowsX, 0, partialX, 0, rows);
+            System.arraycopy(rowsY, 0, partialY, 0, rows);
+            x = partialX;
+            y = partialY;
+        }
+
+        public int size() {
+            return x.length;
+        }
+
+        public float[][] getX() {
+            return x;
+        }
+
+        public float[][] getY() {
+            return y;
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package ann.data;
+
+/**
+ * Sequential, rewindable stream of samples read by a DataLoader
+ * Samples are written into arrays owned by the caller, so a source never allocates per sample
+ */
+public interface DataSource extends AutoCloseable {
+    int getInputSize();
+
+    int getOutputSize();
+
+    /**
+     * Reads the next sample
+     * @param x     : receives the inputs, length getInputSize()
+     * @param y     : receives the reference outputs, length getOutputSize()
+     * @return      : false at the end of the data, x and y are then left unchanged
+     */
+    boolean next(float[] x, float[] y);
+
+    //rewinds to the first sample, called before every epoch
+    void reset();
+
+    @Override
+    void close();
+}
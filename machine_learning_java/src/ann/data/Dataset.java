@@ -0,0 +1,279 @@
+package ann.data;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Binary columnar dataset, memory mapped for training on data larger than the heap
+ * Layout, little endian :
+ *  int     MAGIC ("ANND")
+ *  int     VERSION
+ *  int     inputSize
+ *  int     outputSize
+ *  long    rows
+ *  long    offset of the labels
+ *  ...     zero padding up to HEADER_SIZE
+ *  float32 features, rows*inputSize, row-major
+ *  ...     zero padding up to a multiple of ALIGNMENT
+ *  float32 labels, rows*outputSize, row-major
+ * Rows are fixed width, so row r is read straight from its offset; nothing is parsed and the only copy is from the mapping into the caller's arrays
+ * The file is mapped in chunks of whole rows, each under MAX_CHUNK bytes, so datasets are not limited to 2GB
+ * features,labels  : chunks of the mapping, read only
+ * featureRowsPerChunk,labelRowsPerChunk : rows in every chunk but the last
+ * position         : next row read by next(...)
+ */
+public class Dataset implements DataSource {
+    public static final int MAGIC       = 0x444E4E41;//"ANND" in little endian
+    public static final int VERSION     = 1;
+    public static final int HEADER_SIZE = 64;
+    public static final int ALIGNMENT   = 64;
+
+    static long MAX_CHUNK = 1L<<30;
+    static int BUFFER_SIZE = 1<<20;
+
+    private final int inputSize;
+    private final int outputSize;
+    private final long rows;
+    private final FloatBuffer[] features;
+    private final FloatBuffer[] labels;
+    private final long featureRowsPerChunk;
+    private final long labelRowsPerChunk;
+    private long position;
+
+    public Dataset(String filename) {
+        try (FileChannel channel = FileChannel.open(Path.of(filename), StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            while (header.hasRemaining() && channel.read(header)>=0);
+            if(header.hasRemaining() || header.getInt(0)!=MAGIC)
+                throw new IllegalStateException(filename + " is not a dataset");
+            if(header.getInt(4)!=VERSION)
+                throw new IllegalStateException(filename + " has unsupported version " + header.getInt(4));
+            inputSize = header.getInt(8);
+            outputSize = header.getInt(12);
+            rows = header.getLong(16);
+            long labelOffset = header.getLong(24);
+            if(inputSize<0 || outputSize<0 || rows<0 || labelOffset<HEADER_SIZE+rows*inputSize*Float.BYTES
+                    || channel.size()!=labelOffset+rows*outputSize*Float.BYTES)
+                throw new IllegalStateException(filename + " is truncated or corrupted");
+
+            featureRowsPerChunk = rowsPerChunk(inputSize);
+            labelRowsPerChunk = rowsPerChunk(outputSize);
+            features = map(channel, HEADER_SIZE, inputSize, featureRowsPerChunk);
+            labels = map(channel, labelOffset, outputSize, labelRowsPerChunk);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static long rowsPerChunk(int size) {
+        return Math.max(1, MAX_CHUNK/Math.max(1, (long) size*Float.BYTES));
+    }
+
+    private FloatBuffer[] map(FileChannel channel, long offset, int size, long rowsPerChunk) throws IOException {
+        FloatBuffer[] chunks = new FloatBuffer[(int) ((rows+rowsPerChunk-1)/rowsPerChunk)];
+        for (int c = 0; c < chunks.length; c++) {
+            long first = c*rowsPerChunk;
+            long count = Math.min(rowsPerChunk, rows-first);
+            chunks[c] = channel.map(FileChannel.MapMode.READ_ONLY, offset+first*size*Float.BYTES, count*size*Float.BYTES)
+                    .order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+        }
+        return chunks;
+    }
+
+    @Override
+    public int getInputSize() {
+        return inputSize;
+    }
+
+    @Override
+    public int getOutputSize() {
+        return outputSize;
+    }
+
+    public long size() {
+        return rows;
+    }
+
+    /**
+     * Random access to one row
+     * @param row   : index of the row, 0 to size()-1
+     * @param x     : receives the features
+     * @param y     : receives the labels
+     */
+    public void read(long row, float[] x, float[] y) {
+        if(row<0 || row>=rows)
+            throw new IndexOutOfBoundsException("row " + row + " of " + rows);
+        features[(int) (row/featureRowsPerChunk)].get((int) (row%featureRowsPerChunk)*inputSize, x, 0, inputSize);
+        labels[(int) (row/labelRowsPerChunk)].get((int) (row%labelRowsPerChunk)*outputSize, y, 0, outputSize);
+    }
+
+    @Override
+    public boolean next(float[] x, float[] y) {
+        if(position==rows)
+            return false;
+        read(position++, x, y);
+        return true;
+    }
+
+    @Override
+    public void reset() {
+        position = 0;
+    }
+
+    //the mapping is released once the dataset is garbage collected
+    @Override
+    public void close() {
+    }
+
+    /**
+     * Converts a CSV file (see CsvSource) to a dataset, reading it once
+     * @param csv           : CSV file
+     * @param filename      : dataset file
+     * @param inputSize     : features per row
+     * @param outputSize    : labels per row
+     * @param header        : true if the first line of the CSV holds column names
+     * @return              : rows written
+     */
+    public static long convert(String csv, String filename, int inputSize, int outputSize, boolean header) {
+        float[] x = new float[inputSize];
+        float[] y = new float[outputSize];
+        try (CsvSource source = new CsvSource(csv, inputSize, outputSize).setHeader(header);
+             Writer writer = new Writer(filename, inputSize, outputSize)) {
+            while (source.next(x, y))
+                writer.write(x, y);
+            writer.commit();
+            return writer.rows;
+        }
+    }
+
+    /**
+     * Appends rows to a new dataset file
+     * Features go to a temporary file next to it, labels to a second one that is appended by commit(),
+     * so the number of rows does not need to be known in advance
+     * commit() seals the header and moves the file in place atomically; close() without commit() deletes both temporary files
+     * and leaves whatever was at filename as it was, so an interrupted conversion never leaves a truncated dataset behind
+     */
+    public static class Writer implements AutoCloseable {
+        private final Path path;
+        private final Path temporary;
+        private final Path labelPath;
+        private final int inputSize;
+        private final int outputSize;
+        private final FileChannel channel;
+        private final FileChannel labelChannel;
+        private final ByteBuffer buffer;
+        private final ByteBuffer labelBuffer;
+        private long rows;
+        private boolean committed;
+
+        public Writer(String filename, int inputSize, int outputSize) {
+            this.inputSize = inputSize;
+            this.outputSize = outputSize;
+            path = Path.of(filename);
+            temporary = Path.of(filename + ".tmp");
+            labelPath = Path.of(filename + ".labels");
+            FileChannel channel = null;
+            try {
+                channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+                labelChannel = FileChannel.open(labelPath, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+                channel.position(HEADER_SIZE);
+            } catch (IOException e) {
+                try {
+                    if(channel!=null)
+                        channel.close();
+                    Files.deleteIfExists(temporary);
+                    Files.deleteIfExists(labelPath);
+                } catch (IOException suppressed) {
+                    e.addSuppressed(suppressed);
+                }
+                throw new RuntimeException(e);
+            }
+            this.channel = channel;
+            buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            labelBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        public void write(float[] x, float[] y) {
+            if(x.length!=inputSize || y.length!=outputSize)
+                throw new IllegalArgumentException("row [" + x.length + "," + y.length + "] in a dataset of [" + inputSize + "," + outputSize + "]");
+            try {
+                put(channel, buffer, x);
+                put(labelChannel, labelBuffer, y);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            rows++;
+        }
+
+        private static void put(FileChannel channel, ByteBuffer buffer, float[] values) throws IOException {
+            int i = 0;
+            while (i < values.length) {
+                if(buffer.remaining()<Float.BYTES)
+                    flush(channel, buffer);
+                int count = Math.min(buffer.remaining()/Float.BYTES, values.length-i);
+                buffer.asFloatBuffer().put(values, i, count);
+                buffer.position(buffer.position()+count*Float.BYTES);
+                i += count;
+            }
+        }
+
+        private static void flush(FileChannel channel, ByteBuffer buffer) throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining())
+                channel.write(buffer);
+            buffer.clear();
+        }
+
+        //pads the features, appends the labels, writes the header, then moves the file to filename
+        public void commit() {
+            try {
+                flush(channel, buffer);
+                flush(labelChannel, labelBuffer);
+                long labelOffset = (channel.position()+ALIGNMENT-1)/ALIGNMENT*ALIGNMENT;
+                ByteBuffer padding = ByteBuffer.allocate((int) (labelOffset-channel.position()));
+                while (padding.hasRemaining())
+                    channel.write(padding);
+                long length = labelChannel.size();
+                long copied = 0;
+                while (copied < length)
+                    copied += labelChannel.transferTo(copied, length-copied, channel);
+
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN)
+                        .putInt(MAGIC).putInt(VERSION).putInt(inputSize).putInt(outputSize).putLong(rows).putLong(labelOffset);
+                header.clear();
+                while (header.hasRemaining())
+                    channel.write(header, header.position());
+                channel.force(false);
+                channel.close();
+                Files.move(temporary, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                committed = true;
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        //deletes the labels file, and the dataset too without commit()
+        @Override
+        public void close() {
+            try {
+                try {
+                    channel.close();
+                    labelChannel.close();
+                } finally {
+                    Files.deleteIfExists(labelPath);
+                    if(!committed)
+                        Files.deleteIfExists(temporary);
+                }
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+}
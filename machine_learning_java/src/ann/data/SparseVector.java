@@ -0,0 +1,72 @@
+package ann.data;
+
+import java.util.Arrays;
+
+/**
+ * Input vector given by its non-zero entries, for the first layer of a network when it is a SparseHidden
+ * size         : dimension of the dense vector
+ * indices      : positions of the non-zero entries, each in [0,size)
+ * values       : values of the non-zero entries, values[k] is at indices[k]
+ */
+public class SparseVector {
+    private final int size;
+    private final int[] indices;
+    private final float[] values;
+
+    public SparseVector(int size, int[] indices, float[] values) {
+        if(indices.length!=values.length)
+            throw new IllegalArgumentException(indices.length + " indices for " + values.length + " values");
+        for(int index:indices)
+            if(index<0 || index>=size)
+                throw new IndexOutOfBoundsException("index " + index + " of a vector of " + size);
+        this.size = size;
+        this.indices = indices;
+        this.values = values;
+    }
+
+    //non-zero entries of a dense vector
+    public static SparseVector of(float... dense) {
+        int count = 0;
+        for(float value:dense)
+            if(value!=0)
+                count++;
+        int[] indices = new int[count];
+        float[] values = new float[count];
+        count = 0;
+        for (int i = 0; i < dense.length; i++) {
+            if(dense[i]!=0) {
+                indices[count] = i;
+                values[count++] = dense[i];
+            }
+        }
+        return new SparseVector(dense.length, indices, values);
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    public int nonZeros() {
+        return indices.length;
+    }
+
+    public int[] getIndices() {
+        return indices;
+    }
+
+    public float[] getValues() {
+        return values;
+    }
+
+    public float[] toDense() {
+        float[] dense = new float[size];
+        for (int k = 0; k < indices.length; k++)
+            dense[indices[k]] += values[k];
+        return dense;
+    }
+
+    @Override
+    public String toString() {
+        return "[" + size + "]" + Arrays.toString(indices) + Arrays.toString(values);
+    }
+}
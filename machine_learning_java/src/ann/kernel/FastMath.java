@@ -0,0 +1,74 @@
+package ann.kernel;
+
+/**
+ * Float approximations of exp, sigmoid and tanh, for activations where the last bits do not matter
+ * exp(x) = 2^n*p(r) with x = n*ln2+r, |r| <= ln2/2, p a degree 5 polynomial (Cephes expf coefficients)
+ * sigmoid(x) = 1/(1+exp(-x)), tanh(x) = 1-2/(1+exp(2x)), so all three share one code path
+ * These are what Kernel runs in fast math mode; VectorKernel runs the same operations lane by lane, so both give the same values
+ * Error bounds, checked over every float in range by ann.benchmark.FastMathCheck :
+ *  exp     : relative error below EXP_ERROR for MIN_EXP <= x <= MAX_EXP, x is clamped to that range
+ *            (below it the absolute error is under exp(MIN_EXP) ~ 1.6e-38)
+ *  sigmoid : absolute error below SIGMOID_ERROR
+ *  tanh    : absolute error below TANH_ERROR (relative error grows as x goes to 0, where tanh(x) ~ x)
+ * Selected globally with setEnabled(...) or -Dann.fastmath=true, or per layer with Activation.setFastMath(...) and Recurrent.setFastMath(...)
+ */
+public final class FastMath {
+    public static final float MIN_EXP       = -87f;//exp(MIN_EXP) is still a normal float
+    public static final float MAX_EXP       = 88f;//n stays <= 127
+    public static final float EXP_ERROR     = 2e-7f;
+    public static final float SIGMOID_ERROR = 1e-7f;
+    public static final float TANH_ERROR    = 3e-7f;
+
+    static final float ROUND    = 0x1.8p23f;
+    static final int SCALE_BIAS = 127-0x4b400000;//exponent bias minus bits(ROUND)
+    static final float LOG2E    = 1.44269504088896341f;
+    static final float LN2_HI   = 0.693359375f;//ln2 = LN2_HI+LN2_LO, LN2_HI has few mantissa bits so n*LN2_HI is exact
+    static final float LN2_LO   = -2.12194440e-4f;
+    static final float P0       = 1.9875691500e-4f;
+    static final float P1       = 1.3981999507e-3f;
+    static final float P2       = 8.3334519073e-3f;
+    static final float P3       = 4.1665795894e-2f;
+    static final float P4       = 1.6666665459e-1f;
+    static final float P5       = 5.0000001201e-1f;
+
+    private static volatile boolean enabled = Boolean.getBoolean("ann.fastmath");
+
+    private FastMath(){
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    //default of every activation that was not set with Activation.setFastMath(...)
+    public static void setEnabled(boolean enabled) {
+        FastMath.enabled = enabled;
+    }
+
+    public static float exp(float x){
+        x = Math.min(Math.max(x, MIN_EXP), MAX_EXP);
+        //n = round(x/ln2), r = x-n*ln2
+        //adding ROUND = 1.5*2^23 rounds x/ln2 to an integer, which is then the low bits of the mantissa of t: no int conversion
+        float t = x*LOG2E+ROUND;
+        float n = t-ROUND;
+        float r = x-n*LN2_HI-n*LN2_LO;
+        //p(r) = 1+r+r^2*(P5+r*(P4+r*(P3+r*(P2+r*(P1+r*P0)))))
+        float p = P0;
+        p = p*r+P1;
+        p = p*r+P2;
+        p = p*r+P3;
+        p = p*r+P4;
+        p = p*r+P5;
+        p = p*r*r+r+1;
+        //2^n from the exponent bits, n = bits(t)-bits(ROUND)
+        return p*Float.intBitsToFloat((Float.floatToRawIntBits(t)+SCALE_BIAS)<<23);
+    }
+
+    public static float sigmoid(float x){
+        return 1/(1+exp(-x));
+    }
+
+    public static float tanh(float x){
+        return 1-2/(1+exp(2*x));
+    }
+}
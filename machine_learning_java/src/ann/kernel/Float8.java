@@ -0,0 +1,50 @@
+package ann.kernel;
+
+/**
+ * 8 bit floats for values scaled into [-1,1] or [0,1], used to store optimizer state (see ann.optimizer.QuantizedAdam)
+ * Only the exponent and MANTISSA bits of a float are kept, so the relative precision is the same over the whole range
+ * and small values are not flushed to 0 as they would be by a linear int8 code :
+ * signed   : sign and 7 bits, 16 exponents, |x| from 2^-16 to 1 (e4m3 without infinity or NaN)
+ * unsigned : 8 bits, 31 exponents, x from 2^-31 to 1
+ * Code 0 is 0, values below the range round to it; encoding rounds to nearest
+ * A code is the upper bits of the float minus a bias, so it converts with integer arithmetic only
+ */
+public class Float8 {
+    public static final int MANTISSA    = 3;
+    static final int SHIFT              = 23-MANTISSA;
+    static final int ROUND              = 1<<(SHIFT-1);
+    static final int SIGNED_BIAS        = (127<<MANTISSA)-127;//code 127 is 1
+    static final int UNSIGNED_BIAS      = (127<<MANTISSA)-248;//code 248 is 1
+
+    private static final float[] SIGNED = new float[256];//value of code c at c&0xff
+    private static final float[] UNSIGNED = new float[256];
+
+    static {
+        for (int c = 1; c < 128; c++) {
+            SIGNED[c] = Float.intBitsToFloat((c+SIGNED_BIAS)<<SHIFT);
+            SIGNED[-c&0xff] = -SIGNED[c];
+        }
+        for (int c = 1; c <= 248; c++)
+            UNSIGNED[c] = Float.intBitsToFloat((c+UNSIGNED_BIAS)<<SHIFT);
+    }
+
+    //x in [-1,1]
+    public static byte toSigned(float x){
+        //c = upper bits of |x| rounded, minus the bias, 0 below the range
+        int c = Math.max(((Float.floatToRawIntBits(Math.abs(x))+ROUND)>>SHIFT)-SIGNED_BIAS, 0);
+        return (byte) (x<0?-c:c);
+    }
+
+    //x in [0,1]
+    public static byte toUnsigned(float x){
+        return (byte) Math.max(((Float.floatToRawIntBits(x)+ROUND)>>SHIFT)-UNSIGNED_BIAS, 0);
+    }
+
+    public static float fromSigned(byte code){
+        return SIGNED[code&0xff];
+    }
+
+    public static float fromUnsigned(byte code){
+        return UNSIGNED[code&0xff];
+    }
+}
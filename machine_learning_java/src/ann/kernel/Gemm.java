@@ -0,0 +1,347 @@
+package ann.kernel;
+
+import java.nio.FloatBuffer;
+
+/**
+ * Cache-blocked matrix kernels for dense layers
+ * Weights are one row-major array : w[j*inputSize+i] connects input i to output j
+ * Batches stay float[rows][size] so they can be passed between layers unchanged
+ * Every kernel adds along the reduction index in the same order as the plain triple loop,
+ * so with the scalar Kernel the blocked result is bit-identical to the naive one
+ * The innermost loops are dot and axpy calls on the Kernel picked at start up (see Kernel.get())
+ * BLOCK_ROWS       : batch rows in one tile
+ * BLOCK_OUTPUTS    : weight rows in one tile
+ * BLOCK_INPUTS     : weight columns (reduction length) in one tile
+ * Weights may also be a FloatBuffer (off heap or memory mapped) : each weight tile is copied once to a per thread heap tile
+ * and the same array kernels run on it, so the sums are the same as with on heap weights
+ * Weights may also be 16 bit (float16 or bfloat16, see Half) : they are widened to float in the dot kernels and summed in float
+ * or int8 with one scale per output row : inputs are then quantized to int8 with one scale, dot products are summed in int
+ * and scaled back to float, y_j = sum_i(wq_ji*xq_i)*rowScale_j*inputScale + b_j
+ */
+public class Gemm {
+    public static int BLOCK_ROWS    = 16;
+    public static int BLOCK_OUTPUTS = 64;
+    public static int BLOCK_INPUTS  = 256;
+
+    private static final ThreadLocal<float[]> TILE = new ThreadLocal<>();
+    private static final ThreadLocal<byte[]> QUANTIZED = new ThreadLocal<>();
+
+    /**
+     * Forward pass y = x.w^T + b
+     * @param x             : inputs [rows][inputSize]
+     * @param w             : weights [outputSize*inputSize]
+     * @param b             : biases [outputSize]
+     * @param y             : outputs [rows][outputSize], overwritten
+     * @param inputSize     : input size
+     * @param outputSize    : output size
+     */
+    public static void forward(float[][] x, float[] w, float[] b, float[][] y, int inputSize, int outputSize){
+        //y_tj = sum_i(w_ji*x_ti)+b_j
+        Kernel kernel = Kernel.get();
+        int rows = x.length;
+        for (int t = 0; t < rows; t++)
+            for (int j = 0; j < outputSize; j++)
+                y[t][j] = 0;
+
+        for (int i0 = 0; i0 < inputSize; i0 += BLOCK_INPUTS) {
+            int i1 = Math.min(i0 + BLOCK_INPUTS, inputSize);
+            for (int j0 = 0; j0 < outputSize; j0 += BLOCK_OUTPUTS) {
+                int j1 = Math.min(j0 + BLOCK_OUTPUTS, outputSize);
+                for (int t0 = 0; t0 < rows; t0 += BLOCK_ROWS) {
+                    int t1 = Math.min(t0 + BLOCK_ROWS, rows);
+                    for (int t = t0; t < t1; t++) {
+                        float[] xt = x[t];
+                        float[] yt = y[t];
+                        for (int j = j0; j < j1; j++)
+                            yt[j] = kernel.dot(yt[j], w, j * inputSize + i0, xt, i0, i1 - i0);
+                    }
+                }
+            }
+        }
+
+        for (int t = 0; t < rows; t++)
+            for (int j = 0; j < outputSize; j++)
+                y[t][j] += b[j];
+    }
+
+    /**
+     * Weight gradient dw += dy^T.x and db += sum_t(dy)
+     * @param dy            : output gradients [rows][outputSize]
+     * @param x             : inputs [rows][inputSize]
+     * @param dw            : weight gradients [outputSize*inputSize], accumulated
+     * @param db            : bias gradients [outputSize], accumulated
+     * @param inputSize     : input size
+     * @param outputSize    : output size
+     */
+    public static void weightGradient(float[][] dy, float[][] x, float[] dw, float[] db, int inputSize, int outputSize){
+        //dw_ji += dy_tj*x_ti
+        //db_j += dy_tj
+        Kernel kernel = Kernel.get();
+        int rows = dy.length;
+        for (int t0 = 0; t0 < rows; t0 += BLOCK_ROWS) {
+            int t1 = Math.min(t0 + BLOCK_ROWS, rows);
+            for (int j0 = 0; j0 < outputSize; j0 += BLOCK_OUTPUTS) {
+                int j1 = Math.min(j0 + BLOCK_OUTPUTS, outputSize);
+                for (int i0 = 0; i0 < inputSize; i0 += BLOCK_INPUTS) {
+                    int i1 = Math.min(i0 + BLOCK_INPUTS, inputSize);
+                    for (int t = t0; t < t1; t++) {
+                        float[] xt = x[t];
+                        float[] dyt = dy[t];
+                        for (int j = j0; j < j1; j++)
+                            kernel.axpy(dyt[j], xt, i0, dw, j * inputSize + i0, i1 - i0);
+                    }
+                }
+            }
+        }
+
+        for (int t = 0; t < rows; t++)
+            for (int j = 0; j < outputSize; j++)
+                db[j] += dy[t][j];
+    }
+
+    /**
+     * Input gradient dx = dy.w
+     * @param dy            : output gradients [rows][outputSize]
+     * @param w             : weights [outputSize*inputSize]
+     * @param dx            : input gradients [rows][inputSize], overwritten
+     * @param inputSize     : input size
+     * @param outputSize    : output size
+     */
+    public static void inputGradient(float[][] dy, float[] w, float[][] dx, int inputSize, int outputSize){
+        //dx_ti = sum_j(dy_tj*w_ji)
+        Kernel kernel = Kernel.get();
+        int rows = dy.length;
+        for (int t = 0; t < rows; t++)
+            for (int i = 0; i < inputSize; i++)
+                dx[t][i] = 0;
+
+        for (int j0 = 0; j0 < outputSize; j0 += BLOCK_OUTPUTS) {
+            int j1 = Math.min(j0 + BLOCK_OUTPUTS, outputSize);
+            for (int i0 = 0; i0 < inputSize; i0 += BLOCK_INPUTS) {
+                int i1 = Math.min(i0 + BLOCK_INPUTS, inputSize);
+                for (int t0 = 0; t0 < rows; t0 += BLOCK_ROWS) {
+                    int t1 = Math.min(t0 + BLOCK_ROWS, rows);
+                    for (int t = t0; t < t1; t++) {
+                        float[] dxt = dx[t];
+                        float[] dyt = dy[t];
+                        for (int j = j0; j < j1; j++)
+                            kernel.axpy(dyt[j], w, j * inputSize + i0, dxt, i0, i1 - i0);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Single vector forward pass y = w.x + b
+     * @param x             : input [inputSize]
+     * @param w             : weights [outputSize*inputSize]
+     * @param b             : biases [outputSize]
+     * @param y             : output [outputSize], overwritten
+     * @param inputSize     : input size
+     * @param outputSize    : output size
+     */
+    public static void forward(float[] x, float[] w, float[] b, float[] y, int inputSize, int outputSize){
+        //y_j = sum_i(w_ji*x_i)+b_j
+        Kernel kernel = Kernel.get();
+        for (int j = 0; j < outputSize; j++)
+            y[j] = kernel.dot(0, w, j * inputSize, x, 0, inputSize) + b[j];
+    }
+
+    /**
+     * Forward pass y = x.w^T + b with weights outside the heap
+     * @param x             : inputs [rows][inputSize]
+     * @param w             : weights [outputSize*inputSize]
+     * @param b             : biases [outputSize]
+     * @param y             : outputs [rows][outputSize], overwritten
+     * @param inputSize     : input size
+     * @param outputSize    : output size
+     */
+    public static void forward(float[][] x, FloatBuffer w, FloatBuffer b, float[][] y, int inputSize, int outputSize){
+        //y_tj = sum_i(w_ji*x_ti)+b_j
+        Kernel kernel = Kernel.get();
+        float[] tile = tile(BLOCK_OUTPUTS*BLOCK_INPUTS);
+        int rows = x.length;
+        for (int t = 0; t < rows; t++)
+            for (int j = 0; j < outputSize; j++)
+                y[t][j] = 0;
+
+        for (int i0 = 0; i0 < inputSize; i0 += BLOCK_INPUTS) {
+            int i1 = Math.min(i0 + BLOCK_INPUTS, inputSize);
+            int length = i1 - i0;
+            for (int j0 = 0; j0 < outputSize; j0 += BLOCK_OUTPUTS) {
+                int j1 = Math.min(j0 + BLOCK_OUTPUTS, outputSize);
+                for (int j = j0; j < j1; j++)
+                    w.get(j * inputSize + i0, tile, (j - j0) * length, length);
+                for (int t0 = 0; t0 < rows; t0 += BLOCK_ROWS) {
+                    int t1 = Math.min(t0 + BLOCK_ROWS, rows);
+                    for (int t = t0; t < t1; t++) {
+                        float[] xt = x[t];
+                        float[] yt = y[t];
+                        for (int j = j0; j < j1; j++)
+                            yt[j] = kernel.dot(yt[j], tile, (j - j0) * length, xt, i0, length);
+                    }
+                }
+            }
+        }
+
+        for (int t = 0; t < rows; t++)
+            for (int j = 0; j < outputSize; j++)
+                y[t][j] += b.get(j);
+    }
+
+    /**
+     * Single vector forward pass y = w.x + b with weights outside the heap
+     * @param x             : input [inputSize]
+     * @param w             : weights [outputSize*inputSize]
+     * @param b             : biases [outputSize]
+     * @param y             : output [outputSize], overwritten
+     * @param inputSize     : input size
+     * @param outputSize    : output size
+     */
+    public static void forward(float[] x, FloatBuffer w, FloatBuffer b, float[] y, int inputSize, int outputSize){
+        //y_j = sum_i(w_ji*x_i)+b_j
+        Kernel kernel = Kernel.get();
+        float[] row = tile(inputSize);
+        for (int j = 0; j < outputSize; j++) {
+            w.get(j * inputSize, row, 0, inputSize);
+            y[j] = kernel.dot(0, row, 0, x, 0, inputSize) + b.get(j);
+        }
+    }
+
+    /**
+     * Forward pass y = x.w^T + b with 16 bit weights
+     * @param x             : inputs [rows][inputSize]
+     * @param w             : weights [outputSize*inputSize], float16 or bfloat16
+     * @param bfloat16      : true if w is bfloat16, false if float16
+     * @param b             : biases [outputSize]
+     * @param y             : outputs [rows][outputSize], overwritten
+     * @param inputSize     : input size
+     * @param outputSize    : output size
+     */
+    public static void forward(float[][] x, short[] w, boolean bfloat16, float[] b, float[][] y, int inputSize, int outputSize){
+        //y_tj = sum_i(w_ji*x_ti)+b_j
+        Kernel kernel = Kernel.get();
+        int rows = x.length;
+        for (int t = 0; t < rows; t++)
+            for (int j = 0; j < outputSize; j++)
+                y[t][j] = 0;
+
+        for (int i0 = 0; i0 < inputSize; i0 += BLOCK_INPUTS) {
+            int i1 = Math.min(i0 + BLOCK_INPUTS, inputSize);
+            for (int j0 = 0; j0 < outputSize; j0 += BLOCK_OUTPUTS) {
+                int j1 = Math.min(j0 + BLOCK_OUTPUTS, outputSize);
+                for (int t0 = 0; t0 < rows; t0 += BLOCK_ROWS) {
+                    int t1 = Math.min(t0 + BLOCK_ROWS, rows);
+                    for (int t = t0; t < t1; t++) {
+                        float[] xt = x[t];
+                        float[] yt = y[t];
+                        for (int j = j0; j < j1; j++)
+                            yt[j] = bfloat16
+                                    ?kernel.dotBFloat16(yt[j], w, j * inputSize + i0, xt, i0, i1 - i0)
+                                    :kernel.dotFloat16(yt[j], w, j * inputSize + i0, xt, i0, i1 - i0);
+                    }
+                }
+            }
+        }
+
+        for (int t = 0; t < rows; t++)
+            for (int j = 0; j < outputSize; j++)
+                y[t][j] += b[j];
+    }
+
+    /**
+     * Single vector forward pass y = w.x + b with 16 bit weights
+     * @param x             : input [inputSize]
+     * @param w             : weights [outputSize*inputSize], float16 or bfloat16
+     * @param bfloat16      : true if w is bfloat16, false if float16
+     * @param b             : biases [outputSize]
+     * @param y             : output [outputSize], overwritten
+     * @param inputSize     : input size
+     * @param outputSize    : output size
+     */
+    public static void forward(float[] x, short[] w, boolean bfloat16, float[] b, float[] y, int inputSize, int outputSize){
+        //y_j = sum_i(w_ji*x_i)+b_j
+        Kernel kernel = Kernel.get();
+        for (int j = 0; j < outputSize; j++)
+            y[j] = (bfloat16
+                    ?kernel.dotBFloat16(0, w, j * inputSize, x, 0, inputSize)
+                    :kernel.dotFloat16(0, w, j * inputSize, x, 0, inputSize)) + b[j];
+    }
+
+    /**
+     * Forward pass y = x.w^T + b with int8 weights, inputs are quantized on the fly
+     * @param x             : inputs [rows][inputSize]
+     * @param inputScale    : float value of one input step, inputs are clamped to +-127 steps
+     * @param w             : int8 weights [outputSize*inputSize]
+     * @param rowScales     : float value of one weight step of each output row [outputSize]
+     * @param b             : biases [outputSize]
+     * @param y             : outputs [rows][outputSize], overwritten
+     * @param inputSize     : input size
+     * @param outputSize    : output size
+     */
+    public static void forward(float[][] x, float inputScale, byte[] w, float[] rowScales, float[] b, float[][] y, int inputSize, int outputSize){
+        //y_tj = sum_i(wq_ji*xq_ti)*s_j*s_x+b_j
+        Kernel kernel = Kernel.get();
+        int rows = x.length;
+        byte[] xq = quantized(rows*inputSize);
+        for (int t = 0; t < rows; t++)
+            quantize(x[t], inputScale, xq, t*inputSize, inputSize);
+
+        for (int j0 = 0; j0 < outputSize; j0 += BLOCK_OUTPUTS) {
+            int j1 = Math.min(j0 + BLOCK_OUTPUTS, outputSize);
+            for (int t = 0; t < rows; t++) {
+                float[] yt = y[t];
+                for (int j = j0; j < j1; j++)
+                    yt[j] = kernel.dotInt8(w, j * inputSize, xq, t * inputSize, inputSize) * (rowScales[j] * inputScale) + b[j];
+            }
+        }
+    }
+
+    /**
+     * Single vector forward pass y = w.x + b with int8 weights, the input is quantized on the fly
+     * @param x             : input [inputSize]
+     * @param inputScale    : float value of one input step, inputs are clamped to +-127 steps
+     * @param w             : int8 weights [outputSize*inputSize]
+     * @param rowScales     : float value of one weight step of each output row [outputSize]
+     * @param b             : biases [outputSize]
+     * @param y             : output [outputSize], overwritten
+     * @param inputSize     : input size
+     * @param outputSize    : output size
+     */
+    public static void forward(float[] x, float inputScale, byte[] w, float[] rowScales, float[] b, float[] y, int inputSize, int outputSize){
+        //y_j = sum_i(wq_ji*xq_i)*s_j*s_x+b_j
+        Kernel kernel = Kernel.get();
+        byte[] xq = quantized(inputSize);
+        quantize(x, inputScale, xq, 0, inputSize);
+        for (int j = 0; j < outputSize; j++)
+            y[j] = kernel.dotInt8(w, j * inputSize, xq, 0, inputSize) * (rowScales[j] * inputScale) + b[j];
+    }
+
+    //q_i = clamp(round(x_i/scale),-127,127)
+    public static void quantize(float[] x, float scale, byte[] q, int offset, int length){
+        float inverse = scale>0?1/scale:0;
+        for (int i = 0; i < length; i++)
+            q[offset + i] = (byte) Math.max(-127, Math.min(127, Math.round(x[i]*inverse)));
+    }
+
+    //int8 buffer of the calling thread, at least size bytes
+    private static byte[] quantized(int size){
+        byte[] quantized = QUANTIZED.get();
+        if(quantized==null || quantized.length<size) {
+            quantized = new byte[size];
+            QUANTIZED.set(quantized);
+        }
+        return quantized;
+    }
+
+    //heap tile of the calling thread, at least size floats
+    private static float[] tile(int size){
+        float[] tile = TILE.get();
+        if(tile==null || tile.length<size) {
+            tile = new float[size];
+            TILE.set(tile);
+        }
+        return tile;
+    }
+}
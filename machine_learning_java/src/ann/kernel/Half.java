@@ -0,0 +1,61 @@
+package ann.kernel;
+
+/**
+ * Conversions between float and the 16 bit formats used to store weights, as raw shorts
+ * float16  : IEEE 754 binary16, 1 sign, 5 exponent, 10 mantissa bits, finite range +-65504
+ * bfloat16 : upper half of a float, 1 sign, 8 exponent, 7 mantissa bits, same range as float
+ * Both round to nearest even. toFloat16 saturates finite values beyond the float16 range to +-65504,
+ * so converted weights are always finite and the kernels can widen them without special cases
+ */
+public class Half {
+
+    public static short toFloat16(float value){
+        int bits = Float.floatToRawIntBits(value);
+        int sign = (bits >>> 16) & 0x8000;
+        int abs = bits & 0x7fffffff;
+        if(abs > 0x7f800000)//NaN
+            return (short) (sign | 0x7e00);
+        if(abs >= 0x477ff000)//rounds past 65504
+            return (short) (sign | 0x7bff);
+        if(abs < 0x38800000)//below 2^-14 : subnormal, m*2^-24
+            return (short) (sign | (int) Math.rint(Float.intBitsToFloat(abs)*0x1p24f));
+        //rebias the exponent from 127 to 15 and round the mantissa from 23 to 10 bits
+        int h = abs - (112 << 23);
+        h += 0xfff + ((h >>> 13) & 1);
+        return (short) (sign | (h >>> 13));
+    }
+
+    public static float fromFloat16(short value){
+        int bits = value & 0xffff;
+        if((bits & 0x7c00)==0x7c00)//infinity or NaN
+            return Float.intBitsToFloat(((bits & 0x8000) << 16) | 0x7f800000 | ((bits & 0x3ff) << 13));
+        //the magnitude bits shifted into a float are the value times 2^-112, for subnormals too
+        float magnitude = Float.intBitsToFloat((bits & 0x7fff) << 13)*0x1p112f;
+        return (bits & 0x8000)!=0?-magnitude:magnitude;
+    }
+
+    public static short toBFloat16(float value){
+        int bits = Float.floatToRawIntBits(value);
+        if((bits & 0x7fffffff) > 0x7f800000)//NaN, keep it quiet
+            return (short) ((bits >>> 16) | 0x40);
+        return (short) ((bits + 0x7fff + ((bits >>> 16) & 1)) >>> 16);
+    }
+
+    public static float fromBFloat16(short value){
+        return Float.intBitsToFloat(value << 16);
+    }
+
+    public static short[] toFloat16(float[] values){
+        short[] halves = new short[values.length];
+        for (int i = 0; i < values.length; i++)
+            halves[i] = toFloat16(values[i]);
+        return halves;
+    }
+
+    public static short[] toBFloat16(float[] values){
+        short[] halves = new short[values.length];
+        for (int i = 0; i < values.length; i++)
+            halves[i] = toBFloat16(values[i]);
+        return halves;
+    }
+}
@@ -0,0 +1,199 @@
+package ann.kernel;
+
+/**
+ * Scalar vector kernels (dot product, axpy, element-wise activations and the Adam update)
+ * This class is the portable fallback; VectorKernel overrides it with jdk.incubator.vector code
+ * The backend is chosen once at start up :
+ * -Dann.kernel=scalar forces this class,
+ * otherwise VectorKernel is used when the jdk.incubator.vector module is present (--add-modules jdk.incubator.vector);
+ * if it fails to load the scalar kernel is used and a warning is logged (System.Logger)
+ */
+public class Kernel {
+    private static final Kernel kernel = select();
+
+    public static Kernel get(){
+        return kernel;
+    }
+
+    private static Kernel select(){
+        if("scalar".equalsIgnoreCase(System.getProperty("ann.kernel")))
+            return new Kernel();
+        if(ModuleLayer.boot().findModule("jdk.incubator.vector").isEmpty())
+            return new Kernel();
+        try {
+            return (Kernel) Class.forName("ann.kernel.VectorKernel").getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError e) {
+            //e.g. a species the machine does not support, logged since the scalar kernel is several times slower
+            System.getLogger(Kernel.class.getName()).log(System.Logger.Level.WARNING, "vector kernel unavailable, using the scalar kernel", e);
+            return new Kernel();
+        }
+    }
+
+    public String getName(){
+        return "SCALAR";
+    }
+
+    //sum + sum_i(a_i*b_i)
+    public float dot(float sum, float[] a, int aOffset, float[] b, int bOffset, int length){
+        for (int i = 0; i < length; i++)
+            sum += a[aOffset + i] * b[bOffset + i];
+        return sum;
+    }
+
+    //sum + sum_i(float(a_i)*b_i), a holds finite float16 values (see Half)
+    public float dotFloat16(float sum, short[] a, int aOffset, float[] b, int bOffset, int length){
+        for (int i = 0; i < length; i++) {
+            //a_i is sign extended, so a_i<<13 has the sign in bit 31 and copies of it in bits 30..28 above exponent and mantissa;
+            //clearing those gives a float equal to the value times 2^-112 (Half.fromFloat16 without the special cases)
+            float w = Float.intBitsToFloat((a[aOffset + i] << 13) & 0x8fffe000) * 0x1p112f;
+            sum += w * b[bOffset + i];
+        }
+        return sum;
+    }
+
+    //sum + sum_i(float(a_i)*b_i), a holds bfloat16 values (see Half)
+    public float dotBFloat16(float sum, short[] a, int aOffset, float[] b, int bOffset, int length){
+        for (int i = 0; i < length; i++)
+            sum += Half.fromBFloat16(a[aOffset + i]) * b[bOffset + i];
+        return sum;
+    }
+
+    //sum_i(a_i*b_i) of int8 values, accumulated in int (exact for length < 2^17)
+    public int dotInt8(byte[] a, int aOffset, byte[] b, int bOffset, int length){
+        int sum = 0;
+        for (int i = 0; i < length; i++)
+            sum += a[aOffset + i] * b[bOffset + i];
+        return sum;
+    }
+
+    //y_i += alpha*x_i
+    public void axpy(float alpha, float[] x, int xOffset, float[] y, int yOffset, int length){
+        for (int i = 0; i < length; i++)
+            y[yOffset + i] += alpha * x[xOffset + i];
+    }
+
+    //y_i = 1/(1+exp(-x_i))
+    public void sigmoid(float[] x, float[] y, int length){
+        for (int i = 0; i < length; i++)
+            y[i] = (float) (1/(1+Math.exp(-x[i])));
+    }
+
+    //y_i = sigmoid(x_i), see FastMath
+    public void fastSigmoid(float[] x, float[] y, int length){
+        for (int i = 0; i < length; i++)
+            y[i] = FastMath.sigmoid(x[i]);
+    }
+
+    //dx_i = dy_i*y_i*(1-y_i) with y = sigmoid(x)
+    public void sigmoidGradient(float[] y, float[] dy, float[] dx, int length){
+        for (int i = 0; i < length; i++)
+            dx[i] = dy[i]*(y[i]*(1-y[i]));
+    }
+
+    //y_i = tanh(x_i)
+    public void tanh(float[] x, float[] y, int length){
+        for (int i = 0; i < length; i++)
+            y[i] = (float) Math.tanh(x[i]);
+    }
+
+    //y_i = tanh(x_i), see FastMath
+    public void fastTanh(float[] x, float[] y, int length){
+        for (int i = 0; i < length; i++)
+            y[i] = FastMath.tanh(x[i]);
+    }
+
+    //y_i = exp(x_i-shift), returns sum_i(y_i)
+    public float exp(float[] x, float shift, float[] y, int length){
+        float sum = 0;
+        for (int i = 0; i < length; i++) {
+            y[i] = (float) Math.exp(x[i]-shift);
+            sum += y[i];
+        }
+        return sum;
+    }
+
+    //y_i = exp(x_i-shift), returns sum_i(y_i), see FastMath
+    public float fastExp(float[] x, float shift, float[] y, int length){
+        float sum = 0;
+        for (int i = 0; i < length; i++) {
+            y[i] = FastMath.exp(x[i]-shift);
+            sum += y[i];
+        }
+        return sum;
+    }
+
+    //dx_i = dy_i*(1-y_i^2) with y = tanh(x)
+    public void tanhGradient(float[] y, float[] dy, float[] dx, int length){
+        for (int i = 0; i < length; i++)
+            dx[i] = dy[i]*(float) (1-Math.pow(y[i],2));
+    }
+
+    //y_i = max(x_i,0)
+    public void relu(float[] x, float[] y, int length){
+        for (int i = 0; i < length; i++)
+            y[i] = Math.max(x[i],0);
+    }
+
+    //dx_i = dy_i for y_i>0 with y = max(x,0)
+    //dx_i = 0 otherwise
+    public void reluGradient(float[] y, float[] dy, float[] dx, int length){
+        for (int i = 0; i < length; i++)
+            dx[i] = dy[i]*(y[i]>0?1:0);
+    }
+
+    //one Adam step over length parameters from pOffset, with gradients from gradOffset,
+    //everything that depends on the step count is folded into stepSize and correction :
+    //g_i = scale*grad_i
+    //m_i = beta1*m_i+(1-beta1)*g_i
+    //v_i = beta2*v_i+(1-beta2)*g_i^2
+    //p_i -= stepSize*m_i/(sqrt(correction*v_i)+epsilon) + decay*p_i
+    public void adam(float[] p, int pOffset, float[] grad, int gradOffset, float[] m, float[] v, int length, float scale,
+                     float beta1, float beta2, float stepSize, float correction, float epsilon, float decay){
+        for (int i = 0; i < length; i++) {
+            float g = scale*grad[gradOffset + i];
+            m[i] = beta1*m[i] + (1-beta1)*g;
+            v[i] = beta2*v[i] + (1-beta2)*g*g;
+            p[pOffset + i] -= stepSize*m[i]/((float) Math.sqrt(correction*v[i])+epsilon) + decay*p[pOffset + i];
+        }
+    }
+
+    //adam(...) over p[offset..offset+length) with the moments stored as Float8 codes times mScale (signed) and vScale (unsigned);
+    //the codes are only read, the updated moments are left in mBlock,vBlock for the caller to quantize
+    public void adamFloat8(float[] p, float[] grad, byte[] m, byte[] v, int offset, int length, float mScale, float vScale,
+                           float[] mBlock, float[] vBlock, float scale, float beta1, float beta2, float stepSize, float correction, float epsilon, float decay){
+        for (int i = 0; i < length; i++) {
+            int k = offset + i;
+            float g = scale*grad[k];
+            float mi = beta1*mScale*Float8.fromSigned(m[k]) + (1-beta1)*g;
+            float vi = beta2*vScale*Float8.fromUnsigned(v[k]) + (1-beta2)*g*g;
+            p[k] -= stepSize*mi/((float) Math.sqrt(correction*vi)+epsilon) + decay*p[k];
+            mBlock[i] = mi;
+            vBlock[i] = vi;
+        }
+    }
+
+    //max_i(|x_i|)
+    public float absMax(float[] x, int length){
+        float max = 0;
+        for (int i = 0; i < length; i++)
+            max = Math.max(max, Math.abs(x[i]));
+        return max;
+    }
+
+    //y_offset+i = Float8.toSigned(scale*x_i), scale*x_i in [-1,1]
+    public void toSignedFloat8(float[] x, float scale, byte[] y, int offset, int length){
+        for (int i = 0; i < length; i++)
+            y[offset + i] = Float8.toSigned(scale*x[i]);
+    }
+
+    //y_offset+i = Float8.toUnsigned(scale*x_i), scale*x_i in [0,1]
+    public void toUnsignedFloat8(float[] x, float scale, byte[] y, int offset, int length){
+        for (int i = 0; i < length; i++)
+            y[offset + i] = Float8.toUnsigned(scale*x[i]);
+    }
+
+    @Override
+    public String toString() {
+        return getName();
+    }
+}
@@ -0,0 +1,470 @@
+package ann.kernel;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.ShortVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * SIMD kernels on the jdk.incubator.vector API, using the widest species of the machine
+ * Needs --add-modules jdk.incubator.vector at compile and run time;
+ * Kernel.get() only loads this class reflectively, so the rest of the code runs without the module
+ * dot reassociates the sum across lanes, so results differ from the scalar kernel in the last bits
+ * Rows shorter than two vectors go to the scalar code, where lane setup and reduction cost more than they save
+ * Needs float vectors of 128 bits at least (16 bit weights are loaded in half of one), below that Kernel falls back to the scalar kernel
+ */
+public class VectorKernel extends Kernel {
+    private static final VectorSpecies<Float> SPECIES = FloatVector.SPECIES_PREFERRED;
+    private static final int MIN_LENGTH = 2 * SPECIES.length();
+    //16 bit weights are loaded with as many lanes as a float vector, in half its width, then widened
+    private static final VectorSpecies<Short> HALF_SPECIES = VectorSpecies.of(short.class, VectorShape.forBitSize(SPECIES.vectorBitSize() / 2));
+    private static final VectorSpecies<Integer> INT_SPECIES = VectorSpecies.of(int.class, SPECIES.vectorShape());
+    //int8 values are loaded in a quarter of the width, but in 64 bits at least (the narrowest shape), then widened to BYTE_PARTS int vectors
+    private static final VectorSpecies<Byte> BYTE_SPECIES = VectorSpecies.of(byte.class, VectorShape.forBitSize(Math.max(64, SPECIES.vectorBitSize() / 4)));
+    private static final int BYTE_PARTS = BYTE_SPECIES.length() / INT_SPECIES.length();
+
+    @Override
+    public String getName() {
+        return "VECTOR_" + SPECIES.vectorBitSize();
+    }
+
+    @Override
+    public float dot(float sum, float[] a, int aOffset, float[] b, int bOffset, int length) {
+        if (length < MIN_LENGTH)
+            return super.dot(sum, a, aOffset, b, bOffset, length);
+        FloatVector acc = FloatVector.zero(SPECIES);
+        int upper = SPECIES.loopBound(length);
+        int i = 0;
+        for (; i < upper; i += SPECIES.length()) {
+            FloatVector va = FloatVector.fromArray(SPECIES, a, aOffset + i);
+            FloatVector vb = FloatVector.fromArray(SPECIES, b, bOffset + i);
+            acc = va.fma(vb, acc);
+        }
+        sum += acc.reduceLanes(VectorOperators.ADD);
+        for (; i < length; i++)
+            sum += a[aOffset + i] * b[bOffset + i];
+        return sum;
+    }
+
+    @Override
+    public float dotFloat16(float sum, short[] a, int aOffset, float[] b, int bOffset, int length) {
+        if (length < MIN_LENGTH)
+            return super.dotFloat16(sum, a, aOffset, b, bOffset, length);
+        FloatVector acc = FloatVector.zero(SPECIES);
+        int upper = SPECIES.loopBound(length);
+        int i = 0;
+        for (; i < upper; i += SPECIES.length()) {
+            //same bit manipulation as Kernel.dotFloat16
+            FloatVector va = widen(a, aOffset + i).lanewise(VectorOperators.LSHL, 13).and(0x8fffe000).reinterpretAsFloats().mul(0x1p112f);
+            FloatVector vb = FloatVector.fromArray(SPECIES, b, bOffset + i);
+            acc = va.fma(vb, acc);
+        }
+        sum += acc.reduceLanes(VectorOperators.ADD);
+        return super.dotFloat16(sum, a, aOffset + i, b, bOffset + i, length - i);
+    }
+
+    @Override
+    public float dotBFloat16(float sum, short[] a, int aOffset, float[] b, int bOffset, int length) {
+        if (length < MIN_LENGTH)
+            return super.dotBFloat16(sum, a, aOffset, b, bOffset, length);
+        FloatVector acc = FloatVector.zero(SPECIES);
+        int upper = SPECIES.loopBound(length);
+        int i = 0;
+        for (; i < upper; i += SPECIES.length()) {
+            FloatVector va = widen(a, aOffset + i).lanewise(VectorOperators.LSHL, 16).reinterpretAsFloats();
+            FloatVector vb = FloatVector.fromArray(SPECIES, b, bOffset + i);
+            acc = va.fma(vb, acc);
+        }
+        sum += acc.reduceLanes(VectorOperators.ADD);
+        return super.dotBFloat16(sum, a, aOffset + i, b, bOffset + i, length - i);
+    }
+
+    @Override
+    public int dotInt8(byte[] a, int aOffset, byte[] b, int bOffset, int length) {
+        if (length < MIN_LENGTH)
+            return super.dotInt8(a, aOffset, b, bOffset, length);
+        IntVector acc = IntVector.zero(INT_SPECIES);
+        int upper = BYTE_SPECIES.loopBound(length);
+        int i = 0;
+        for (; i < upper; i += BYTE_SPECIES.length()) {
+            ByteVector va = ByteVector.fromArray(BYTE_SPECIES, a, aOffset + i);
+            ByteVector vb = ByteVector.fromArray(BYTE_SPECIES, b, bOffset + i);
+            for (int part = 0; part < BYTE_PARTS; part++)
+                acc = acc.add(widen(va, part).mul(widen(vb, part)));
+        }
+        return acc.reduceLanes(VectorOperators.ADD) + super.dotInt8(a, aOffset + i, b, bOffset + i, length - i);
+    }
+
+    //SPECIES.length() shorts sign extended to ints
+    private static IntVector widen(short[] a, int offset) {
+        return (IntVector) ShortVector.fromArray(HALF_SPECIES, a, offset).convertShape(VectorOperators.S2I, INT_SPECIES, 0);
+    }
+
+    //bytes part*INT_SPECIES.length() to (part+1)*INT_SPECIES.length() of a, sign extended to ints
+    private static IntVector widen(ByteVector a, int part) {
+        return (IntVector) a.convertShape(VectorOperators.B2I, INT_SPECIES, part);
+    }
+
+    //c narrowed to bytes, in lanes part*INT_SPECIES.length() to (part+1)*INT_SPECIES.length() of a byte vector, the other lanes 0
+    private static ByteVector narrow(IntVector c, int part) {
+        return (ByteVector) c.convertShape(VectorOperators.I2B, BYTE_SPECIES, -part);
+    }
+
+    @Override
+    public void axpy(float alpha, float[] x, int xOffset, float[] y, int yOffset, int length) {
+        if (length < MIN_LENGTH) {
+            super.axpy(alpha, x, xOffset, y, yOffset, length);
+            return;
+        }
+        int upper = SPECIES.loopBound(length);
+        int i = 0;
+        for (; i < upper; i += SPECIES.length()) {
+            FloatVector vx = FloatVector.fromArray(SPECIES, x, xOffset + i);
+            FloatVector vy = FloatVector.fromArray(SPECIES, y, yOffset + i);
+            vx.mul(alpha).add(vy).intoArray(y, yOffset + i);
+        }
+        for (; i < length; i++)
+            y[yOffset + i] += alpha * x[xOffset + i];
+    }
+
+    @Override
+    public void sigmoid(float[] x, float[] y, int length) {
+        if (length < MIN_LENGTH) {
+            super.sigmoid(x, y, length);
+            return;
+        }
+        int upper = SPECIES.loopBound(length);
+        int i = 0;
+        for (; i < upper; i += SPECIES.length()) {
+            sigmoid(FloatVector.fromArray(SPECIES, x, i)).intoArray(y, i);
+        }
+        if (i < length) {
+            VectorMask<Float> mask = SPECIES.indexInRange(i, length);
+            sigmoid(FloatVector.fromArray(SPECIES, x, i, mask)).intoArray(y, i, mask);
+        }
+    }
+
+    @Override
+    public void sigmoidGradient(float[] y, float[] dy, float[] dx, int length) {
+        if (length < MIN_LENGTH) {
+            super.sigmoidGradient(y, dy, dx, length);
+            return;
+        }
+        int upper = SPECIES.loopBound(length);
+        int i = 0;
+        for (; i < upper; i += SPECIES.length()) {
+            FloatVector f = FloatVector.fromArray(SPECIES, y, i);
+            FloatVector g = FloatVector.fromArray(SPECIES, dy, i);
+            g.mul(f.mul(f.neg().add(1))).intoArray(dx, i);
+        }
+        if (i < length) {
+            VectorMask<Float> mask = SPECIES.indexInRange(i, length);
+            FloatVector f = FloatVector.fromArray(SPECIES, y, i, mask);
+            FloatVector g = FloatVector.fromArray(SPECIES, dy, i, mask);
+            g.mul(f.mul(f.neg().add(1))).intoArray(dx, i, mask);
+        }
+    }
+
+    @Override
+    public void tanh(float[] x, float[] y, int length) {
+        if (length < MIN_LENGTH) {
+            super.tanh(x, y, length);
+            return;
+        }
+        int upper = SPECIES.loopBound(length);
+        int i = 0;
+        for (; i < upper; i += SPECIES.length()) {
+            FloatVector.fromArray(SPECIES, x, i).lanewise(VectorOperators.TANH).intoArray(y, i);
+        }
+        if (i < length) {
+            VectorMask<Float> mask = SPECIES.indexInRange(i, length);
+            FloatVector.fromArray(SPECIES, x, i, mask).lanewise(VectorOperators.TANH).intoArray(y, i, mask);
+        }
+    }
+
+    @Override
+    public float exp(float[] x, float shift, float[] y, int length) {
+        if (length < MIN_LENGTH)
+            return super.exp(x, shift, y, length);
+        FloatVector acc = FloatVector.zero(SPECIES);
+        int upper = SPECIES.loopBound(length);
+        int i = 0;
+        for (; i < upper; i += SPECIES.length()) {
+            FloatVector e = FloatVector.fromArray(SPECIES, x, i).sub(shift).lanewise(VectorOperators.EXP);
+            e.intoArray(y, i);
+            acc = acc.add(e);
+        }
+        if (i < length) {
+            VectorMask<Float> mask = SPECIES.indexInRange(i, length);
+            FloatVector e = FloatVector.fromArray(SPECIES, x, i, mask).sub(shift).lanewise(VectorOperators.EXP);
+            e.intoArray(y, i, mask);
+            acc = acc.add(e, mask);
+        }
+        return acc.reduceLanes(VectorOperators.ADD);
+    }
+
+    @Override
+    public void tanhGradient(float[] y, float[] dy, float[] dx, int length) {
+        if (length < MIN_LENGTH) {
+            super.tanhGradient(y, dy, dx, length);
+            return;
+        }
+        int upper = SPECIES.loopBound(length);
+        int i = 0;
+        for (; i < upper; i += SPECIES.length()) {
+            FloatVector f = FloatVector.fromArray(SPECIES, y, i);
+            FloatVector g = FloatVector.fromArray(SPECIES, dy, i);
+            g.mul(f.mul(f).neg().add(1)).intoArray(dx, i);
+        }
+        if (i < length) {
+            VectorMask<Float> mask = SPECIES.indexInRange(i, length);
+            FloatVector f = FloatVector.fromArray(SPECIES, y, i, mask);
+            FloatVector g = FloatVector.fromArray(SPECIES, dy, i, mask);
+            g.mul(f.mul(f).neg().add(1)).intoArray(dx, i, mask);
+        }
+    }
+
+    @Override
+    public void fastSigmoid(float[] x, float[] y, int length) {
+        if (length < MIN_LENGTH) {
+            super.fastSigmoid(x, y, length);
+            return;
+        }
+        int upper = SPECIES.loopBound(length);
+        int i = 0;
+        for (; i < upper; i += SPECIES.length()) {
+            fastSigmoid(FloatVector.fromArray(SPECIES, x, i)).intoArray(y, i);
+        }
+        if (i < length) {
+            VectorMask<Float> mask = SPECIES.indexInRange(i, length);
+            fastSigmoid(FloatVector.fromArray(SPECIES, x, i, mask)).intoArray(y, i, mask);
+        }
+    }
+
+    @Override
+    public void fastTanh(float[] x, float[] y, int length) {
+        if (length < MIN_LENGTH) {
+            super.fastTanh(x, y, length);
+            return;
+        }
+        int upper = SPECIES.loopBound(length);
+        int i = 0;
+        for (; i < upper; i += SPECIES.length()) {
+            fastTanh(FloatVector.fromArray(SPECIES, x, i)).intoArray(y, i);
+        }
+        if (i < length) {
+            VectorMask<Float> mask = SPECIES.indexInRange(i, length);
+            fastTanh(FloatVector.fromArray(SPECIES, x, i, mask)).intoArray(y, i, mask);
+        }
+    }
+
+    @Override
+    public float fastExp(float[] x, float shift, float[] y, int length) {
+        if (length < MIN_LENGTH)
+            return super.fastExp(x, shift, y, length);
+        FloatVector acc = FloatVector.zero(SPECIES);
+        int upper = SPECIES.loopBound(length);
+        int i = 0;
+        for (; i < upper; i += SPECIES.length()) {
+            FloatVector e = fastExp(FloatVector.fromArray(SPECIES, x, i).sub(shift));
+            e.intoArray(y, i);
+            acc = acc.add(e);
+        }
+        if (i < length) {
+            VectorMask<Float> mask = SPECIES.indexInRange(i, length);
+            FloatVector e = fastExp(FloatVector.fromArray(SPECIES, x, i, mask).sub(shift));
+            e.intoArray(y, i, mask);
+            acc = acc.add(e, mask);
+        }
+        return acc.reduceLanes(VectorOperators.ADD);
+    }
+
+    @Override
+    public void relu(float[] x, float[] y, int length) {
+        if (length < MIN_LENGTH) {
+            super.relu(x, y, length);
+            return;
+        }
+        int upper = SPECIES.loopBound(length);
+        int i = 0;
+        for (; i < upper; i += SPECIES.length()) {
+            FloatVector.fromArray(SPECIES, x, i).max(0).intoArray(y, i);
+        }
+        if (i < length) {
+            VectorMask<Float> mask = SPECIES.indexInRange(i, length);
+            FloatVector.fromArray(SPECIES, x, i, mask).max(0).intoArray(y, i, mask);
+        }
+    }
+
+    @Override
+    public void reluGradient(float[] y, float[] dy, float[] dx, int length) {
+        if (length < MIN_LENGTH) {
+            super.reluGradient(y, dy, dx, length);
+            return;
+        }
+        int upper = SPECIES.loopBound(length);
+        int i = 0;
+        for (; i < upper; i += SPECIES.length()) {
+            VectorMask<Float> positive = FloatVector.fromArray(SPECIES, y, i).compare(VectorOperators.GT, 0);
+            FloatVector.zero(SPECIES).blend(FloatVector.fromArray(SPECIES, dy, i), positive).intoArray(dx, i);
+        }
+        if (i < length) {
+            VectorMask<Float> mask = SPECIES.indexInRange(i, length);
+            VectorMask<Float> positive = FloatVector.fromArray(SPECIES, y, i, mask).compare(VectorOperators.GT, 0);
+            FloatVector.zero(SPECIES).blend(FloatVector.fromArray(SPECIES, dy, i, mask), positive).intoArray(dx, i, mask);
+        }
+    }
+
+    @Override
+    public void adam(float[] p, int pOffset, float[] grad, int gradOffset, float[] m, float[] v, int length, float scale,
+                     float beta1, float beta2, float stepSize, float correction, float epsilon, float decay) {
+        if (length < MIN_LENGTH) {
+            super.adam(p, pOffset, grad, gradOffset, m, v, length, scale, beta1, beta2, stepSize, correction, epsilon, decay);
+            return;
+        }
+        int upper = SPECIES.loopBound(length);
+        int i = 0;
+        for (; i < upper; i += SPECIES.length()) {
+            FloatVector g = FloatVector.fromArray(SPECIES, grad, gradOffset + i).mul(scale);
+            FloatVector vm = FloatVector.fromArray(SPECIES, m, i).mul(beta1).add(g.mul(1-beta1));
+            FloatVector vv = FloatVector.fromArray(SPECIES, v, i).mul(beta2).add(g.mul(g).mul(1-beta2));
+            FloatVector vp = FloatVector.fromArray(SPECIES, p, pOffset + i);
+            vm.intoArray(m, i);
+            vv.intoArray(v, i);
+            FloatVector denominator = vv.mul(correction).sqrt().add(epsilon);
+            vp.sub(vm.mul(stepSize).div(denominator).add(vp.mul(decay))).intoArray(p, pOffset + i);
+        }
+        for (; i < length; i++) {
+            float g = scale*grad[gradOffset + i];
+            m[i] = beta1*m[i] + (1-beta1)*g;
+            v[i] = beta2*v[i] + (1-beta2)*g*g;
+            p[pOffset + i] -= stepSize*m[i]/((float) Math.sqrt(correction*v[i])+epsilon) + decay*p[pOffset + i];
+        }
+    }
+
+    //Float8 codes are widened to ints and turned into float bits with integer operations only:
+    //bits = (|c|+bias)<<SHIFT, and-ed with -min(|c|,1) so code 0 gives 0, or-ed with the sign of c
+    @Override
+    public void adamFloat8(float[] p, float[] grad, byte[] m, byte[] v, int offset, int length, float mScale, float vScale,
+                           float[] mBlock, float[] vBlock, float scale, float beta1, float beta2, float stepSize, float correction, float epsilon, float decay) {
+        int upper = length < MIN_LENGTH ? 0 : BYTE_SPECIES.loopBound(length);
+        int i = 0;
+        for (; i < upper; i += BYTE_SPECIES.length()) {
+            ByteVector bm = ByteVector.fromArray(BYTE_SPECIES, m, offset + i);
+            ByteVector bv = ByteVector.fromArray(BYTE_SPECIES, v, offset + i);
+            for (int part = 0; part < BYTE_PARTS; part++) {
+                int j = i + part * SPECIES.length();
+                int k = offset + j;
+                IntVector cm = widen(bm, part);
+                IntVector am = cm.lanewise(VectorOperators.ABS);
+                FloatVector vm = am.add(Float8.SIGNED_BIAS).lanewise(VectorOperators.LSHL, Float8.SHIFT).and(am.min(1).neg())
+                        .or(cm.and(0x80000000)).reinterpretAsFloats().mul(mScale);
+                IntVector cv = widen(bv, part).and(0xff);
+                FloatVector vv = cv.add(Float8.UNSIGNED_BIAS).lanewise(VectorOperators.LSHL, Float8.SHIFT).and(cv.min(1).neg())
+                        .reinterpretAsFloats().mul(vScale);
+                FloatVector g = FloatVector.fromArray(SPECIES, grad, k).mul(scale);
+                vm = vm.mul(beta1).add(g.mul(1-beta1));
+                vv = vv.mul(beta2).add(g.mul(g).mul(1-beta2));
+                FloatVector vp = FloatVector.fromArray(SPECIES, p, k);
+                vp.sub(vm.mul(stepSize).div(vv.mul(correction).sqrt().add(epsilon)).add(vp.mul(decay))).intoArray(p, k);
+                vm.intoArray(mBlock, j);
+                vv.intoArray(vBlock, j);
+            }
+        }
+        for (; i < length; i++) {
+            int k = offset + i;
+            float g = scale*grad[k];
+            float mi = beta1*mScale*Float8.fromSigned(m[k]) + (1-beta1)*g;
+            float vi = beta2*vScale*Float8.fromUnsigned(v[k]) + (1-beta2)*g*g;
+            p[k] -= stepSize*mi/((float) Math.sqrt(correction*vi)+epsilon) + decay*p[k];
+            mBlock[i] = mi;
+            vBlock[i] = vi;
+        }
+    }
+
+    @Override
+    public float absMax(float[] x, int length) {
+        if (length < MIN_LENGTH)
+            return super.absMax(x, length);
+        FloatVector max = FloatVector.zero(SPECIES);
+        int upper = SPECIES.loopBound(length);
+        int i = 0;
+        for (; i < upper; i += SPECIES.length())
+            max = max.max(FloatVector.fromArray(SPECIES, x, i).abs());
+        float result = max.reduceLanes(VectorOperators.MAX);
+        for (; i < length; i++)
+            result = Math.max(result, Math.abs(x[i]));
+        return result;
+    }
+
+    //c = (bits(|scale*x_i|)+ROUND>>SHIFT)-bias, at least 0, then negated where x_i<0 with (c^s)-s, s = sign bit spread
+    @Override
+    public void toSignedFloat8(float[] x, float scale, byte[] y, int offset, int length) {
+        int upper = length < MIN_LENGTH ? 0 : BYTE_SPECIES.loopBound(length);
+        int i = 0;
+        for (; i < upper; i += BYTE_SPECIES.length()) {
+            ByteVector codes = ByteVector.zero(BYTE_SPECIES);
+            for (int part = 0; part < BYTE_PARTS; part++) {
+                FloatVector vx = FloatVector.fromArray(SPECIES, x, i + part * SPECIES.length()).mul(scale);
+                IntVector c = vx.abs().reinterpretAsInts().add(Float8.ROUND).lanewise(VectorOperators.ASHR, Float8.SHIFT).sub(Float8.SIGNED_BIAS).max(0);
+                IntVector sign = vx.reinterpretAsInts().lanewise(VectorOperators.ASHR, 31);
+                codes = codes.or(narrow(c.lanewise(VectorOperators.XOR, sign).sub(sign), part));
+            }
+            codes.intoArray(y, offset + i);
+        }
+        for (; i < length; i++)
+            y[offset + i] = Float8.toSigned(scale*x[i]);
+    }
+
+    @Override
+    public void toUnsignedFloat8(float[] x, float scale, byte[] y, int offset, int length) {
+        int upper = length < MIN_LENGTH ? 0 : BYTE_SPECIES.loopBound(length);
+        int i = 0;
+        for (; i < upper; i += BYTE_SPECIES.length()) {
+            ByteVector codes = ByteVector.zero(BYTE_SPECIES);
+            for (int part = 0; part < BYTE_PARTS; part++) {
+                IntVector c = FloatVector.fromArray(SPECIES, x, i + part * SPECIES.length()).mul(scale).reinterpretAsInts()
+                        .add(Float8.ROUND).lanewise(VectorOperators.ASHR, Float8.SHIFT).sub(Float8.UNSIGNED_BIAS).max(0);
+                codes = codes.or(narrow(c, part));
+            }
+            codes.intoArray(y, offset + i);
+        }
+        for (; i < length; i++)
+            y[offset + i] = Float8.toUnsigned(scale*x[i]);
+    }
+
+    //1/(1+exp(-x))
+    private static FloatVector sigmoid(FloatVector x){
+        return FloatVector.broadcast(SPECIES, 1).div(x.neg().lanewise(VectorOperators.EXP).add(1));
+    }
+
+    //FastMath.exp(...) in every lane, with the same operations in the same order, so the values are the same as the scalar kernel's
+    //where the EXP operator has a vector math stub (SVML on x86) it can be faster than this, without one it runs Math.exp lane by lane
+    private static FloatVector fastExp(FloatVector x){
+        x = x.max(FastMath.MIN_EXP).min(FastMath.MAX_EXP);
+        FloatVector t = x.mul(FastMath.LOG2E).add(FastMath.ROUND);
+        FloatVector n = t.sub(FastMath.ROUND);
+        FloatVector r = x.sub(n.mul(FastMath.LN2_HI)).sub(n.mul(FastMath.LN2_LO));
+        FloatVector p = r.mul(FastMath.P0).add(FastMath.P1);
+        p = p.mul(r).add(FastMath.P2);
+        p = p.mul(r).add(FastMath.P3);
+        p = p.mul(r).add(FastMath.P4);
+        p = p.mul(r).add(FastMath.P5);
+        p = p.mul(r).mul(r).add(r).add(1);
+        return p.mul(t.viewAsIntegralLanes().add(FastMath.SCALE_BIAS).lanewise(VectorOperators.LSHL, 23).viewAsFloatingLanes());
+    }
+
+    //1/(1+exp(-x)), see FastMath.sigmoid(...)
+    private static FloatVector fastSigmoid(FloatVector x){
+        return FloatVector.broadcast(SPECIES, 1).div(fastExp(x.neg()).add(1));
+    }
+
+    //1-2/(1+exp(2x)), see FastMath.tanh(...)
+    private static FloatVector fastTanh(FloatVector x){
+        return FloatVector.broadcast(SPECIES, 1).sub(FloatVector.broadcast(SPECIES, 2).div(fastExp(x.mul(2)).add(1)));
+    }
+}
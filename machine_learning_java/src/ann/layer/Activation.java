@@ -1,8 +1,12 @@
 package ann.layer;
 
 import ann.Layer;
+import ann.Workspace;
+import ann.kernel.FastMath;
 
 public class Activation extends Layer {
+    protected Boolean fastMath;//null follows FastMath.isEnabled()
+
     public Activation(){
         super(0,0);
         name = "ACTIVATION";
@@ -13,48 +17,101 @@ public class Activation extends Layer {
         inputSize = inputs[0].length;
         outputSize = inputSize;
         //y_i = f(x_i,0)
-        x = new float[inputs.length][inputSize];
-        float[][] y = new float[inputs.length][outputSize];
+        y = Workspace.matrix(y, inputs.length, outputSize);
+        if(hasOutputGradient()) {
+            //backward only needs y
+            for (int t = 0; t < inputs.length; t++)
+                f(inputs[t], y[t], inputSize);
+            return y;
+        }
+        x = Workspace.matrix(x, inputs.length, inputSize);
         for (int t = 0; t < inputs.length; t++) {
-            for (int i = 0; i < inputs[t].length; i++) {
-                x[t][i] = inputs[t][i];
-                y[t][i] = f(x[t][i]);
-            }
+            System.arraycopy(inputs[t], 0, x[t], 0, inputSize);
+            f(x[t], y[t], inputSize);
         }
         return y;
     }
 
+    /**
+     * Uses the FastMath approximations (or not) in this layer, whatever the global setting
+     * Not saved with the network
+     * @param fastMath  : true for FastMath, false for exact math, null to follow FastMath.isEnabled()
+     * @return          : this
+     */
+    public Activation setFastMath(Boolean fastMath) {
+        this.fastMath = fastMath;
+        return this;
+    }
+
+    protected boolean isFastMath(){
+        return fastMath!=null?fastMath:FastMath.isEnabled();
+    }
+
     //f(x) = 1/(1+exp(-x))
     protected float f(float x){
+        if(isFastMath())
+            return FastMath.sigmoid(x);
         return (float) (1/(1+Math.exp(-x)));
     }
 
     //f'(x) = f(x)*(1-f(x))
     protected float df(float x){
-        return f(x)*(1-f(x));
+        float f = f(x);
+        return f*(1-f);
+    }
+
+    //y_i = f(x_i) for a whole row, overridden by activations with a vector kernel
+    protected void f(float[] x, float[] y, int length){
+        for (int i = 0; i < length; i++)
+            y[i] = f(x[i]);
+    }
+
+    //dx_i = dy_i * f'(x_i) for a whole row
+    protected void df(float[] x, float[] dy, float[] dx, int length){
+        for (int i = 0; i < length; i++)
+            dx[i] = dy[i]*df(x[i]);
+    }
+
+    //true when f'(x) can be computed from y = f(x); backward then uses the cached output and the input is not kept
+    public boolean hasOutputGradient(){
+        return false;
+    }
+
+    //dx_i = dy_i * f'(x_i) from y_i = f(x_i), for activations with hasOutputGradient()
+    protected void dfOutput(float[] y, float[] dy, float[] dx, int length){
+        throw new UnsupportedOperationException(name + " has no output gradient");
     }
 
     @Override
-    public float[][] gradient(float[]... gradients) {
+    public float[][] backward(float[]... gradients) {
         //dx_i = dy_i * f'(x)
-        float[][] dx = new float[gradients.length][inputSize];
-        for (int t = 0; t < gradients.length; t++) {
-            for (int i = 0; i < gradients[t].length; i++) {
-                dx[t][i] = gradients[t][i]*df(x[t][i]);
-            }
+        dx = Workspace.matrix(dx, gradients.length, inputSize);
+        if(hasOutputGradient()) {
+            for (int t = 0; t < gradients.length; t++)
+                dfOutput(y[t], gradients[t], dx[t], inputSize);
+            return dx;
         }
+        for (int t = 0; t < gradients.length; t++)
+            df(x[t], gradients[t], dx[t], inputSize);
         return dx;
     }
 
     @Override
     public float[] predict(float... inputs) {
         float[] y = new float[inputs.length];
-        for (int i = 0; i < inputs.length; i++) {
-            y[i] = f(inputs[i]);
-        }
+        f(inputs, y, inputs.length);
         return y;
     }
 
+    @Override
+    public void predict(float[] inputs, float[] outputs) {
+        f(inputs, outputs, inputs.length);
+    }
+
+    @Override
+    public int getOutputSize(int inputSize) {
+        return inputSize;
+    }
 
     @Override
     public String toString() {
@@ -0,0 +1,466 @@
+package ann.layer;
+
+import ann.Checkpoint;
+import ann.Layer;
+import ann.Optimizer;
+import ann.Profiler;
+import ann.Workspace;
+import ann.kernel.Gemm;
+import ann.kernel.Kernel;
+import ann.layer.activation.Softmax;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Multi-head self attention over a sequence of length tokens of size values each, token i is x[i*size..(i+1)*size)
+ * q,k,v = x.wqkv^T+bqkv in one Gemm, per head o_i = sum_j(softmax_j(q_i.k_j/sqrt(headSize))*v_j), y = o.wo^T+bo
+ * The scores are never stored : queries are taken BLOCK_QUERIES at a time against BLOCK_KEYS keys at a time,
+ * each query keeps the running max m and sum l of its exponentials and its output is rescaled when m grows (online softmax),
+ * the exponentials are the ones of Softmax, with its FastMath setting; only m+log(l) per query is kept for backward(...),
+ * which recomputes the probabilities block by block, so memory is O(length*size) per row instead of O(heads*length^2)
+ * With causal, token i only attends to tokens j<=i
+ * length,size,heads    : tokens, token size, heads of size/heads values
+ * wqkv,bqkv            : q, k and v weights [3*size][size] and biases, one Gemm gives the rows [q,k,v] of every token
+ * wo,bo                : output weights [size][size] and biases
+ * tokens,qkv,o,lse     : per batch row, the input tokens, their q,k,v rows, attention outputs and m+log(l) of every head and query
+ */
+public class Attention extends Layer {
+    public static int BLOCK_QUERIES = 32;
+    public static int BLOCK_KEYS    = 64;
+
+    protected static final Kernel kernel = Kernel.get();
+    private static final ThreadLocal<float[][]> TILE = new ThreadLocal<>();
+
+    protected int length;
+    protected int size;
+    protected int heads;
+    protected boolean causal;
+    protected Softmax softmax;
+
+    protected float[] wqkv;
+    protected float[] bqkv;
+    protected float[] wo;
+    protected float[] bo;
+    protected float[] dwqkv;
+    protected float[] dbqkv;
+    protected float[] dwo;
+    protected float[] dbo;
+    protected float learningRate;
+    protected Optimizer optimizer;
+
+    private float[][][] tokens;
+    private float[][][] qkv;
+    private float[][][] o;
+    private float[][] lse;
+    private float[][] out;
+    private float[][] dOut;
+    private float[][] dO;
+    private float[][] dqkv;
+    private float[][] dTokens;
+    private ThreadLocal<float[][][]> scratch;
+
+    public Attention(int length, int size, int heads) {
+        this(length, size, heads, false);
+    }
+
+    /**
+     * @param length    : tokens per input row
+     * @param size      : values per token
+     * @param heads     : heads, dividing size
+     * @param causal    : true for token i to only attend to tokens j<=i
+     */
+    public Attention(int length, int size, int heads, boolean causal) {
+        super(length*size, length*size);
+        if(size%heads!=0)
+            throw new IllegalArgumentException(heads + " heads do not divide " + size);
+        name = "ATTENTION";
+        this.length = length;
+        this.size = size;
+        this.heads = heads;
+        this.causal = causal;
+        softmax = new Softmax();
+        scratch = new ThreadLocal<>();
+        learningRate = 0.01f;
+
+        //random weights in +-sqrt(6/(fanIn+fanOut)), zero biases
+        wqkv = new float[3*size*size];
+        bqkv = new float[3*size];
+        wo = new float[size*size];
+        bo = new float[size];
+        float range = (float) Math.sqrt(6.0/(2*size));
+        for (int k = 0; k < wqkv.length; k++)
+            wqkv[k] = random.nextFloat(-range,range);
+        for (int k = 0; k < wo.length; k++)
+            wo[k] = random.nextFloat(-range,range);
+        optimizer = new Optimizer();
+    }
+
+    public Attention(Checkpoint.Reader reader) {
+        super(reader);
+        softmax = new Softmax();
+        scratch = new ThreadLocal<>();
+    }
+
+    @Override
+    public Attention setLearningRate(float learningRate) {
+        this.learningRate = learningRate;
+        return this;
+    }
+
+    //see Hidden.setOptimizer(...), slots are wqkv, bqkv, wo, bo
+    @Override
+    public Attention setOptimizer(Optimizer optimizer) {
+        this.optimizer = optimizer.copy();
+        this.optimizer.allocate(wqkv.length, bqkv.length, wo.length, bo.length);
+        return this;
+    }
+
+    public Optimizer getOptimizer() {
+        return optimizer;
+    }
+
+    //see Activation.setFastMath(...), applies to the softmax of the scores
+    public Attention setFastMath(Boolean fastMath) {
+        softmax.setFastMath(fastMath);
+        return this;
+    }
+
+    @Override
+    public float[][] output(float[]... inputs) {
+        int rows = inputs.length;
+        tokens = matrices(tokens, rows, size);
+        qkv = matrices(qkv, rows, 3*size);
+        o = matrices(o, rows, size);
+        lse = Workspace.matrix(lse, rows, heads*length);
+        out = Workspace.matrix(out, length, size);
+        y = Workspace.matrix(y, rows, outputSize);
+        for (int t = 0; t < rows; t++) {
+            forward(inputs[t], tokens[t], qkv[t], o[t], lse[t], out);
+            for (int i = 0; i < length; i++)
+                System.arraycopy(out[i], 0, y[t], i*size, size);
+        }
+        return y;
+    }
+
+    //[rows][length][columns], reused while the batch size is the same
+    private float[][][] matrices(float[][][] buffer, int rows, int columns) {
+        if(buffer!=null && buffer.length==rows)
+            return buffer;
+        return new float[rows][length][columns];
+    }
+
+    //one input row : tokens, q,k,v, attention and output rows
+    private void forward(float[] x, float[][] tokens, float[][] qkv, float[][] o, float[] lse, float[][] out) {
+        for (int i = 0; i < length; i++)
+            System.arraycopy(x, i*size, tokens[i], 0, size);
+        Gemm.forward(tokens, wqkv, bqkv, qkv, size, 3*size);
+        attend(qkv, heads, causal, softmax, o, lse);
+        Gemm.forward(o, wo, bo, out, size, size);
+    }
+
+    /**
+     * Scaled dot product attention of packed rows, without storing the scores
+     * @param qkv       : [tokens][3*size], q, k and v of each token side by side, each split in heads blocks
+     * @param heads     : heads
+     * @param causal    : true for query i to only see keys j<=i
+     * @param softmax   : softmax whose exponentials are used
+     * @param o         : [tokens][size] outputs, overwritten
+     * @param lse       : [heads*tokens] m+log(l) of every head and query, overwritten, may be null
+     */
+    public static void attend(float[][] qkv, int heads, boolean causal, Softmax softmax, float[][] o, float[] lse) {
+        //s_ij = q_i.k_j*scale, over a block of keys : m' = max(m,max_j(s_ij)), p_j = exp(s_ij-m'),
+        //o_i = o_i*exp(m-m') + sum_j(p_j*v_j), l = l*exp(m-m') + sum_j(p_j), and at the end o_i /= l
+        //the keys of a block are copied transposed, so the scores of a query are headSize axpy over the block
+        int length = qkv.length;
+        int size = o[0].length;
+        int headSize = size/heads;
+        float scale = (float) (1/Math.sqrt(headSize));
+        float[][] tile = tile(headSize);
+        float[] s = tile[0], m = tile[1], l = tile[2], kt = tile[3];
+        for (int head = 0; head < heads; head++) {
+            int q = head*headSize, k = size+head*headSize, v = 2*size+head*headSize;
+            for (int i0 = 0; i0 < length; i0 += BLOCK_QUERIES) {
+                int i1 = Math.min(i0+BLOCK_QUERIES, length);
+                for (int i = i0; i < i1; i++) {
+                    m[i-i0] = Float.NEGATIVE_INFINITY;
+                    l[i-i0] = 0;
+                    Arrays.fill(o[i], q, q+headSize, 0);
+                }
+                int keys = causal?i1:length;
+                for (int j0 = 0; j0 < keys; j0 += BLOCK_KEYS) {
+                    int j1 = Math.min(j0+BLOCK_KEYS, keys);
+                    int n = j1-j0;
+                    transpose(qkv, j0, j1, k, headSize, kt);
+                    for (int i = i0; i < i1; i++) {
+                        int count = (causal?Math.min(j1, i+1):j1)-j0;
+                        if(count<=0)
+                            continue;
+                        float[] qi = qkv[i];
+                        Arrays.fill(s, 0, count, 0);
+                        for (int c = 0; c < headSize; c++)
+                            kernel.axpy(qi[q+c]*scale, kt, c*n, s, 0, count);
+                        float max = m[i-i0];
+                        for (int j = 0; j < count; j++)
+                            max = Math.max(max, s[j]);
+                        float sum = softmax.exp(s, max, s, count);
+                        float rescale = (float) Math.exp(m[i-i0]-max);
+                        l[i-i0] = l[i-i0]*rescale + sum;
+                        m[i-i0] = max;
+                        float[] oi = o[i];
+                        if(rescale!=1)
+                            for (int c = q; c < q+headSize; c++)
+                                oi[c] *= rescale;
+                        for (int j = 0; j < count; j++)
+                            kernel.axpy(s[j], qkv[j0+j], v, oi, q, headSize);
+                    }
+                }
+                for (int i = i0; i < i1; i++) {
+                    float inverse = 1/l[i-i0];
+                    for (int c = q; c < q+headSize; c++)
+                        o[i][c] *= inverse;
+                    if(lse!=null)
+                        lse[head*length+i] = m[i-i0] + (float) Math.log(l[i-i0]);
+                }
+            }
+        }
+    }
+
+    //t[c*(j1-j0)+j-j0] = rows[j][offset+c]
+    private static void transpose(float[][] rows, int j0, int j1, int offset, int headSize, float[] t) {
+        int n = j1-j0;
+        for (int j = j0; j < j1; j++) {
+            float[] row = rows[j];
+            for (int c = 0; c < headSize; c++)
+                t[c*n+j-j0] = row[offset+c];
+        }
+    }
+
+    //per thread : scores, running max, running sum, transposed k, v, dk and dv of a block, and the score gradients
+    private static float[][] tile(int headSize) {
+        float[][] tile = TILE.get();
+        if(tile==null || tile[0].length<BLOCK_KEYS || tile[1].length<BLOCK_QUERIES || tile[3].length<headSize*BLOCK_KEYS) {
+            tile = new float[][]{new float[BLOCK_KEYS], new float[BLOCK_QUERIES], new float[BLOCK_QUERIES],
+                    new float[headSize*BLOCK_KEYS], new float[headSize*BLOCK_KEYS],
+                    new float[headSize*BLOCK_KEYS], new float[headSize*BLOCK_KEYS], new float[BLOCK_KEYS]};
+            TILE.set(tile);
+        }
+        return tile;
+    }
+
+    @Override
+    public float[][] backward(float[]... gradients) {
+        //dwo += dy^T.o, do = dy.wo, then per head with p_ij = exp(s_ij-lse_i) recomputed block by block and D_i = do_i.o_i :
+        //dv_j += p_ij*do_i, ds_ij = p_ij*(do_i.v_j-D_i)*scale, dq_i += ds_ij*k_j, dk_j += ds_ij*q_i
+        //then dwqkv += dqkv^T.tokens and dx = dqkv.wqkv
+        int rows = gradients.length;
+        clearGradients();
+        dOut = Workspace.matrix(dOut, length, size);
+        dO = Workspace.matrix(dO, length, size);
+        dqkv = Workspace.matrix(dqkv, length, 3*size);
+        dTokens = Workspace.matrix(dTokens, length, size);
+        dx = Workspace.matrix(dx, rows, inputSize);
+        for (int t = 0; t < rows; t++) {
+            for (int i = 0; i < length; i++)
+                System.arraycopy(gradients[t], i*size, dOut[i], 0, size);
+            Gemm.weightGradient(dOut, o[t], dwo, dbo, size, size);
+            Gemm.inputGradient(dOut, wo, dO, size, size);
+            attendGradient(qkv[t], o[t], lse[t], dO, dqkv);
+            Gemm.weightGradient(dqkv, tokens[t], dwqkv, dbqkv, size, 3*size);
+            Gemm.inputGradient(dqkv, wqkv, dTokens, size, 3*size);
+            for (int i = 0; i < length; i++)
+                System.arraycopy(dTokens[i], 0, dx[t], i*size, size);
+        }
+        return dx;
+    }
+
+    private void attendGradient(float[][] qkv, float[][] o, float[] lse, float[][] dO, float[][] dqkv) {
+        //keys outside, queries inside : the transposed k,v of a key block and their dk,dv stay in the tile over all the queries
+        int headSize = size/heads;
+        float scale = (float) (1/Math.sqrt(headSize));
+        float[][] tile = tile(headSize);
+        float[] p = tile[0], kt = tile[3], vt = tile[4], dkt = tile[5], dvt = tile[6], ds = tile[7];
+        for(float[] row:dqkv)
+            Arrays.fill(row, 0);
+        for (int head = 0; head < heads; head++) {
+            int q = head*headSize, k = size+head*headSize, v = 2*size+head*headSize;
+            for (int j0 = 0; j0 < length; j0 += BLOCK_KEYS) {
+                int j1 = Math.min(j0+BLOCK_KEYS, length);
+                int n = j1-j0;
+                transpose(qkv, j0, j1, k, headSize, kt);
+                transpose(qkv, j0, j1, v, headSize, vt);
+                Arrays.fill(dkt, 0, headSize*n, 0);
+                Arrays.fill(dvt, 0, headSize*n, 0);
+                for (int i = causal?j0:0; i < length; i++) {
+                    int count = (causal?Math.min(j1, i+1):j1)-j0;
+                    float[] qi = qkv[i];
+                    float[] doi = dO[i];
+                    float d = kernel.dot(0, doi, q, o[i], q, headSize);
+                    Arrays.fill(p, 0, count, 0);
+                    Arrays.fill(ds, 0, count, 0);
+                    for (int c = 0; c < headSize; c++) {
+                        kernel.axpy(qi[q+c]*scale, kt, c*n, p, 0, count);
+                        kernel.axpy(doi[q+c], vt, c*n, ds, 0, count);
+                    }
+                    softmax.exp(p, lse[head*length+i], p, count);
+                    for (int j = 0; j < count; j++)
+                        ds[j] = p[j]*(ds[j]-d)*scale;
+                    for (int c = 0; c < headSize; c++) {
+                        kernel.axpy(doi[q+c], p, 0, dvt, c*n, count);
+                        kernel.axpy(qi[q+c], ds, 0, dkt, c*n, count);
+                        dqkv[i][q+c] = kernel.dot(dqkv[i][q+c], ds, 0, kt, c*n, count);
+                    }
+                }
+                for (int j = j0; j < j1; j++) {
+                    float[] row = dqkv[j];
+                    for (int c = 0; c < headSize; c++) {
+                        row[k+c] += dkt[c*n+j-j0];
+                        row[v+c] += dvt[c*n+j-j0];
+                    }
+                }
+            }
+        }
+    }
+
+    @Override
+    public void update(int batchSize) {
+        //Update, see Optimizer
+        optimizer.step();
+        optimizer.update(0, wqkv, dwqkv, learningRate, batchSize);
+        optimizer.update(1, bqkv, dbqkv, learningRate, batchSize);
+        optimizer.update(2, wo, dwo, learningRate, batchSize);
+        optimizer.update(3, bo, dbo, learningRate, batchSize);
+    }
+
+    @Override
+    public long getFlops(String phase, int rows, int inputSize) {
+        //projections : q,k,v and output per token; attention : q.k^T and p.v per pair of tokens, about half the pairs when causal
+        long projections = (long) rows*length*8*size*size;
+        long pairs = causal?(long) length*(length+1)/2:(long) length*length;
+        long attention = rows*pairs*4*size;
+        return switch (phase) {
+            case Profiler.FORWARD -> projections+attention;
+            case Profiler.BACKWARD -> 2*projections+attention*5/2;//scores and probabilities recomputed, then dv, dp, dq and dk
+            default -> (long) (wqkv.length+bqkv.length+wo.length+bo.length)*optimizer.getFlops();
+        };
+    }
+
+    @Override
+    public Attention replica() {
+        Attention replica = (Attention) super.replica();
+        replica.dwqkv = null;
+        replica.dbqkv = null;
+        replica.dwo = null;
+        replica.dbo = null;
+        replica.tokens = null;
+        replica.qkv = null;
+        replica.o = null;
+        replica.lse = null;
+        replica.out = null;
+        replica.dOut = null;
+        replica.dO = null;
+        replica.dqkv = null;
+        replica.dTokens = null;
+        replica.optimizer = optimizer.replica();
+        return replica;
+    }
+
+    @Override
+    public void reduce(List<? extends Layer> replicas) {
+        clearGradients();
+        for(Layer layer:replicas){
+            Attention replica = (Attention) layer;
+            kernel.axpy(1, replica.dwqkv, 0, dwqkv, 0, dwqkv.length);
+            kernel.axpy(1, replica.dbqkv, 0, dbqkv, 0, dbqkv.length);
+            kernel.axpy(1, replica.dwo, 0, dwo, 0, dwo.length);
+            kernel.axpy(1, replica.dbo, 0, dbo, 0, dbo.length);
+        }
+    }
+
+    private void clearGradients(){
+        dwqkv = Workspace.vector(dwqkv, wqkv.length);
+        dbqkv = Workspace.vector(dbqkv, bqkv.length);
+        dwo = Workspace.vector(dwo, wo.length);
+        dbo = Workspace.vector(dbo, bo.length);
+        Arrays.fill(dwqkv, 0);
+        Arrays.fill(dbqkv, 0);
+        Arrays.fill(dwo, 0);
+        Arrays.fill(dbo, 0);
+    }
+
+    @Override
+    public float[] predict(float... inputs) {
+        float[] y = new float[outputSize];
+        predict(inputs, y);
+        return y;
+    }
+
+    //same as output(...) in per thread buffers
+    @Override
+    public void predict(float[] inputs, float[] outputs) {
+        float[][][] buffers = scratch.get();
+        if(buffers==null) {
+            buffers = new float[][][]{new float[length][size], new float[length][3*size], new float[length][size], new float[length][size]};
+            scratch.set(buffers);
+        }
+        forward(inputs, buffers[0], buffers[1], buffers[2], null, buffers[3]);
+        for (int i = 0; i < length; i++)
+            System.arraycopy(buffers[3][i], 0, outputs, i*size, size);
+    }
+
+    @Override
+    public Attention snapshot() {
+        Attention snapshot = replica();
+        snapshot.wqkv = wqkv.clone();
+        snapshot.bqkv = bqkv.clone();
+        snapshot.wo = wo.clone();
+        snapshot.bo = bo.clone();
+        return snapshot;
+    }
+
+    @Override
+    public void save(String filename) {
+        throw new UnsupportedOperationException(name + " is only saved to a binary checkpoint");
+    }
+
+    @Override
+    public void save(Checkpoint.Writer writer) throws IOException {
+        super.save(writer);
+        writer.writeInt(length);
+        writer.writeInt(size);
+        writer.writeInt(heads);
+        writer.writeInt(causal?1:0);
+        writer.writeFloat(learningRate);
+        writer.writeFloats(wqkv);
+        writer.writeFloats(bqkv);
+        writer.writeFloats(wo);
+        writer.writeFloats(bo);
+        writer.writeString(optimizer.getName());
+        optimizer.save(writer);
+    }
+
+    @Override
+    public void read(Checkpoint.Reader reader) {
+        super.read(reader);
+        length = reader.readInt();
+        size = reader.readInt();
+        heads = reader.readInt();
+        causal = reader.readInt()!=0;
+        learningRate = reader.readFloat();
+        wqkv = reader.readFloats();
+        bqkv = reader.readFloats();
+        wo = reader.readFloats();
+        bo = reader.readFloats();
+        if(wqkv.length!=3*size*size || bqkv.length!=3*size || wo.length!=size*size || bo.length!=size
+                || inputSize!=length*size || outputSize!=length*size)
+            throw new IllegalStateException(name + " record does not match [" + length + "x" + size + "]");
+        optimizer = Optimizer.of(reader.readString());
+        optimizer.read(reader);
+    }
+
+    @Override
+    public String toString() {
+        return name + "[" + length + "x" + size + "," + heads + " heads" + (causal?",causal":"") + "]";
+    }
+}
@@ -0,0 +1,40 @@
+package ann.layer;
+
+import ann.Checkpoint;
+
+/**
+ * 1D convolution over channels-last sequences : step l of channel c is x[l*channels+c]
+ * A Conv2D over an image of height 1, so it shares its im2col lowering, Gemm kernels and checkpoint record
+ */
+public class Conv1D extends Conv2D {
+
+    public Conv1D(int length, int channels, int filters, int kernel) {
+        this(length, channels, filters, kernel, 1, 0);
+    }
+
+    /**
+     * @param length    : input steps
+     * @param channels  : input channels
+     * @param filters   : output channels
+     * @param kernel    : kernel length
+     * @param stride    : step between two kernel positions
+     * @param padding   : zeros added at each end
+     */
+    public Conv1D(int length, int channels, int filters, int kernel, int stride, int padding) {
+        super(1, length, channels, filters, 1, kernel, stride, 0, padding);
+        name = "CONV1D";
+    }
+
+    public Conv1D(Checkpoint.Reader reader) {
+        super(reader);
+    }
+
+    public int getOutputLength() {
+        return outputWidth;
+    }
+
+    @Override
+    public String toString() {
+        return name + "[" + width + "x" + channels + "," + outputWidth + "x" + filters + "]";
+    }
+}
@@ -0,0 +1,374 @@
+package ann.layer;
+
+import ann.Checkpoint;
+import ann.Layer;
+import ann.Optimizer;
+import ann.Profiler;
+import ann.Workspace;
+import ann.kernel.Gemm;
+import ann.kernel.Kernel;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 2D convolution over channels-last images : pixel (h,w) of channel c is x[(h*width+w)*channels+c], outputs use the same layout
+ * with filters channels, so convolutions and poolings can be stacked and a Hidden can read the result unchanged
+ * Lowered to a matrix product (im2col) : for one image, every output position gets the row of the kernelHeight*kernelWidth*channels
+ * input values under the kernel (zero outside the padded image), and y = cols.w^T + b runs on the cache-blocked Gemm kernels
+ * with one weight row per filter; backward(...) rebuilds the rows and adds the input gradient rows back into the image (col2im)
+ * Trained like Hidden, with SGD unless setOptimizer(...) is used
+ * height,width,channels    : input image
+ * filters                  : output channels
+ * kernelHeight,kernelWidth : kernel size
+ * stride                   : step between two kernel positions, the same along both axes
+ * paddingHeight,paddingWidth : zeros added on each side of the image
+ * outputHeight,outputWidth : output image, (height+2*paddingHeight-kernelHeight)/stride+1 and the same along the width
+ * w                        : weights, one row per filter: w[f*patch+(kh*kernelWidth+kw)*channels+c]
+ * b                        : biases, one per filter
+ * dw,db                    : gradients of the last backward pass
+ * cols,out,dout,dcols      : im2col rows, their outputs and the gradients of both, for one image
+ */
+public class Conv2D extends Layer {
+    protected static final Kernel kernel = Kernel.get();
+    private static final ThreadLocal<float[]> PATCH = new ThreadLocal<>();
+
+    protected int height;
+    protected int width;
+    protected int channels;
+    protected int filters;
+    protected int kernelHeight;
+    protected int kernelWidth;
+    protected int stride;
+    protected int paddingHeight;
+    protected int paddingWidth;
+    protected int outputHeight;
+    protected int outputWidth;
+
+    protected float[] w;
+    protected float[] b;
+    protected float[] dw;
+    protected float[] db;
+    protected float learningRate;
+    protected Optimizer optimizer;
+
+    private float[][] cols;
+    private float[][] out;
+    private float[][] dout;
+    private float[][] dcols;
+
+    public Conv2D(int height, int width, int channels, int filters, int kernel) {
+        this(height, width, channels, filters, kernel, 1, 0);
+    }
+
+    /**
+     * Square kernel, same stride and padding along both axes
+     * @param height    : input height
+     * @param width     : input width
+     * @param channels  : input channels
+     * @param filters   : output channels
+     * @param kernel    : kernel height and width
+     * @param stride    : step between two kernel positions
+     * @param padding   : zeros added on each side
+     */
+    public Conv2D(int height, int width, int channels, int filters, int kernel, int stride, int padding) {
+        this(height, width, channels, filters, kernel, kernel, stride, padding, padding);
+    }
+
+    protected Conv2D(int height, int width, int channels, int filters, int kernelHeight, int kernelWidth,
+                     int stride, int paddingHeight, int paddingWidth) {
+        super(height*width*channels, 0);
+        name = "CONV2D";
+        this.height = height;
+        this.width = width;
+        this.channels = channels;
+        this.filters = filters;
+        this.kernelHeight = kernelHeight;
+        this.kernelWidth = kernelWidth;
+        this.stride = stride;
+        this.paddingHeight = paddingHeight;
+        this.paddingWidth = paddingWidth;
+        shape();
+        learningRate = 0.01f;
+
+        //random weights in +-sqrt(6/(fanIn+fanOut)), zero biases
+        int patch = patchSize();
+        w = new float[filters*patch];
+        b = new float[filters];
+        float range = (float) Math.sqrt(6.0/(patch+filters));
+        for (int k = 0; k < w.length; k++)
+            w[k] = random.nextFloat(-range,range);
+        optimizer = new Optimizer();
+    }
+
+    public Conv2D(Checkpoint.Reader reader) {
+        super(reader);
+    }
+
+    //output image and size from the settings
+    private void shape() {
+        outputHeight = (height+2*paddingHeight-kernelHeight)/stride+1;
+        outputWidth = (width+2*paddingWidth-kernelWidth)/stride+1;
+        if(outputHeight<=0 || outputWidth<=0)
+            throw new IllegalArgumentException("kernel " + kernelHeight + "x" + kernelWidth + " larger than image " + height + "x" + width);
+        inputSize = height*width*channels;
+        outputSize = outputHeight*outputWidth*filters;
+    }
+
+    //inputs under the kernel at one position
+    public int patchSize() {
+        return kernelHeight*kernelWidth*channels;
+    }
+
+    public int getOutputHeight() {
+        return outputHeight;
+    }
+
+    public int getOutputWidth() {
+        return outputWidth;
+    }
+
+    public int getFilters() {
+        return filters;
+    }
+
+    @Override
+    public Conv2D setLearningRate(float learningRate) {
+        this.learningRate = learningRate;
+        return this;
+    }
+
+    //see Hidden.setOptimizer(...)
+    @Override
+    public Conv2D setOptimizer(Optimizer optimizer) {
+        this.optimizer = optimizer.copy();
+        this.optimizer.allocate(w.length, b.length);
+        return this;
+    }
+
+    public Optimizer getOptimizer() {
+        return optimizer;
+    }
+
+    @Override
+    public float[][] output(float[]... inputs) {
+        //y_t,p,f = sum_k(w_fk*cols_t,pk)+b_f with cols_t,p the patch of image t at output position p
+        int positions = outputHeight*outputWidth;
+        int patch = patchSize();
+        x = Workspace.matrix(x, inputs.length, inputSize);
+        y = Workspace.matrix(y, inputs.length, outputSize);
+        cols = Workspace.matrix(cols, positions, patch);
+        out = Workspace.matrix(out, positions, filters);
+        for (int t = 0; t < inputs.length; t++) {
+            System.arraycopy(inputs[t], 0, x[t], 0, inputSize);
+            im2col(x[t], cols);
+            Gemm.forward(cols, w, b, out, patch, filters);
+            for (int p = 0; p < positions; p++)
+                System.arraycopy(out[p], 0, y[t], p*filters, filters);
+        }
+        return y;
+    }
+
+    @Override
+    public float[][] backward(float[]... gradients) {
+        //dw_fk += sum_p(dy_pf*cols_pk), db_f += sum_p(dy_pf)
+        //dcols_pk = sum_f(dy_pf*w_fk), added back to the input values they were copied from
+        int positions = outputHeight*outputWidth;
+        int patch = patchSize();
+        clearGradients();
+        dx = Workspace.matrix(dx, gradients.length, inputSize);
+        cols = Workspace.matrix(cols, positions, patch);
+        dcols = Workspace.matrix(dcols, positions, patch);
+        dout = Workspace.matrix(dout, positions, filters);
+        for (int t = 0; t < gradients.length; t++) {
+            im2col(x[t], cols);
+            for (int p = 0; p < positions; p++)
+                System.arraycopy(gradients[t], p*filters, dout[p], 0, filters);
+            Gemm.weightGradient(dout, cols, dw, db, patch, filters);
+            Gemm.inputGradient(dout, w, dcols, patch, filters);
+            col2im(dcols, dx[t]);
+        }
+        return dx;
+    }
+
+    //one row per output position, the input values under the kernel in (kh,kw,c) order, 0 in the padding
+    private void im2col(float[] image, float[][] cols) {
+        int p = 0;
+        for (int oh = 0; oh < outputHeight; oh++) {
+            for (int ow = 0; ow < outputWidth; ow++)
+                patch(image, oh, ow, cols[p++]);
+        }
+    }
+
+    private void patch(float[] image, int oh, int ow, float[] row) {
+        //kernel columns kw0..kw1 fall inside the image, they are contiguous in a channels-last row
+        int w0 = ow*stride-paddingWidth;
+        int kw0 = Math.max(0, -w0);
+        int kw1 = Math.min(kernelWidth, width-w0);
+        for (int kh = 0; kh < kernelHeight; kh++) {
+            int h = oh*stride-paddingHeight+kh;
+            int offset = kh*kernelWidth*channels;
+            if(h<0 || h>=height || kw0>=kw1) {
+                Arrays.fill(row, offset, offset+kernelWidth*channels, 0);
+                continue;
+            }
+            Arrays.fill(row, offset, offset+kw0*channels, 0);
+            System.arraycopy(image, (h*width+w0+kw0)*channels, row, offset+kw0*channels, (kw1-kw0)*channels);
+            Arrays.fill(row, offset+kw1*channels, offset+kernelWidth*channels, 0);
+        }
+    }
+
+    //image = sum over the rows of cols added at the positions im2col(...) read them from
+    private void col2im(float[][] cols, float[] image) {
+        Arrays.fill(image, 0);
+        int p = 0;
+        for (int oh = 0; oh < outputHeight; oh++) {
+            for (int ow = 0; ow < outputWidth; ow++, p++) {
+                int w0 = ow*stride-paddingWidth;
+                int kw0 = Math.max(0, -w0);
+                int kw1 = Math.min(kernelWidth, width-w0);
+                for (int kh = 0; kh < kernelHeight; kh++) {
+                    int h = oh*stride-paddingHeight+kh;
+                    if(h<0 || h>=height || kw0>=kw1)
+                        continue;
+                    kernel.axpy(1, cols[p], (kh*kernelWidth+kw0)*channels, image, (h*width+w0+kw0)*channels, (kw1-kw0)*channels);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void update(int batchSize) {
+        //Update, see Optimizer
+        optimizer.step();
+        optimizer.update(0, w, dw, learningRate, batchSize);
+        optimizer.update(1, b, db, learningRate, batchSize);
+    }
+
+    @Override
+    public long getFlops(String phase, int rows, int inputSize) {
+        //one Gemm of the im2col rows per image, backward is the input and the weight gradient Gemms
+        long products = (long) rows*outputHeight*outputWidth*filters*kernelHeight*kernelWidth*channels;
+        return switch (phase) {
+            case Profiler.FORWARD -> 2*products+(long) rows*outputHeight*outputWidth*filters;
+            case Profiler.BACKWARD -> 4*products;
+            default -> (long) (w.length+b.length)*optimizer.getFlops();
+        };
+    }
+
+    @Override
+    public Conv2D replica() {
+        Conv2D replica = (Conv2D) super.replica();
+        replica.dw = null;
+        replica.db = null;
+        replica.cols = null;
+        replica.out = null;
+        replica.dout = null;
+        replica.dcols = null;
+        replica.optimizer = optimizer.replica();
+        return replica;
+    }
+
+    @Override
+    public void reduce(List<? extends Layer> replicas) {
+        clearGradients();
+        for(Layer layer:replicas){
+            Conv2D replica = (Conv2D) layer;
+            kernel.axpy(1, replica.dw, 0, dw, 0, dw.length);
+            kernel.axpy(1, replica.db, 0, db, 0, db.length);
+        }
+    }
+
+    private void clearGradients(){
+        dw = Workspace.vector(dw, w.length);
+        db = Workspace.vector(db, b.length);
+        Arrays.fill(dw, 0);
+        Arrays.fill(db, 0);
+    }
+
+    @Override
+    public float[] predict(float... inputs) {
+        float[] y = new float[outputSize];
+        predict(inputs, y);
+        return y;
+    }
+
+    @Override
+    public void predict(float[] inputs, float[] outputs) {
+        //one patch at a time in a per thread buffer, y_pf = sum_k(w_fk*patch_k)+b_f
+        int patch = patchSize();
+        float[] row = PATCH.get();
+        if(row==null || row.length<patch) {
+            row = new float[patch];
+            PATCH.set(row);
+        }
+        int p = 0;
+        for (int oh = 0; oh < outputHeight; oh++) {
+            for (int ow = 0; ow < outputWidth; ow++, p++) {
+                patch(inputs, oh, ow, row);
+                for (int f = 0; f < filters; f++)
+                    outputs[p*filters+f] = kernel.dot(b[f], w, f*patch, row, 0, patch);
+            }
+        }
+    }
+
+    @Override
+    public Conv2D snapshot() {
+        Conv2D snapshot = replica();
+        snapshot.w = w.clone();
+        snapshot.b = b.clone();
+        return snapshot;
+    }
+
+    @Override
+    public void save(String filename) {
+        throw new UnsupportedOperationException(name + " is only saved to a binary checkpoint");
+    }
+
+    @Override
+    public void save(Checkpoint.Writer writer) throws IOException {
+        super.save(writer);
+        writer.writeInt(height);
+        writer.writeInt(width);
+        writer.writeInt(channels);
+        writer.writeInt(filters);
+        writer.writeInt(kernelHeight);
+        writer.writeInt(kernelWidth);
+        writer.writeInt(stride);
+        writer.writeInt(paddingHeight);
+        writer.writeInt(paddingWidth);
+        writer.writeFloat(learningRate);
+        writer.writeFloats(w);
+        writer.writeFloats(b);
+        writer.writeString(optimizer.getName());
+        optimizer.save(writer);
+    }
+
+    @Override
+    public void read(Checkpoint.Reader reader) {
+        super.read(reader);
+        height = reader.readInt();
+        width = reader.readInt();
+        channels = reader.readInt();
+        filters = reader.readInt();
+        kernelHeight = reader.readInt();
+        kernelWidth = reader.readInt();
+        stride = reader.readInt();
+        paddingHeight = reader.readInt();
+        paddingWidth = reader.readInt();
+        shape();
+        learningRate = reader.readFloat();
+        w = reader.readFloats();
+        b = reader.readFloats();
+        if(w.length!=filters*patchSize() || b.length!=filters)
+            throw new IllegalStateException(name + " record does not match [" + filters + "," + patchSize() + "]");
+        optimizer = Optimizer.of(reader.readString());
+        optimizer.read(reader);
+    }
+
+    @Override
+    public String toString() {
+        return name + "[" + height + "x" + width + "x" + channels + "," + outputHeight + "x" + outputWidth + "x" + filters + "]";
+    }
+}
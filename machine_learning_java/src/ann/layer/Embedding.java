@@ -0,0 +1,341 @@
+package ann.layer;
+
+import ann.Checkpoint;
+import ann.Layer;
+import ann.Optimizer;
+import ann.Workspace;
+import ann.kernel.Kernel;
+import ann.optimizer.Adam;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Lookup table from integer ids to dense rows, for categorical inputs, first layer of a network
+ * Each input is a row of `fields` ids given as floats (exact up to 2^24), the output is their rows side by side
+ * Only the rows of the ids in a batch are read, and update(...) only writes those: the gradients of an id seen several times
+ * are summed first, then each row takes one step
+ * Trained with SGD (default) or Adam (setOptimizer(...)), Network.setOptimizer(...) with any other optimizer leaves it as it is;
+ * Adam state is materialised per row the first time the row is updated,
+ * and each row counts its own steps for the bias corrections, so rows that are rarely seen are corrected like fresh ones
+ * backward(...) returns no input gradient, ids have no gradient, so the execution plan only accepts it first
+ * vocabulary   : number of ids, 0 to vocabulary-1
+ * dimension    : length of a row
+ * table        : rows, table[id*dimension+k]
+ * optimizer    : SGD or Adam, only its settings are used
+ * m,v,steps    : Adam moments and step count of each row, allocated with the optimizer and shared by the replicas;
+ *                m[id] is null until the row is first updated
+ * ids,dy       : ids of the last output(...) call and gradients of the last backward pass
+ * shards       : replicas whose gradients were reduced into this layer, applied by the next update(...)
+ * keys,slots  : open addressing table from id+1 to the slot of id in the batch being updated
+ * unique,grad : id and summed gradients of each slot
+ */
+public class Embedding extends Layer {
+    protected static final Kernel kernel = Kernel.get();
+
+    protected int vocabulary;
+    protected int dimension;
+    protected float[] table;
+    protected float learningRate;
+    protected Optimizer optimizer;
+    protected float[][] m;
+    protected float[][] v;
+    protected int[] steps;
+
+    private int[][] ids;
+    private float[][] dy;
+    private List<Embedding> shards;
+    private int[] keys;
+    private int[] slots;
+    private int[] unique;
+    private float[] grad;
+    private int count;
+
+    public Embedding(int vocabulary, int dimension) {
+        this(vocabulary, dimension, 1);
+    }
+
+    /**
+     * @param vocabulary    : number of ids
+     * @param dimension     : length of a row
+     * @param fields        : ids per input, each looked up in the same table
+     */
+    public Embedding(int vocabulary, int dimension, int fields) {
+        super(fields, fields*dimension);
+        name = "EMBEDDING";
+        this.vocabulary = vocabulary;
+        this.dimension = dimension;
+        learningRate = 0.01f;
+        optimizer = new Optimizer();
+
+        //small random rows
+        table = new float[vocabulary*dimension];
+        for (int k = 0; k < table.length; k++)
+            table[k] = random.nextFloat(-0.05f,0.05f);
+    }
+
+    public Embedding(Checkpoint.Reader reader) {
+        super(reader);
+        name = "EMBEDDING";
+    }
+
+    @Override
+    public Embedding setLearningRate(float learningRate) {
+        this.learningRate = learningRate;
+        return this;
+    }
+
+    //SGD or Adam, the Adam state of every row starts empty
+    @Override
+    public Embedding setOptimizer(Optimizer optimizer) {
+        if(!supports(optimizer))
+            throw new IllegalArgumentException(name + " is trained with SGD or ADAM, not " + optimizer.getName());
+        this.optimizer = optimizer.copy();
+        allocate();
+        return this;
+    }
+
+    //empty Adam state, allocated here rather than by update(...) so replicas (Hogwild workers) share it, only its rows are lazy
+    private void allocate() {
+        boolean adam = optimizer instanceof Adam;
+        m = adam?new float[vocabulary][]:null;
+        v = adam?new float[vocabulary][]:null;
+        steps = adam?new int[vocabulary]:null;
+    }
+
+    //only plain SGD and Adam, whose updates are applied per row
+    @Override
+    public boolean supports(Optimizer optimizer) {
+        return optimizer.getClass()==Optimizer.class || optimizer.getClass()==Adam.class;
+    }
+
+    @Override
+    public boolean hasInputGradient() {
+        return false;
+    }
+
+    public int getVocabulary() {
+        return vocabulary;
+    }
+
+    public int getDimension() {
+        return dimension;
+    }
+
+    @Override
+    public float[][] output(float[]... inputs) {
+        //y[f*dimension+k] = table[id_f*dimension+k]
+        if(ids==null || ids.length!=inputs.length)
+            ids = new int[inputs.length][inputSize];
+        y = Workspace.matrix(y, inputs.length, outputSize);
+        for (int t = 0; t < inputs.length; t++) {
+            for (int f = 0; f < inputSize; f++)
+                ids[t][f] = id(inputs[t][f]);
+            lookup(ids[t], y[t]);
+        }
+        return y;
+    }
+
+    private int id(float x) {
+        int id = (int) x;
+        if(id!=x || id<0 || id>=vocabulary)
+            throw new IllegalArgumentException("id " + x + " outside [0," + vocabulary + ")");
+        return id;
+    }
+
+    private void lookup(int[] ids, float[] y) {
+        for (int f = 0; f < ids.length; f++)
+            System.arraycopy(table, ids[f]*dimension, y, f*dimension, dimension);
+    }
+
+    @Override
+    public float[][] backward(float[]... gradients) {
+        dy = Workspace.matrix(dy, gradients.length, outputSize);
+        for (int t = 0; t < gradients.length; t++)
+            System.arraycopy(gradients[t], 0, dy[t], 0, outputSize);
+        shards = null;
+        return null;
+    }
+
+    @Override
+    public void update(int batchSize) {
+        //g_id = sum of dy over the fields where id was looked up
+        //SGD : row_id -= learning * g_id
+        //Adam : m_id,v_id,row_id updated as in Kernel.adam, with the corrections of the row's own step count
+        if(shards==null) {
+            clear(ids.length);
+            accumulate(ids, dy);
+        } else {
+            int rows = 0;
+            for(Embedding shard:shards)
+                rows += shard.ids.length;
+            clear(rows);
+            for(Embedding shard:shards)
+                accumulate(shard.ids, shard.dy);
+            shards = null;
+        }
+
+        if(!(optimizer instanceof Adam settings)) {
+            for (int s = 0; s < count; s++)
+                kernel.axpy(-learningRate/batchSize, grad, s*dimension, table, unique[s]*dimension, dimension);
+            return;
+        }
+        for (int s = 0; s < count; s++) {
+            int id = unique[s];
+            if(m[id]==null) {
+                m[id] = new float[dimension];
+                v[id] = new float[dimension];
+            }
+            int step = ++steps[id];
+            float stepSize = (float) (1/(1-Math.pow(settings.getMomentum(), step)));
+            float correction = (float) (1/(1-Math.pow(settings.getRms(), step)));
+            kernel.adam(table, id*dimension, grad, s*dimension, m[id], v[id], dimension, 1f/batchSize,
+                    settings.getMomentum(), settings.getRms(), learningRate*stepSize, correction, settings.getEpsilon(), 0);
+        }
+    }
+
+    //empties the id table, sized for the ids of rows inputs
+    private void clear(int rows) {
+        int entries = rows*inputSize;
+        if(keys==null || keys.length<2*entries) {
+            keys = new int[Integer.highestOneBit(Math.max(1, 2*entries-1))<<1];
+            slots = new int[keys.length];
+            unique = new int[entries];
+            grad = new float[entries*dimension];
+        }
+        Arrays.fill(keys, 0);
+        count = 0;
+    }
+
+    //sums the gradients of every (row, field) into the slot of its id
+    private void accumulate(int[][] ids, float[][] dy) {
+        for (int t = 0; t < ids.length; t++) {
+            for (int f = 0; f < inputSize; f++) {
+                int s = slot(ids[t][f]);
+                kernel.axpy(1, dy[t], f*dimension, grad, s*dimension, dimension);
+            }
+        }
+    }
+
+    //slot of id, a new zeroed one if it is not in the batch yet
+    private int slot(int id) {
+        int mask = keys.length-1;
+        int h = (id*0x9E3779B9>>>7) & mask;
+        while (keys[h]!=0) {
+            if(keys[h]==id+1)
+                return slots[h];
+            h = (h+1) & mask;
+        }
+        keys[h] = id+1;
+        slots[h] = count;
+        unique[count] = id;
+        Arrays.fill(grad, count*dimension, (count+1)*dimension, 0);
+        return count++;
+    }
+
+    //shares the table and the Adam state, gradients and id tables are per replica
+    @Override
+    public Embedding replica() {
+        Embedding replica = (Embedding) super.replica();
+        replica.ids = null;
+        replica.dy = null;
+        replica.shards = null;
+        replica.keys = null;
+        replica.slots = null;
+        replica.unique = null;
+        replica.grad = null;
+        return replica;
+    }
+
+    //gradients stay with the replicas and are summed per id by update(...)
+    @Override
+    @SuppressWarnings("unchecked")
+    public void reduce(List<? extends Layer> replicas) {
+        shards = (List<Embedding>) replicas;
+    }
+
+    @Override
+    public float[] predict(float... inputs) {
+        float[] y = new float[outputSize];
+        predict(inputs, y);
+        return y;
+    }
+
+    @Override
+    public void predict(float[] inputs, float[] outputs) {
+        for (int f = 0; f < inputSize; f++)
+            System.arraycopy(table, id(inputs[f])*dimension, outputs, f*dimension, dimension);
+    }
+
+    @Override
+    public Embedding snapshot() {
+        Embedding snapshot = replica();
+        snapshot.table = table.clone();
+        return snapshot;
+    }
+
+    @Override
+    public void save(String filename) {
+        throw new UnsupportedOperationException(name + " is only saved to a binary checkpoint");
+    }
+
+    //the Adam state is saved for the materialised rows only : their count, ids, steps, then their m and v rows end to end
+    @Override
+    public void save(Checkpoint.Writer writer) throws IOException {
+        super.save(writer);
+        writer.writeInt(vocabulary);
+        writer.writeFloat(learningRate);
+        writer.writeFloats(table);
+        writer.writeString(optimizer.getName());
+        optimizer.save(writer);
+
+        int rows = 0;
+        for (int id = 0; m!=null && id < vocabulary; id++)
+            if(m[id]!=null)
+                rows++;
+        writer.writeInt(rows);
+        float[] ms = new float[rows*dimension];
+        float[] vs = new float[rows*dimension];
+        for (int id = 0, r = 0; r < rows; id++) {
+            if(m[id]==null)
+                continue;
+            writer.writeInt(id);
+            writer.writeInt(steps[id]);
+            System.arraycopy(m[id], 0, ms, r*dimension, dimension);
+            System.arraycopy(v[id], 0, vs, r*dimension, dimension);
+            r++;
+        }
+        writer.writeFloats(ms);
+        writer.writeFloats(vs);
+    }
+
+    @Override
+    public void read(Checkpoint.Reader reader) {
+        super.read(reader);
+        vocabulary = reader.readInt();
+        dimension = outputSize/inputSize;
+        learningRate = reader.readFloat();
+        table = reader.readFloats();
+        if(table.length!=vocabulary*dimension || outputSize!=inputSize*dimension)
+            throw new IllegalStateException(name + " record does not match [" + vocabulary + "," + dimension + "]");
+        optimizer = Optimizer.of(reader.readString());
+        optimizer.read(reader);
+
+        int rows = reader.readInt();
+        int[] ids = new int[rows];
+        int[] counts = new int[rows];
+        for (int r = 0; r < rows; r++) {
+            ids[r] = reader.readInt();
+            counts[r] = reader.readInt();
+        }
+        float[] ms = reader.readFloats();
+        float[] vs = reader.readFloats();
+        allocate();
+        for (int r = 0; r < rows; r++) {
+            m[ids[r]] = Arrays.copyOfRange(ms, r*dimension, (r+1)*dimension);
+            v[ids[r]] = Arrays.copyOfRange(vs, r*dimension, (r+1)*dimension);
+            steps[ids[r]] = counts[r];
+        }
+    }
+}
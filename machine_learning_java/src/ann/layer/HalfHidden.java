@@ -0,0 +1,95 @@
+package ann.layer;
+
+import ann.Checkpoint;
+import ann.Layer;
+import ann.Workspace;
+import ann.kernel.Gemm;
+import ann.kernel.Half;
+
+import java.io.IOException;
+
+/**
+ * Read only dense layer with 16 bit weights, for inference
+ * Weights are stored as float16 or bfloat16 (see Half) and widened to float inside the dot kernels, sums and biases stay float;
+ * half the weight bytes means half the memory traffic, which is what bounds single vector predict on wide layers
+ * Built from a trained Hidden layer by Network.toHalfPrecision(...)
+ * Supports output(...) and predict(...); backward(...) and update(...) throw
+ * w        : weights, row-major: w[j*inputSize+i]
+ * b        : biases
+ * bfloat16 : true for bfloat16 (float range, 8 bit mantissa), false for float16 (11 bit mantissa, +-65504)
+ */
+public class HalfHidden extends Layer {
+    protected short[] w;
+    protected float[] b;
+    protected boolean bfloat16;
+
+    public HalfHidden(Hidden hidden, boolean bfloat16) {
+        super(hidden.getInputSize(), hidden.getOutputSize());
+        this.bfloat16 = bfloat16;
+        name = bfloat16?"HIDDEN_BF16":"HIDDEN_FP16";
+        w = bfloat16?Half.toBFloat16(hidden.w):Half.toFloat16(hidden.w);
+        b = hidden.b.clone();
+    }
+
+    public HalfHidden(Checkpoint.Reader reader) {
+        super(reader);
+    }
+
+    @Override
+    public float[][] output(float[]... inputs) {
+        //y_j = sum_i(w_ji*x_i)+b_j
+        y = Workspace.matrix(y, inputs.length, outputSize);
+        Gemm.forward(inputs, w, bfloat16, b, y, inputSize, outputSize);
+        return y;
+    }
+
+    @Override
+    public float[][] backward(float[]... gradients) {
+        throw new UnsupportedOperationException(name + " is read only");
+    }
+
+    @Override
+    public void update(int batchSize) {
+        throw new UnsupportedOperationException(name + " is read only");
+    }
+
+    @Override
+    public float[] predict(float... inputs) {
+        float[] y = new float[outputSize];
+        predict(inputs, y);
+        return y;
+    }
+
+    @Override
+    public void predict(float[] inputs, float[] outputs) {
+        Gemm.forward(inputs, w, bfloat16, b, outputs, inputSize, outputSize);
+    }
+
+    //the parameters are never written, so the snapshot shares them
+    @Override
+    public HalfHidden snapshot() {
+        return (HalfHidden) replica();
+    }
+
+    @Override
+    public void save(String filename) {
+        throw new UnsupportedOperationException(name + " is only saved to a binary checkpoint");
+    }
+
+    @Override
+    public void save(Checkpoint.Writer writer) throws IOException {
+        super.save(writer);
+        writer.writeShorts(w);
+        writer.writeFloats(b);
+    }
+
+    @Override
+    public void read(Checkpoint.Reader reader) {
+        super.read(reader);
+        bfloat16 = name.equals("HIDDEN_BF16");
+        w = reader.readShorts();
+        b = reader.readFloats();
+        if(w.length!=outputSize*inputSize || b.length!=outputSize)
+            throw new IllegalStateException(name + " record does not match [" + inputSize + "," + outputSize + "]");
+    }
+}
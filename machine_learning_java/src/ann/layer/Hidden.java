@@ -1,18 +1,28 @@
 package ann.layer;
 
+import ann.Checkpoint;
 import ann.Layer;
+import ann.Optimizer;
+import ann.Profiler;
+import ann.Workspace;
+import ann.kernel.Gemm;
 
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Scanner;
 
 public class Hidden extends Layer {
-    protected float[][] w;//weights
+    protected float[] w;//weights, row-major: w[j*inputSize+i]
     protected float[] b;//biases
+    protected float[] dw;//weight gradients of the last backward pass
+    protected float[] db;//bias gradients of the last backward pass
 
     protected float learningRate;
+    protected Optimizer optimizer;//update rule, plain SGD unless set with setOptimizer(...)
 
     public Hidden(int size) {
         super(size);
@@ -21,16 +31,17 @@ public class Hidden extends Layer {
         name = "HIDDEN";
         learningRate = 0.01f;
 
-        w = new float[outputSize][inputSize];
+        w = new float[outputSize*inputSize];
         b = new float[outputSize];
 
         //random weights and biases
         for (int j = 0; j < outputSize; j++) {
             for (int i = 0; i < inputSize; i++) {
-                w[j][i] = (float) random.nextFloat(-2,2);
+                w[j*inputSize+i] = (float) random.nextFloat(-2,2);
             }
             b[j] = (float) 0;
         }
+        optimizer = new Optimizer();
     }
 
     public Hidden(int inputSize, int outputSize) {
@@ -38,16 +49,17 @@ public class Hidden extends Layer {
         name = "HIDDEN";
         learningRate = 0.01f;
 
-        w = new float[outputSize][inputSize];
+        w = new float[outputSize*inputSize];
         b = new float[outputSize];
 
         //random weights and biases
         for (int j = 0; j < outputSize; j++) {
             for (int i = 0; i < inputSize; i++) {
-                w[j][i] = (float) random.nextFloat(-2,2);
+                w[j*inputSize+i] = (float) random.nextFloat(-2,2);
             }
             b[j] = (float) 0;
         }
+        optimizer = new Optimizer();
     }
 
     public Hidden(String filename) {
@@ -55,83 +67,137 @@ public class Hidden extends Layer {
         name = "HIDDEN";
     }
 
+    public Hidden(Checkpoint.Reader reader) {
+        super(reader);
+        name = "HIDDEN";
+    }
+
+    @Override
     public Hidden setLearningRate(float learningRate) {
         this.learningRate = learningRate;
         return this;
     }
 
+    /**
+     * @param optimizer : update rule, the layer takes a copy with its own state so one optimizer can configure several layers
+     */
+    @Override
+    public Hidden setOptimizer(Optimizer optimizer) {
+        this.optimizer = optimizer.copy();
+        this.optimizer.allocate(w.length, b.length);
+        return this;
+    }
+
+    public Optimizer getOptimizer() {
+        return optimizer;
+    }
+
     @Override
     public float[][] output(float[]... inputs) {
         //y_j = sum_i(w_ji*x_i)+b_j
-        x = new float[inputs.length][inputSize];
-        float[][] y = new float[inputs.length][outputSize];
-        for (int t = 0; t < inputs.length; t++) {
-            for (int j = 0; j < outputSize; j++) {
-                y[t][j] = 0;
-                for (int i = 0; i < inputSize; i++) {
-                    x[t][i] = inputs[t][i];
-                    y[t][j] += w[j][i]*x[t][i];
-                }
-                y[t][j] += b[j];
-            }
-        }
+        float[][] x = input(inputs);
+        y = Workspace.matrix(y, inputs.length, outputSize);
+        Gemm.forward(x, w, b, y, inputSize, outputSize);
         return y;
     }
 
+    //true when output(...) and backward(...) are the plain dense ones, so HiddenActivation may run this layer
+    protected boolean isFusable() {
+        return true;
+    }
+
+    //keeps a copy of the inputs for backward(...)
+    float[][] input(float[][] inputs) {
+        x = Workspace.matrix(x, inputs.length, inputSize);
+        for (int t = 0; t < inputs.length; t++)
+            System.arraycopy(inputs[t], 0, x[t], 0, inputSize);
+        return x;
+    }
+
     @Override
-    public float[][] gradient(float[]... gradients) {
+    public float[][] backward(float[]... gradients) {
         //dw_ji -= dy_j*x_i
         //db_j -= dy_j;
-
-        float[][] dw = new float[outputSize][inputSize];
-        float[] db = new float[outputSize];
-        for (int t = 0; t < gradients.length; t++) {
-            for (int j = 0; j < outputSize; j++) {
-                for (int i = 0; i < inputSize; i++) {
-                    dw[j][i] +=gradients[t][j]*x[t][i];
-                }
-                db[j] +=gradients[t][j];
-            }
-        }
+        clearGradients();
+        Gemm.weightGradient(gradients, x, dw, db, inputSize, outputSize);
 
         //dx_i = sum_j(dy_j*w_ji)
-        float[][] dx = new float[gradients.length][inputSize];
-        for (int t = 0; t < gradients.length; t++) {
-            for (int i = 0; i < inputSize; i++) {
-                dx[t][i] = 0;
-                for (int j = 0; j < outputSize; j++) {
-                    dx[t][i] += gradients[t][j]*w[j][i];
-                }
-            }
-        }
+        dx = Workspace.matrix(dx, gradients.length, inputSize);
+        Gemm.inputGradient(gradients, w, dx, inputSize, outputSize);
+        return dx;
+    }
 
-        //Update
+    @Override
+    public void update(int batchSize) {
+        //Update, see Optimizer
         //w_ji -=learning * dw_ji
         //b_j -=learning * db_j
-        for (int j = 0; j < outputSize; j++) {
-            for (int i = 0; i < inputSize; i++) {
-                w[j][i] -=learningRate * dw[j][i]/ gradients.length;
-            }
-            b[j] -= learningRate * db[j]/ gradients.length;
+        optimizer.step();
+        optimizer.update(0, w, dw, learningRate, batchSize);
+        optimizer.update(1, b, db, learningRate, batchSize);
+    }
+
+    @Override
+    public long getFlops(String phase, int rows, int inputSize) {
+        long weights = (long) this.inputSize*outputSize;
+        return switch (phase) {
+            case Profiler.FORWARD -> rows*(2*weights+outputSize);//y = x.w+b
+            case Profiler.BACKWARD -> rows*(4*weights+outputSize);//dx = dy.w, dw += dy^T.x, db += dy
+            default -> (weights+outputSize)*optimizer.getFlops();
+        };
+    }
+
+    @Override
+    public Hidden replica() {
+        Hidden replica = (Hidden) super.replica();
+        replica.dw = null;
+        replica.db = null;
+        replica.optimizer = optimizer.replica();
+        return replica;
+    }
+
+    @Override
+    public void reduce(List<? extends Layer> replicas) {
+        clearGradients();
+        for(Layer layer:replicas){
+            Hidden replica = (Hidden) layer;
+            for (int k = 0; k < dw.length; k++)
+                dw[k] += replica.dw[k];
+            for (int j = 0; j < db.length; j++)
+                db[j] += replica.db[j];
         }
+    }
 
-        return dx;
+    private void clearGradients(){
+        if(dw==null || dw.length!=w.length) {
+            dw = new float[outputSize*inputSize];
+            db = new float[outputSize];
+        }
+        Arrays.fill(dw, 0);
+        Arrays.fill(db, 0);
     }
 
     @Override
     public float[] predict(float... inputs) {
         //y_j = sum_i(w_ji*x_i)+b_j
         float[] y = new float[outputSize];
-        for (int j = 0; j < outputSize; j++) {
-            y[j] = 0;
-            for (int i = 0; i < inputSize; i++) {
-                y[j] += w[j][i]*inputs[i];
-            }
-            y[j] += b[j];
-        }
+        Gemm.forward(inputs, w, b, y, inputSize, outputSize);
         return y;
     }
 
+    @Override
+    public void predict(float[] inputs, float[] outputs) {
+        Gemm.forward(inputs, w, b, outputs, inputSize, outputSize);
+    }
+
+    @Override
+    public Hidden snapshot() {
+        Hidden snapshot = replica();
+        snapshot.w = w.clone();
+        snapshot.b = b.clone();
+        return snapshot;
+    }
+
     @Override
     public void save(String filename){
         try {
@@ -144,7 +210,7 @@ public class Hidden extends Layer {
 
             for (int j = 0; j < outputSize; j++) {
                 for (int i = 0; i < inputSize; i++) {
-                    writer.write( w[j][i]+"\n");
+                    writer.write( w[j*inputSize+i]+"\n");
                 }
                 writer.write(b[j]+"\n");
             }
@@ -165,14 +231,15 @@ public class Hidden extends Layer {
             name = reader.next();
             learningRate = reader.nextFloat();
 
-            w = new float[outputSize][inputSize];
+            w = new float[outputSize*inputSize];
             b = new float[outputSize];
             for (int j = 0; j < outputSize; j++) {
                 for (int i = 0; i < inputSize; i++) {
-                    w[j][i] = reader.nextFloat();
+                    w[j*inputSize+i] = reader.nextFloat();
                 }
                 b[j] = reader.nextFloat();
             }
+            optimizer = new Optimizer();
 
             reader.close();
         } catch (FileNotFoundException e) {
@@ -180,4 +247,40 @@ public class Hidden extends Layer {
         }
     }
 
+    @Override
+    public void save(Checkpoint.Writer writer) throws IOException {
+        super.save(writer);
+        writer.writeFloat(learningRate);
+        writer.writeFloats(w);
+        writer.writeFloats(b);
+        saveOptimizer(writer);
+    }
+
+    //name and state of the optimizer, appended to the record
+    protected void saveOptimizer(Checkpoint.Writer writer) throws IOException {
+        writer.writeString(optimizer.getName());
+        optimizer.save(writer);
+    }
+
+    @Override
+    public void read(Checkpoint.Reader reader) {
+        super.read(reader);
+        learningRate = reader.readFloat();
+        w = reader.readFloats();
+        b = reader.readFloats();
+        if(w.length!=outputSize*inputSize || b.length!=outputSize)
+            throw new IllegalStateException(name + " record does not match [" + inputSize + "," + outputSize + "]");
+        readOptimizer(reader);
+    }
+
+    //records written before optimizers were saved end after the biases, those layers train with SGD
+    protected void readOptimizer(Checkpoint.Reader reader) {
+        if(!reader.hasRemaining()) {
+            optimizer = new Optimizer();
+            return;
+        }
+        optimizer = Optimizer.of(reader.readString());
+        optimizer.read(reader);
+    }
+
 }
@@ -0,0 +1,91 @@
+package ann.layer;
+
+import ann.Layer;
+import ann.Profiler;
+import ann.Workspace;
+import ann.kernel.Gemm;
+
+/**
+ * A Hidden layer followed by an Activation, run as one step
+ * The activation is applied in place on the Hidden output while it is still in cache,
+ * and backward gets f'(x) from that output (Activation.hasOutputGradient()), so the pre-activation is never stored
+ * Built by the execution plan of a Network for every such pair; parameters and gradients stay in the Hidden layer,
+ * so update(...), reduce(...) and save(...) of the original layers work unchanged
+ * hidden       : fused Hidden layer
+ * activation   : fused Activation, with an output gradient
+ * dz           : gradient at the output of hidden
+ */
+public class HiddenActivation extends Layer {
+    private final Hidden hidden;
+    private final Activation activation;
+    private float[][] dz;
+
+    public HiddenActivation(Hidden hidden, Activation activation) {
+        super(hidden.getInputSize(), hidden.getOutputSize());
+        if(!activation.hasOutputGradient())
+            throw new IllegalArgumentException(activation.getName() + " has no output gradient");
+        this.hidden = hidden;
+        this.activation = activation;
+        name = "HIDDEN_ACTIVATION";
+    }
+
+    /**
+     * @param layer     : layer l of a network
+     * @param next      : layer l+1
+     * @return          : the fused step for the pair, null if they can not be fused
+     */
+    public static HiddenActivation fuse(Layer layer, Layer next) {
+        if(layer instanceof Hidden hidden && hidden.isFusable() && next instanceof Activation activation && activation.hasOutputGradient())
+            return new HiddenActivation(hidden, activation);
+        return null;
+    }
+
+    @Override
+    public float[][] output(float[]... inputs) {
+        //y_j = f(sum_i(w_ji*x_i)+b_j)
+        float[][] x = hidden.input(inputs);
+        y = Workspace.matrix(y, inputs.length, outputSize);
+        Gemm.forward(x, hidden.w, hidden.b, y, inputSize, outputSize);
+        for (int t = 0; t < y.length; t++)
+            activation.f(y[t], y[t], outputSize);
+        return y;
+    }
+
+    @Override
+    public float[][] backward(float[]... gradients) {
+        //dz_j = dy_j * f'(z_j) from y_j
+        dz = Workspace.matrix(dz, gradients.length, outputSize);
+        for (int t = 0; t < gradients.length; t++)
+            activation.dfOutput(y[t], gradients[t], dz[t], outputSize);
+        return dx = hidden.backward(dz);
+    }
+
+    @Override
+    public void update(int batchSize) {
+        hidden.update(batchSize);
+    }
+
+    @Override
+    public long getFlops(String phase, int rows, int inputSize) {
+        long flops = hidden.getFlops(phase, rows, inputSize);
+        return phase.equals(Profiler.UPDATE)?flops:flops+activation.getFlops(phase, rows, outputSize);
+    }
+
+    @Override
+    public void predict(float[] inputs, float[] outputs) {
+        hidden.predict(inputs, outputs);
+        activation.f(outputs, outputs, outputSize);
+    }
+
+    @Override
+    public float[] predict(float... inputs) {
+        float[] y = new float[outputSize];
+        predict(inputs, y);
+        return y;
+    }
+
+    @Override
+    public int getOutputSize(int inputSize) {
+        return outputSize;
+    }
+}
@@ -0,0 +1,106 @@
+package ann.layer;
+
+import ann.Checkpoint;
+import ann.Layer;
+import ann.Workspace;
+import ann.kernel.Gemm;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+/**
+ * Read only dense layer whose weights and biases live outside the heap
+ * Either mapped in place from a binary checkpoint (Network.map(...)), so every JVM mapping the same file shares its pages,
+ * or copied from a Hidden layer to direct memory (Network.moveOffHeap())
+ * Supports output(...) and predict(...); backward(...) and update(...) throw, the parameters can not change
+ * Named and saved as a Hidden layer, so a checkpoint written from a mapped network reads back as Hidden layers
+ * w            : weights, row-major: w[j*inputSize+i]
+ * b            : biases
+ * learningRate : learning rate of the saved Hidden layer, kept for save(...)
+ */
+public class MappedHidden extends Layer {
+    protected FloatBuffer w;
+    protected FloatBuffer b;
+    protected float learningRate;
+
+    public MappedHidden(Checkpoint.Reader reader) {
+        super(reader);
+        name = "HIDDEN";
+    }
+
+    public MappedHidden(Hidden hidden) {
+        super(hidden.getInputSize(), hidden.getOutputSize());
+        name = "HIDDEN";
+        learningRate = hidden.learningRate;
+        w = direct(hidden.w);
+        b = direct(hidden.b);
+    }
+
+    private static FloatBuffer direct(float[] values) {
+        FloatBuffer buffer = ByteBuffer.allocateDirect(values.length*Float.BYTES).order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+        buffer.put(values).flip();
+        return buffer.asReadOnlyBuffer();
+    }
+
+    @Override
+    public float[][] output(float[]... inputs) {
+        //y_j = sum_i(w_ji*x_i)+b_j
+        y = Workspace.matrix(y, inputs.length, outputSize);
+        Gemm.forward(inputs, w, b, y, inputSize, outputSize);
+        return y;
+    }
+
+    @Override
+    public float[][] backward(float[]... gradients) {
+        throw new UnsupportedOperationException(name + " is read only");
+    }
+
+    @Override
+    public void update(int batchSize) {
+        throw new UnsupportedOperationException(name + " is read only");
+    }
+
+    @Override
+    public float[] predict(float... inputs) {
+        float[] y = new float[outputSize];
+        predict(inputs, y);
+        return y;
+    }
+
+    @Override
+    public void predict(float[] inputs, float[] outputs) {
+        Gemm.forward(inputs, w, b, outputs, inputSize, outputSize);
+    }
+
+    //the parameters are never written, so the snapshot shares them
+    @Override
+    public MappedHidden snapshot() {
+        return (MappedHidden) replica();
+    }
+
+    @Override
+    public void save(String filename) {
+        throw new UnsupportedOperationException(name + " is only saved to a binary checkpoint");
+    }
+
+    @Override
+    public void save(Checkpoint.Writer writer) throws IOException {
+        super.save(writer);
+        writer.writeFloat(learningRate);
+        writer.writeFloats(w);
+        writer.writeFloats(b);
+    }
+
+    //reads a Hidden record, the optimizer state that follows is skipped by Checkpoint.Reader.endRecord()
+    @Override
+    public void read(Checkpoint.Reader reader) {
+        super.read(reader);
+        learningRate = reader.readFloat();
+        w = reader.mapFloats();
+        b = reader.mapFloats();
+        if(w.limit()!=outputSize*inputSize || b.limit()!=outputSize)
+            throw new IllegalStateException(name + " record does not match [" + inputSize + "," + outputSize + "]");
+    }
+}
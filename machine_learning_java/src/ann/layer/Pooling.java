@@ -0,0 +1,148 @@
+package ann.layer;
+
+import ann.Checkpoint;
+import ann.Layer;
+import ann.Workspace;
+import ann.kernel.Kernel;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Pooling over channels-last images (see Conv2D), each channel pooled on its own over non overlapping windows
+ * This class averages the window, see ann.layer.pooling for the named layers
+ * Rows and columns left over when the window does not divide the image are dropped, their input gradient is 0
+ * height,width,channels    : input image
+ * poolHeight,poolWidth     : window size, also the step between two windows
+ * outputHeight,outputWidth : output image, height/poolHeight and width/poolWidth
+ */
+public class Pooling extends Layer {
+    protected static final Kernel kernel = Kernel.get();
+
+    protected int height;
+    protected int width;
+    protected int channels;
+    protected int poolHeight;
+    protected int poolWidth;
+    protected int outputHeight;
+    protected int outputWidth;
+
+    /**
+     * @param height        : input height
+     * @param width         : input width
+     * @param channels      : input channels
+     * @param poolHeight    : window height
+     * @param poolWidth     : window width
+     */
+    public Pooling(int height, int width, int channels, int poolHeight, int poolWidth) {
+        super(height*width*channels, 0);
+        name = "POOLING";
+        this.height = height;
+        this.width = width;
+        this.channels = channels;
+        this.poolHeight = poolHeight;
+        this.poolWidth = poolWidth;
+        shape();
+    }
+
+    public Pooling(Checkpoint.Reader reader) {
+        super(reader);
+    }
+
+    private void shape() {
+        outputHeight = height/poolHeight;
+        outputWidth = width/poolWidth;
+        if(outputHeight==0 || outputWidth==0)
+            throw new IllegalArgumentException("window " + poolHeight + "x" + poolWidth + " larger than image " + height + "x" + width);
+        inputSize = height*width*channels;
+        outputSize = outputHeight*outputWidth*channels;
+    }
+
+    public int getOutputHeight() {
+        return outputHeight;
+    }
+
+    public int getOutputWidth() {
+        return outputWidth;
+    }
+
+    @Override
+    public float[][] output(float[]... inputs) {
+        y = Workspace.matrix(y, inputs.length, outputSize);
+        for (int t = 0; t < inputs.length; t++)
+            predict(inputs[t], y[t]);
+        return y;
+    }
+
+    @Override
+    public float[][] backward(float[]... gradients) {
+        //dx_hwc = dy_pc/(poolHeight*poolWidth) for every pixel of the window of output p
+        float scale = 1f/(poolHeight*poolWidth);
+        dx = Workspace.matrix(dx, gradients.length, inputSize);
+        for (int t = 0; t < gradients.length; t++) {
+            Arrays.fill(dx[t], 0);
+            int p = 0;
+            for (int oh = 0; oh < outputHeight; oh++) {
+                for (int ow = 0; ow < outputWidth; ow++, p++) {
+                    for (int h = oh*poolHeight; h < (oh+1)*poolHeight; h++)
+                        for (int w = ow*poolWidth; w < (ow+1)*poolWidth; w++)
+                            kernel.axpy(scale, gradients[t], p*channels, dx[t], (h*width+w)*channels, channels);
+                }
+            }
+        }
+        return dx;
+    }
+
+    @Override
+    public float[] predict(float... inputs) {
+        float[] y = new float[outputSize];
+        predict(inputs, y);
+        return y;
+    }
+
+    @Override
+    public void predict(float[] inputs, float[] outputs) {
+        //y_pc = sum_window(x_hwc)/(poolHeight*poolWidth)
+        float scale = 1f/(poolHeight*poolWidth);
+        Arrays.fill(outputs, 0, outputSize, 0);
+        int p = 0;
+        for (int oh = 0; oh < outputHeight; oh++) {
+            for (int ow = 0; ow < outputWidth; ow++, p++) {
+                for (int h = oh*poolHeight; h < (oh+1)*poolHeight; h++)
+                    for (int w = ow*poolWidth; w < (ow+1)*poolWidth; w++)
+                        kernel.axpy(scale, inputs, (h*width+w)*channels, outputs, p*channels, channels);
+            }
+        }
+    }
+
+    @Override
+    public void save(String filename) {
+        throw new UnsupportedOperationException(name + " is only saved to a binary checkpoint");
+    }
+
+    @Override
+    public void save(Checkpoint.Writer writer) throws IOException {
+        super.save(writer);
+        writer.writeInt(height);
+        writer.writeInt(width);
+        writer.writeInt(channels);
+        writer.writeInt(poolHeight);
+        writer.writeInt(poolWidth);
+    }
+
+    @Override
+    public void read(Checkpoint.Reader reader) {
+        super.read(reader);
+        height = reader.readInt();
+        width = reader.readInt();
+        channels = reader.readInt();
+        poolHeight = reader.readInt();
+        poolWidth = reader.readInt();
+        shape();
+    }
+
+    @Override
+    public String toString() {
+        return name + "[" + height + "x" + width + "x" + channels + "," + outputHeight + "x" + outputWidth + "x" + channels + "]";
+    }
+}
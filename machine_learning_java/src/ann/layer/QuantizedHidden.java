@@ -0,0 +1,113 @@
+package ann.layer;
+
+import ann.Checkpoint;
+import ann.Layer;
+import ann.Workspace;
+import ann.kernel.Gemm;
+
+import java.io.IOException;
+
+/**
+ * Read only dense layer with int8 weights, built by ann.Quantizer from a trained Hidden layer
+ * Weights are quantized symmetrically with one scale per output row, inputs with one scale calibrated on sample data;
+ * dot products are summed in int and scaled back to float (see Gemm), biases stay float
+ * Supports output(...) and predict(...); backward(...) and update(...) throw
+ * w            : int8 weights, row-major: w[j*inputSize+i] ~ w_ji/rowScales[j]
+ * rowScales    : float value of one weight step of each output row, max_i(|w_ji|)/127
+ * inputScale   : float value of one input step, calibrated max(|x_i|)/127
+ * b            : biases
+ */
+public class QuantizedHidden extends Layer {
+    protected byte[] w;
+    protected float[] rowScales;
+    protected float inputScale;
+    protected float[] b;
+
+    /**
+     * @param hidden        : trained layer
+     * @param inputRange    : largest absolute input expected, inputs beyond it are clamped
+     */
+    public QuantizedHidden(Hidden hidden, float inputRange) {
+        super(hidden.getInputSize(), hidden.getOutputSize());
+        name = "HIDDEN_INT8";
+        inputScale = inputRange/127;
+        b = hidden.b.clone();
+        w = new byte[outputSize*inputSize];
+        rowScales = new float[outputSize];
+        float[] row = new float[inputSize];
+        //s_j = max_i(|w_ji|)/127, wq_ji = round(w_ji/s_j)
+        for (int j = 0; j < outputSize; j++) {
+            float max = 0;
+            for (int i = 0; i < inputSize; i++)
+                max = Math.max(max, Math.abs(hidden.w[j*inputSize+i]));
+            rowScales[j] = max/127;
+            System.arraycopy(hidden.w, j*inputSize, row, 0, inputSize);
+            Gemm.quantize(row, rowScales[j], w, j*inputSize, inputSize);
+        }
+    }
+
+    public QuantizedHidden(Checkpoint.Reader reader) {
+        super(reader);
+    }
+
+    @Override
+    public float[][] output(float[]... inputs) {
+        //y_j = sum_i(wq_ji*xq_i)*s_j*s_x+b_j
+        y = Workspace.matrix(y, inputs.length, outputSize);
+        Gemm.forward(inputs, inputScale, w, rowScales, b, y, inputSize, outputSize);
+        return y;
+    }
+
+    @Override
+    public float[][] backward(float[]... gradients) {
+        throw new UnsupportedOperationException(name + " is read only");
+    }
+
+    @Override
+    public void update(int batchSize) {
+        throw new UnsupportedOperationException(name + " is read only");
+    }
+
+    @Override
+    public float[] predict(float... inputs) {
+        float[] y = new float[outputSize];
+        predict(inputs, y);
+        return y;
+    }
+
+    @Override
+    public void predict(float[] inputs, float[] outputs) {
+        Gemm.forward(inputs, inputScale, w, rowScales, b, outputs, inputSize, outputSize);
+    }
+
+    //the parameters are never written, so the snapshot shares them
+    @Override
+    public QuantizedHidden snapshot() {
+        return (QuantizedHidden) replica();
+    }
+
+    @Override
+    public void save(String filename) {
+        throw new UnsupportedOperationException(name + " is only saved to a binary checkpoint");
+    }
+
+    @Override
+    public void save(Checkpoint.Writer writer) throws IOException {
+        super.save(writer);
+        writer.writeFloat(inputScale);
+        writer.writeBytes(w);
+        writer.writeFloats(rowScales);
+        writer.writeFloats(b);
+    }
+
+    @Override
+    public void read(Checkpoint.Reader reader) {
+        super.read(reader);
+        inputScale = reader.readFloat();
+        w = reader.readBytes();
+        rowScales = reader.readFloats();
+        b = reader.readFloats();
+        if(w.length!=outputSize*inputSize || rowScales.length!=outputSize || b.length!=outputSize)
+            throw new IllegalStateException(name + " record does not match [" + inputSize + "," + outputSize + "]");
+    }
+}
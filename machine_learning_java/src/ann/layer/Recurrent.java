@@ -0,0 +1,568 @@
+package ann.layer;
+
+import ann.Checkpoint;
+import ann.Layer;
+import ann.Optimizer;
+import ann.Profiler;
+import ann.Workspace;
+import ann.kernel.FastMath;
+import ann.kernel.Gemm;
+import ann.kernel.Kernel;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Recurrent layer over sequences, each input row holds steps steps of features values : x[s*features+f]
+ * The output is the hidden state after the last step, or with sequences the hidden state after every step : y[s*hiddenSize+j]
+ * This class is the plain tanh cell h = tanh(wx.x+bx + wh.h_prev+bh), see ann.layer.recurrent for LSTM and GRU
+ * All the gates of a step come from one matrix product : the input part of every step of the window is one Gemm over
+ * rows*window rows, then each step runs one Gemm over the rows for the recurrent part, whose rows hold the gates side by side
+ * Truncated backpropagation through time : only the last window steps keep what backward(...) needs, gradients flow back
+ * through those steps and stop at the state the window started from, the outputs of earlier steps get no gradient;
+ * so memory is O(rows*window*gates*hiddenSize) whatever the number of steps, and window = steps is full backpropagation
+ * With stateful, a sequence continues in the next batch : each row starts from the state its row ended with in the last call
+ * (same batch size), which is how long streams are fed in chunks of steps; state is not saved in checkpoints
+ * steps,features       : input sequence
+ * hiddenSize           : state size
+ * gates                : gates per state value, each a block of hiddenSize in the gate rows
+ * wx,bx                : input weights [gates*hiddenSize][features] and biases
+ * wh,bh                : recurrent weights [gates*hiddenSize][hiddenSize] and biases
+ * xs,z                 : window inputs and gates, row s*rows+t for step s of row t
+ * h,c                  : states before and after each window step, h[0] is the state the window starts from; c for cells with one
+ * stateH,stateC        : state at the end of the last call, for stateful
+ * fastMath             : FastMath approximations in the cells, null follows FastMath.isEnabled()
+ */
+public class Recurrent extends Layer {
+    protected static final Kernel kernel = Kernel.get();
+    private static final ThreadLocal<float[][]> SCRATCH = new ThreadLocal<>();
+
+    protected int steps;
+    protected int features;
+    protected int hiddenSize;
+    protected int gates;
+    protected boolean sequences;
+    protected int window;
+    protected boolean stateful;
+    protected Boolean fastMath;//null follows FastMath.isEnabled()
+
+    protected float[] wx;
+    protected float[] bx;
+    protected float[] wh;
+    protected float[] bh;
+    protected float[] dwx;
+    protected float[] dbx;
+    protected float[] dwh;
+    protected float[] dbh;
+    protected float learningRate;
+    protected Optimizer optimizer;
+
+    private int length;//steps in the window
+    private float[][] xs;
+    private float[][] z;
+    private float[][] hz;
+    private float[][] xStep;
+    private float[][] zStep;
+    private float[][][] h;
+    private float[][][] c;
+    private float[][] dh;
+    private float[][] dc;
+    private float[][] dz;
+    private float[][] dzh;
+    private float[][] dhPrev;
+    private float[][] dxs;
+    private float[][] stateH;
+    private float[][] stateC;
+
+    /**
+     * @param steps         : steps per input row
+     * @param features      : values per step
+     * @param hiddenSize    : state size
+     * @param sequences     : true to output the state after every step, false for the last one only
+     */
+    public Recurrent(int steps, int features, int hiddenSize, boolean sequences) {
+        this(steps, features, hiddenSize, sequences, 1);
+        name = "RECURRENT";
+    }
+
+    protected Recurrent(int steps, int features, int hiddenSize, boolean sequences, int gates) {
+        super(steps*features, sequences?steps*hiddenSize:hiddenSize);
+        this.steps = steps;
+        this.features = features;
+        this.hiddenSize = hiddenSize;
+        this.sequences = sequences;
+        this.gates = gates;
+        window = steps;
+        learningRate = 0.01f;
+
+        //random weights and biases in +-1/sqrt(hiddenSize)
+        int size = gates*hiddenSize;
+        wx = new float[size*features];
+        bx = new float[size];
+        wh = new float[size*hiddenSize];
+        bh = new float[size];
+        float range = (float) (1/Math.sqrt(hiddenSize));
+        for(float[] p:new float[][]{wx, bx, wh, bh})
+            for (int k = 0; k < p.length; k++)
+                p[k] = random.nextFloat(-range,range);
+        optimizer = new Optimizer();
+    }
+
+    public Recurrent(Checkpoint.Reader reader) {
+        super(reader);
+    }
+
+    @Override
+    public Recurrent setLearningRate(float learningRate) {
+        this.learningRate = learningRate;
+        return this;
+    }
+
+    //see Hidden.setOptimizer(...), slots are wx, bx, wh, bh
+    @Override
+    public Recurrent setOptimizer(Optimizer optimizer) {
+        this.optimizer = optimizer.copy();
+        this.optimizer.allocate(wx.length, bx.length, wh.length, bh.length);
+        return this;
+    }
+
+    public Optimizer getOptimizer() {
+        return optimizer;
+    }
+
+    /**
+     * @param window    : steps gradients flow back through, from the end of the input; steps or more for full backpropagation
+     * @return          : this
+     */
+    public Recurrent setWindow(int window) {
+        if(window<1)
+            throw new IllegalArgumentException("window " + window);
+        this.window = window;
+        return this;
+    }
+
+    public int getWindow() {
+        return window;
+    }
+
+    /**
+     * @param stateful  : true to start each row from the state it ended with in the last call
+     * @return          : this
+     */
+    public Recurrent setStateful(boolean stateful) {
+        this.stateful = stateful;
+        resetState();
+        return this;
+    }
+
+    //see Activation.setFastMath(...), covers the sigmoid and tanh of every cell
+    public Recurrent setFastMath(Boolean fastMath) {
+        this.fastMath = fastMath;
+        return this;
+    }
+
+    protected boolean isFastMath(){
+        return fastMath!=null?fastMath:FastMath.isEnabled();
+    }
+
+    //the next call starts every row from zero
+    public void resetState() {
+        stateH = null;
+        stateC = null;
+    }
+
+    public int getSteps() {
+        return steps;
+    }
+
+    public int getHiddenSize() {
+        return hiddenSize;
+    }
+
+    //length of a gate row, cells that keep more than their gates for the backward pass make it longer
+    protected int rowSize() {
+        return gates*hiddenSize;
+    }
+
+    //true for cells with a cell state next to h
+    protected boolean hasCell() {
+        return false;
+    }
+
+    /**
+     * One step of one row
+     * @param z     : input part of the gate pre-activations, overwritten with what cellGradient(...) needs
+     * @param hz    : recurrent part of the gate pre-activations
+     * @param hPrev : state before the step
+     * @param cPrev : cell state before the step, null without one
+     * @param h     : state after the step
+     * @param c     : cell state after the step, null without one
+     */
+    protected void cell(float[] z, float[] hz, float[] hPrev, float[] cPrev, float[] h, float[] c) {
+        //h = tanh(zx+zh)
+        for (int j = 0; j < hiddenSize; j++) {
+            h[j] = tanh(z[j]+hz[j]);
+            z[j] = h[j];
+        }
+    }
+
+    /**
+     * Gradients of one step of one row
+     * @param z         : row left by cell(...)
+     * @param hPrev     : state before the step
+     * @param cPrev     : cell state before the step, null without one
+     * @param c         : cell state after the step, null without one
+     * @param dh        : gradient of the state after the step
+     * @param dc        : gradient of the cell state after the step, replaced by the one before the step; null without one
+     * @param dzx       : gradients of the input part of the pre-activations
+     * @param dzh       : gradients of the recurrent part of the pre-activations
+     * @param dhPrev    : gradient of the state before the step, apart from the one through dzh
+     */
+    protected void cellGradient(float[] z, float[] hPrev, float[] cPrev, float[] c, float[] dh, float[] dc,
+                                float[] dzx, float[] dzh, float[] dhPrev) {
+        //dz = dh*(1-h^2)
+        for (int j = 0; j < hiddenSize; j++) {
+            dzx[j] = dh[j]*(1-z[j]*z[j]);
+            dzh[j] = dzx[j];
+            dhPrev[j] = 0;
+        }
+    }
+
+    protected float sigmoid(float x) {
+        if(isFastMath())
+            return FastMath.sigmoid(x);
+        return (float) (1/(1+Math.exp(-x)));
+    }
+
+    protected float tanh(float x) {
+        if(isFastMath())
+            return FastMath.tanh(x);
+        return (float) Math.tanh(x);
+    }
+
+    @Override
+    public float[][] output(float[]... inputs) {
+        int rows = inputs.length;
+        int size = gates*hiddenSize;
+        length = Math.min(window, steps);
+        int first = steps-length;
+        allocate(rows);
+        y = Workspace.matrix(y, rows, outputSize);
+        for (int t = 0; t < rows; t++) {
+            boolean carried = stateful && stateH!=null && stateH.length==rows;
+            if(carried)
+                System.arraycopy(stateH[t], 0, h[0][t], 0, hiddenSize);
+            else
+                Arrays.fill(h[0][t], 0);
+            if(c!=null) {
+                if(carried)
+                    System.arraycopy(stateC[t], 0, c[0][t], 0, hiddenSize);
+                else
+                    Arrays.fill(c[0][t], 0);
+            }
+        }
+
+        //steps before the window, only the running state is kept (in h[0], h[1] is scratch)
+        for (int s = 0; s < first; s++) {
+            for (int t = 0; t < rows; t++)
+                System.arraycopy(inputs[t], s*features, xStep[t], 0, features);
+            Gemm.forward(xStep, wx, bx, zStep, features, size);
+            Gemm.forward(h[0], wh, bh, hz, hiddenSize, size);
+            for (int t = 0; t < rows; t++)
+                cell(zStep[t], hz[t], h[0][t], c==null?null:c[0][t], h[1][t], c==null?null:c[1][t]);
+            swap(h);
+            if(c!=null)
+                swap(c);
+            if(sequences)
+                for (int t = 0; t < rows; t++)
+                    System.arraycopy(h[0][t], 0, y[t], s*hiddenSize, hiddenSize);
+        }
+
+        //window : zx for all its steps at once, then zh and the cells step by step
+        for (int s = 0; s < length; s++)
+            for (int t = 0; t < rows; t++)
+                System.arraycopy(inputs[t], (first+s)*features, xs[s*rows+t], 0, features);
+        Gemm.forward(xs, wx, bx, z, features, size);
+        for (int s = 0; s < length; s++) {
+            Gemm.forward(h[s], wh, bh, hz, hiddenSize, size);
+            for (int t = 0; t < rows; t++)
+                cell(z[s*rows+t], hz[t], h[s][t], c==null?null:c[s][t], h[s+1][t], c==null?null:c[s+1][t]);
+            if(sequences)
+                for (int t = 0; t < rows; t++)
+                    System.arraycopy(h[s+1][t], 0, y[t], (first+s)*hiddenSize, hiddenSize);
+        }
+        if(!sequences)
+            for (int t = 0; t < rows; t++)
+                System.arraycopy(h[length][t], 0, y[t], 0, hiddenSize);
+
+        if(stateful) {
+            stateH = copy(h[length], stateH);
+            if(c!=null)
+                stateC = copy(c[length], stateC);
+        }
+        return y;
+    }
+
+    private static void swap(float[][][] states) {
+        float[][] state = states[0];
+        states[0] = states[1];
+        states[1] = state;
+    }
+
+    private float[][] copy(float[][] from, float[][] to) {
+        to = Workspace.matrix(to, from.length, hiddenSize);
+        for (int t = 0; t < from.length; t++)
+            System.arraycopy(from[t], 0, to[t], 0, hiddenSize);
+        return to;
+    }
+
+    //buffers for rows rows and the current window length
+    private void allocate(int rows) {
+        int size = gates*hiddenSize;
+        xs = Workspace.matrix(xs, rows*length, features);
+        z = Workspace.matrix(z, rows*length, rowSize());
+        hz = Workspace.matrix(hz, rows, size);
+        if(length<steps) {
+            xStep = Workspace.matrix(xStep, rows, features);
+            zStep = Workspace.matrix(zStep, rows, rowSize());
+        }
+        h = states(h, rows);
+        if(hasCell())
+            c = states(c, rows);
+    }
+
+    private float[][][] states(float[][][] states, int rows) {
+        if(states!=null && states.length==length+1 && states[0].length==rows)
+            return states;
+        return new float[length+1][rows][hiddenSize];
+    }
+
+    @Override
+    public float[][] backward(float[]... gradients) {
+        //from the last window step back : dh = dy + gradient from the next step, then the cell gives dzx,dzh,
+        //dwh += dzh^T.h_prev and dh_prev = dzh.wh + direct part; after the loop dwx += dzx^T.x and dx = dzx.wx for all the window
+        int rows = gradients.length;
+        int size = gates*hiddenSize;
+        int first = steps-length;
+        clearGradients();
+        dh = Workspace.matrix(dh, rows, hiddenSize);
+        dz = Workspace.matrix(dz, rows*length, size);
+        dzh = Workspace.matrix(dzh, rows, size);
+        dhPrev = Workspace.matrix(dhPrev, rows, hiddenSize);
+        for(float[] row:dh)
+            Arrays.fill(row, 0);
+        if(c!=null) {
+            dc = Workspace.matrix(dc, rows, hiddenSize);
+            for(float[] row:dc)
+                Arrays.fill(row, 0);
+        }
+
+        for (int s = length-1; s >= 0; s--) {
+            for (int t = 0; t < rows; t++) {
+                if(sequences)
+                    kernel.axpy(1, gradients[t], (first+s)*hiddenSize, dh[t], 0, hiddenSize);
+                else if(s==length-1)
+                    kernel.axpy(1, gradients[t], 0, dh[t], 0, hiddenSize);
+                cellGradient(z[s*rows+t], h[s][t], c==null?null:c[s][t], c==null?null:c[s+1][t], dh[t], c==null?null:dc[t],
+                        dz[s*rows+t], dzh[t], dhPrev[t]);
+            }
+            Gemm.weightGradient(dzh, h[s], dwh, dbh, hiddenSize, size);
+            Gemm.inputGradient(dzh, wh, dh, hiddenSize, size);
+            for (int t = 0; t < rows; t++)
+                kernel.axpy(1, dhPrev[t], 0, dh[t], 0, hiddenSize);
+        }
+
+        Gemm.weightGradient(dz, xs, dwx, dbx, features, size);
+        dxs = Workspace.matrix(dxs, rows*length, features);
+        Gemm.inputGradient(dz, wx, dxs, features, size);
+        dx = Workspace.matrix(dx, rows, inputSize);
+        for (int t = 0; t < rows; t++) {
+            Arrays.fill(dx[t], 0, first*features, 0);
+            for (int s = 0; s < length; s++)
+                System.arraycopy(dxs[s*rows+t], 0, dx[t], (first+s)*features, features);
+        }
+        return dx;
+    }
+
+    @Override
+    public void update(int batchSize) {
+        //Update, see Optimizer
+        optimizer.step();
+        optimizer.update(0, wx, dwx, learningRate, batchSize);
+        optimizer.update(1, bx, dbx, learningRate, batchSize);
+        optimizer.update(2, wh, dwh, learningRate, batchSize);
+        optimizer.update(3, bh, dbh, learningRate, batchSize);
+    }
+
+    @Override
+    public long getFlops(String phase, int rows, int inputSize) {
+        //matrix products only : input and recurrent part of the gates of every step, backward through the window steps
+        long products = (long) rows*(features+hiddenSize)*gates*hiddenSize;
+        return switch (phase) {
+            case Profiler.FORWARD -> 2*products*steps;
+            case Profiler.BACKWARD -> 4*products*Math.min(window, steps);
+            default -> (long) (wx.length+bx.length+wh.length+bh.length)*optimizer.getFlops();
+        };
+    }
+
+    @Override
+    public Recurrent replica() {
+        Recurrent replica = (Recurrent) super.replica();
+        replica.dwx = null;
+        replica.dbx = null;
+        replica.dwh = null;
+        replica.dbh = null;
+        replica.xs = null;
+        replica.z = null;
+        replica.hz = null;
+        replica.xStep = null;
+        replica.zStep = null;
+        replica.h = null;
+        replica.c = null;
+        replica.dh = null;
+        replica.dc = null;
+        replica.dz = null;
+        replica.dzh = null;
+        replica.dhPrev = null;
+        replica.dxs = null;
+        replica.stateH = null;
+        replica.stateC = null;
+        replica.optimizer = optimizer.replica();
+        return replica;
+    }
+
+    @Override
+    public void reduce(List<? extends Layer> replicas) {
+        clearGradients();
+        for(Layer layer:replicas){
+            Recurrent replica = (Recurrent) layer;
+            kernel.axpy(1, replica.dwx, 0, dwx, 0, dwx.length);
+            kernel.axpy(1, replica.dbx, 0, dbx, 0, dbx.length);
+            kernel.axpy(1, replica.dwh, 0, dwh, 0, dwh.length);
+            kernel.axpy(1, replica.dbh, 0, dbh, 0, dbh.length);
+        }
+    }
+
+    private void clearGradients(){
+        dwx = Workspace.vector(dwx, wx.length);
+        dbx = Workspace.vector(dbx, bx.length);
+        dwh = Workspace.vector(dwh, wh.length);
+        dbh = Workspace.vector(dbh, bh.length);
+        Arrays.fill(dwx, 0);
+        Arrays.fill(dbx, 0);
+        Arrays.fill(dwh, 0);
+        Arrays.fill(dbh, 0);
+    }
+
+    @Override
+    public float[] predict(float... inputs) {
+        float[] y = new float[outputSize];
+        predict(inputs, y);
+        return y;
+    }
+
+    //runs the whole sequence from a zero state, whatever stateful is
+    @Override
+    public void predict(float[] inputs, float[] outputs) {
+        int size = gates*hiddenSize;
+        float[][] scratch = scratch();
+        float[] z = scratch[0], hz = scratch[1];
+        float[] hPrev = scratch[2], h = scratch[3];
+        float[] cPrev = hasCell()?scratch[4]:null, c = hasCell()?scratch[5]:null;
+        Arrays.fill(hPrev, 0, hiddenSize, 0);
+        if(cPrev!=null)
+            Arrays.fill(cPrev, 0, hiddenSize, 0);
+        for (int s = 0; s < steps; s++) {
+            for (int j = 0; j < size; j++) {
+                z[j] = kernel.dot(bx[j], wx, j*features, inputs, s*features, features);
+                hz[j] = kernel.dot(bh[j], wh, j*hiddenSize, hPrev, 0, hiddenSize);
+            }
+            cell(z, hz, hPrev, cPrev, h, c);
+            if(sequences)
+                System.arraycopy(h, 0, outputs, s*hiddenSize, hiddenSize);
+            float[] swap = hPrev;
+            hPrev = h;
+            h = swap;
+            swap = cPrev;
+            cPrev = c;
+            c = swap;
+        }
+        if(!sequences)
+            System.arraycopy(hPrev, 0, outputs, 0, hiddenSize);
+    }
+
+    //gate rows and states for predict(...), per thread
+    private float[][] scratch() {
+        float[][] scratch = SCRATCH.get();
+        if(scratch==null || scratch[0].length<rowSize() || scratch[1].length<gates*hiddenSize || scratch[2].length<hiddenSize) {
+            int size = Math.max(rowSize(), gates*hiddenSize);
+            scratch = new float[][]{new float[size], new float[size],
+                    new float[hiddenSize], new float[hiddenSize], new float[hiddenSize], new float[hiddenSize]};
+            SCRATCH.set(scratch);
+        }
+        return scratch;
+    }
+
+    @Override
+    public Recurrent snapshot() {
+        Recurrent snapshot = replica();
+        snapshot.wx = wx.clone();
+        snapshot.bx = bx.clone();
+        snapshot.wh = wh.clone();
+        snapshot.bh = bh.clone();
+        return snapshot;
+    }
+
+    @Override
+    public void save(String filename) {
+        throw new UnsupportedOperationException(name + " is only saved to a binary checkpoint");
+    }
+
+    @Override
+    public void save(Checkpoint.Writer writer) throws IOException {
+        super.save(writer);
+        writer.writeInt(steps);
+        writer.writeInt(features);
+        writer.writeInt(hiddenSize);
+        writer.writeInt(gates);
+        writer.writeInt(sequences?1:0);
+        writer.writeInt(window);
+        writer.writeInt(stateful?1:0);
+        writer.writeFloat(learningRate);
+        writer.writeFloats(wx);
+        writer.writeFloats(bx);
+        writer.writeFloats(wh);
+        writer.writeFloats(bh);
+        writer.writeString(optimizer.getName());
+        optimizer.save(writer);
+    }
+
+    @Override
+    public void read(Checkpoint.Reader reader) {
+        super.read(reader);
+        steps = reader.readInt();
+        features = reader.readInt();
+        hiddenSize = reader.readInt();
+        gates = reader.readInt();
+        sequences = reader.readInt()!=0;
+        window = reader.readInt();
+        stateful = reader.readInt()!=0;
+        learningRate = reader.readFloat();
+        wx = reader.readFloats();
+        bx = reader.readFloats();
+        wh = reader.readFloats();
+        bh = reader.readFloats();
+        int size = gates*hiddenSize;
+        if(wx.length!=size*features || bx.length!=size || wh.length!=size*hiddenSize || bh.length!=size
+                || inputSize!=steps*features || outputSize!=(sequences?steps*hiddenSize:hiddenSize))
+            throw new IllegalStateException(name + " record does not match [" + steps + "x" + features + "," + hiddenSize + "]");
+        optimizer = Optimizer.of(reader.readString());
+        optimizer.read(reader);
+    }
+
+    @Override
+    public String toString() {
+        return name + "[" + steps + "x" + features + "," + (sequences?steps + "x":"") + hiddenSize + "]";
+    }
+}
@@ -0,0 +1,215 @@
+package ann.layer;
+
+import ann.Checkpoint;
+import ann.Layer;
+import ann.Optimizer;
+import ann.Workspace;
+import ann.data.SparseVector;
+import ann.kernel.Kernel;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Dense layer over a high dimensional sparse input, first layer of a network trained with Network.train(SparseVector[],...)
+ * Weights are stored by input, so the weights of one input are contiguous and only the inputs that are non-zero are read :
+ * output(...) costs O(nnz*outputSize) and update(...) only writes the rows of the inputs seen in the batch, no dense dw is built
+ * Dense inputs are accepted too, their non-zero entries are found first
+ * Trained with plain SGD only, Network.setOptimizer(...) with any other optimizer leaves it as it is
+ * backward(...) returns no input gradient, a sparse input has nothing before it, so the execution plan only accepts it first
+ * w            : weights, by input: w[i*outputSize+j] is w_ji
+ * b            : biases
+ * db           : bias gradients of the last backward pass
+ * inputs       : sparse inputs of the last output(...) call, kept by reference until update(...)
+ * dy           : output gradients of the last backward pass
+ * shards       : replicas whose gradients were reduced into this layer, applied by the next update(...)
+ */
+public class SparseHidden extends Layer {
+    protected static final Kernel kernel = Kernel.get();
+
+    protected float[] w;
+    protected float[] b;
+    protected float[] db;
+    protected float learningRate;
+    private SparseVector[] inputs;
+    private float[][] dy;
+    private List<SparseHidden> shards;
+
+    public SparseHidden(int inputSize, int outputSize) {
+        super(inputSize, outputSize);
+        name = "HIDDEN_SPARSE";
+        learningRate = 0.01f;
+
+        w = new float[inputSize*outputSize];
+        b = new float[outputSize];
+
+        //random weights
+        for (int k = 0; k < w.length; k++)
+            w[k] = random.nextFloat(-2,2);
+    }
+
+    public SparseHidden(Checkpoint.Reader reader) {
+        super(reader);
+        name = "HIDDEN_SPARSE";
+    }
+
+    @Override
+    public SparseHidden setLearningRate(float learningRate) {
+        this.learningRate = learningRate;
+        return this;
+    }
+
+    //only plain SGD, the rows written by update(...) have no optimizer state
+    @Override
+    public SparseHidden setOptimizer(Optimizer optimizer) {
+        if(!supports(optimizer))
+            throw new IllegalArgumentException(name + " is trained with SGD, not " + optimizer.getName());
+        return this;
+    }
+
+    @Override
+    public boolean supports(Optimizer optimizer) {
+        return optimizer.getClass()==Optimizer.class;
+    }
+
+    @Override
+    public boolean hasInputGradient() {
+        return false;
+    }
+
+    public float[][] output(SparseVector... inputs) {
+        //y_j = sum_i(w_ji*x_i)+b_j over the non-zero x_i
+        this.inputs = inputs;
+        y = Workspace.matrix(y, inputs.length, outputSize);
+        for (int t = 0; t < inputs.length; t++)
+            predict(inputs[t], y[t]);
+        return y;
+    }
+
+    @Override
+    public float[][] output(float[]... inputs) {
+        SparseVector[] sparse = new SparseVector[inputs.length];
+        for (int t = 0; t < inputs.length; t++)
+            sparse[t] = SparseVector.of(inputs[t]);
+        return output(sparse);
+    }
+
+    @Override
+    public float[][] backward(float[]... gradients) {
+        //db_j = sum_t(dy_j)
+        //dw_ji = sum_t(dy_j*x_i) is applied by update(...) from the inputs and dy
+        dy = Workspace.matrix(dy, gradients.length, outputSize);
+        db = Workspace.vector(db, outputSize);
+        Arrays.fill(db, 0);
+        for (int t = 0; t < gradients.length; t++) {
+            System.arraycopy(gradients[t], 0, dy[t], 0, outputSize);
+            kernel.axpy(1, gradients[t], 0, db, 0, outputSize);
+        }
+        shards = null;
+        return null;
+    }
+
+    @Override
+    public void update(int batchSize) {
+        //Update
+        //w_ji -=learning * dy_j*x_i, only for the non-zero x_i
+        //b_j -=learning * db_j
+        if(shards==null) {
+            update(inputs, dy, batchSize);
+        } else {
+            for(SparseHidden shard:shards)
+                update(shard.inputs, shard.dy, batchSize);
+            shards = null;
+        }
+        for (int j = 0; j < outputSize; j++)
+            b[j] -= learningRate * db[j]/ batchSize;
+    }
+
+    private void update(SparseVector[] inputs, float[][] dy, int batchSize) {
+        for (int t = 0; t < inputs.length; t++) {
+            int[] indices = inputs[t].getIndices();
+            float[] values = inputs[t].getValues();
+            for (int k = 0; k < indices.length; k++)
+                kernel.axpy(-learningRate*values[k]/batchSize, dy[t], 0, w, indices[k]*outputSize, outputSize);
+        }
+    }
+
+    @Override
+    public SparseHidden replica() {
+        SparseHidden replica = (SparseHidden) super.replica();
+        replica.db = null;
+        replica.inputs = null;
+        replica.dy = null;
+        replica.shards = null;
+        return replica;
+    }
+
+    //bias gradients are summed, weight gradients stay with the replicas and are applied row by row by update(...)
+    @Override
+    @SuppressWarnings("unchecked")
+    public void reduce(List<? extends Layer> replicas) {
+        db = Workspace.vector(db, outputSize);
+        Arrays.fill(db, 0);
+        for(Layer replica:replicas)
+            kernel.axpy(1, ((SparseHidden) replica).db, 0, db, 0, outputSize);
+        shards = (List<SparseHidden>) replicas;
+    }
+
+    public float[] predict(SparseVector inputs) {
+        float[] y = new float[outputSize];
+        predict(inputs, y);
+        return y;
+    }
+
+    public void predict(SparseVector inputs, float[] outputs) {
+        if(inputs.getSize()!=inputSize)
+            throw new IllegalArgumentException("input of " + inputs.getSize() + " for " + this);
+        System.arraycopy(b, 0, outputs, 0, outputSize);
+        int[] indices = inputs.getIndices();
+        float[] values = inputs.getValues();
+        for (int k = 0; k < indices.length; k++)
+            kernel.axpy(values[k], w, indices[k]*outputSize, outputs, 0, outputSize);
+    }
+
+    @Override
+    public float[] predict(float... inputs) {
+        return predict(SparseVector.of(inputs));
+    }
+
+    @Override
+    public void predict(float[] inputs, float[] outputs) {
+        predict(SparseVector.of(inputs), outputs);
+    }
+
+    @Override
+    public SparseHidden snapshot() {
+        SparseHidden snapshot = replica();
+        snapshot.w = w.clone();
+        snapshot.b = b.clone();
+        return snapshot;
+    }
+
+    @Override
+    public void save(String filename) {
+        throw new UnsupportedOperationException(name + " is only saved to a binary checkpoint");
+    }
+
+    @Override
+    public void save(Checkpoint.Writer writer) throws IOException {
+        super.save(writer);
+        writer.writeFloat(learningRate);
+        writer.writeFloats(w);
+        writer.writeFloats(b);
+    }
+
+    @Override
+    public void read(Checkpoint.Reader reader) {
+        super.read(reader);
+        learningRate = reader.readFloat();
+        w = reader.readFloats();
+        b = reader.readFloats();
+        if(w.length!=inputSize*outputSize || b.length!=outputSize)
+            throw new IllegalStateException(name + " record does not match [" + inputSize + "," + outputSize + "]");
+    }
+}
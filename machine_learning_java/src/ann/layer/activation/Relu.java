@@ -1,5 +1,6 @@
 package ann.layer.activation;
 
+import ann.kernel.Kernel;
 import ann.layer.Activation;
 
 public class Relu extends Activation {
@@ -24,4 +25,19 @@ public class Relu extends Activation {
         else
             return 0;
     }
+
+    @Override
+    protected void f(float[] x, float[] y, int length) {
+        Kernel.get().relu(x, y, length);
+    }
+
+    @Override
+    public boolean hasOutputGradient() {
+        return true;
+    }
+
+    @Override
+    protected void dfOutput(float[] y, float[] dy, float[] dx, int length) {
+        Kernel.get().reluGradient(y, dy, dx, length);
+    }
 }
@@ -1,5 +1,6 @@
 package ann.layer.activation;
 
+import ann.kernel.Kernel;
 import ann.layer.Activation;
 
 public class Sigmoid extends Activation {
@@ -17,6 +18,25 @@ public class Sigmoid extends Activation {
     @Override
     //f'(x) = f(x)*(1-f(x))
     protected float df(float x){
-        return f(x)*(1-f(x));
+        float f = f(x);
+        return f*(1-f);
+    }
+
+    @Override
+    protected void f(float[] x, float[] y, int length) {
+        if(isFastMath())
+            Kernel.get().fastSigmoid(x, y, length);
+        else
+            Kernel.get().sigmoid(x, y, length);
+    }
+
+    @Override
+    public boolean hasOutputGradient() {
+        return true;
+    }
+
+    @Override
+    protected void dfOutput(float[] y, float[] dy, float[] dx, int length) {
+        Kernel.get().sigmoidGradient(y, dy, dx, length);
     }
 }
@@ -1,10 +1,10 @@
 package ann.layer.activation;
 
+import ann.Workspace;
+import ann.kernel.Kernel;
 import ann.layer.Activation;
 
 public class Softmax extends Activation {
-    private float[][] y;
-
     public Softmax() {
         super();
         name = "SOFTMAX";
@@ -14,49 +14,43 @@ public class Softmax extends Activation {
     public float[][] output(float[]... inputs) {
         inputSize = inputs[0].length;
         outputSize = inputSize;
-        y = new float[inputs.length][inputSize];
-        //y_i = exp(x_i)/sum_j(x_j)
-        for (int t = 0; t < inputs.length; t++) {
-            float sum = 0;
-            for (int i = 0; i < inputSize; i++)
-                sum += Math.exp(inputs[t][i]);
-            for (int i = 0; i < inputSize; i++) {
-                y[t][i]= (float) (Math.exp(inputs[t][i])/sum);
-            }
-        }
+        y = Workspace.matrix(y, inputs.length, inputSize);
+        for (int t = 0; t < inputs.length; t++)
+            f(inputs[t], y[t], inputSize);
         return y;
     }
+
+    //y_i = exp(x_i-m)/sum_j(exp(x_j-m)), m = max_j(x_j) keeps exp from overflowing
     @Override
-    public float[][] gradient(float[]... gradients) {
-        //dx_i = sum_j(dy_j*y_j*(del_ji-y_i))
-        //del_ji  = 1 for i==j
-        //del_ji  = 0 for i!=j
-        float[][] dx = new float[gradients.length][inputSize];
-        for (int t = 0; t < gradients.length; t++) {
-            for (int i = 0; i < inputSize; i++) {
-                dx[t][i] = 0;
-                for (int j = 0; j < inputSize; j++) {
-                    dx[t][i] += gradients[t][j]*y[t][j]*(del(j,i)-y[t][i]);
-                }
-            }
-        }
-        return dx;
+    protected void f(float[] x, float[] y, int length) {
+        float max = Float.NEGATIVE_INFINITY;
+        for (int i = 0; i < length; i++)
+            max = Math.max(max, x[i]);
+        float sum = exp(x, max, y, length);
+        float scale = 1/sum;
+        for (int i = 0; i < length; i++)
+            y[i] *= scale;
     }
 
-    private float del(int i,int j){
-        return i==j?1:0;
+    //y_i = exp(x_i-shift), returns sum_i(y_i); the exponential of f(...), also used by attention to normalise block by block
+    public float exp(float[] x, float shift, float[] y, int length) {
+        Kernel kernel = Kernel.get();
+        return isFastMath()?kernel.fastExp(x, shift, y, length):kernel.exp(x, shift, y, length);
     }
 
     @Override
-    public float[] predict(float... inputs) {
-        float[] y = new float[inputs.length];
-        //y_i = exp(x_i)/sum_j(x_j)
-        float sum = 0;
-        for (int i = 0; i < inputs.length; i++)
-            sum += Math.exp(inputs[i]);
-        for (int i = 0; i < inputs.length; i++) {
-            y[i]= (float) (Math.exp(inputs[i])/sum);
+    public float[][] backward(float[]... gradients) {
+        //dx_i = sum_j(dy_j*y_j*(del_ji-y_i)) = y_i*(dy_i-sum_j(dy_j*y_j))
+        //del_ji  = 1 for i==j
+        //del_ji  = 0 for i!=j
+        dx = Workspace.matrix(dx, gradients.length, inputSize);
+        for (int t = 0; t < gradients.length; t++) {
+            float dot = 0;
+            for (int j = 0; j < inputSize; j++)
+                dot += gradients[t][j]*y[t][j];
+            for (int i = 0; i < inputSize; i++)
+                dx[t][i] = y[t][i]*(gradients[t][i]-dot);
         }
-        return y;
+        return dx;
     }
 }
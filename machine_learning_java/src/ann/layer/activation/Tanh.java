@@ -1,5 +1,6 @@
 package ann.layer.activation;
 
+import ann.kernel.Kernel;
 import ann.layer.Activation;
 
 public class Tanh extends Activation {
@@ -19,4 +20,22 @@ public class Tanh extends Activation {
     protected float df(float x){
         return (float) (1-Math.pow(f(x),2));
     }
+
+    @Override
+    protected void f(float[] x, float[] y, int length) {
+        if(isFastMath())
+            Kernel.get().fastTanh(x, y, length);
+        else
+            Kernel.get().tanh(x, y, length);
+    }
+
+    @Override
+    public boolean hasOutputGradient() {
+        return true;
+    }
+
+    @Override
+    protected void dfOutput(float[] y, float[] dy, float[] dx, int length) {
+        Kernel.get().tanhGradient(y, dy, dx, length);
+    }
 }
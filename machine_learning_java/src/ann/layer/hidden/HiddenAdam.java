@@ -1,6 +1,8 @@
 package ann.layer.hidden;
 
+import ann.Checkpoint;
 import ann.layer.Hidden;
+import ann.optimizer.Adam;
 
 import java.io.File;
 import java.io.FileNotFoundException;
@@ -8,114 +10,65 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.util.Scanner;
 
+/**
+ * Hidden layer trained with Adam (see ann.optimizer.Adam), kept for its name and its saved files:
+ * the same as new Hidden(...).setOptimizer(new Adam()) with a learning rate of 0.001
+ * Its checkpoint record keeps the layout it had before optimizers were shared, momentum and rms are also in its text files;
+ * with another optimizer (set directly or by Network.setOptimizer(...)) the record holds a NaN momentum
+ * followed by the optimizer record of Hidden, and the text files, which only know Adam, are refused
+ */
 public class HiddenAdam extends Hidden {
-    protected float[][] mw;//for weight momentum
-    protected float[] mb;//for biases momentum
-    protected float[][] vw;//for weight rms
-    protected float[] vb;//for biases rms
-
-    protected float momentum    = 0.9f;//beta1
-    protected float rms         = 0.999f;//beta2
-    protected long epoch         = 0;
-
-    protected static float EPSILON = 1e-8f;
 
     public HiddenAdam(int size) {
         super(size);
-        mw = new float[outputSize][inputSize];
-        mb = new float[outputSize];
-        vw = new float[outputSize][inputSize];
-        vb = new float[outputSize];
-        epoch = 0;
+        setOptimizer(new Adam());
         name = "HIDDEN_ADAM";
         learningRate = 0.001f;
     }
 
     public HiddenAdam(int inputSize, int outputSize) {
         super(inputSize, outputSize);
-        mw = new float[outputSize][inputSize];
-        mb = new float[outputSize];
-        vw = new float[outputSize][inputSize];
-        vb = new float[outputSize];
-        epoch = 0;
+        setOptimizer(new Adam());
         name = "HIDDEN_ADAM";
         learningRate = 0.001f;
     }
 
     public HiddenAdam(String filename) {
         super(filename);
-        mw = new float[outputSize][inputSize];
-        mb = new float[outputSize];
-        vw = new float[outputSize][inputSize];
-        vb = new float[outputSize];
-        epoch = 0;
         name = "HIDDEN_ADAM";
         learningRate = 0.001f;
     }
 
+    public HiddenAdam(Checkpoint.Reader reader) {
+        super(reader);
+        name = "HIDDEN_ADAM";
+    }
+
     public HiddenAdam setMomentum(float momentum) {
-        this.momentum = momentum;
+        adam().setMomentum(momentum);
         return this;
     }
 
     public HiddenAdam setRms(float rms) {
-        this.rms = rms;
+        adam().setRms(rms);
         return this;
     }
 
-    @Override
-    public float[][] gradient(float[]... gradients) {
-        //dw_ji -= dy_j*x_i
-        //db_j -= dy_j;
-        float[][] dw = new float[outputSize][inputSize];
-        float[] db = new float[outputSize];
-        for (int t = 0; t < gradients.length; t++) {
-            for (int j = 0; j < outputSize; j++) {
-                for (int i = 0; i < inputSize; i++) {
-                    dw[j][i] +=gradients[t][j]*x[t][i];
-                }
-                db[j] +=gradients[t][j];
-            }
-        }
-
-        //dx_i = sum_j(dy_j*w_ji)
-        float[][] dx = new float[gradients.length][inputSize];
-        for (int t = 0; t < gradients.length; t++) {
-            for (int i = 0; i < inputSize; i++) {
-                dx[t][i] = 0;
-                for (int j = 0; j < outputSize; j++) {
-                    dx[t][i] += gradients[t][j]*w[j][i];
-                }
-            }
-        }
-
-        //Update
-        //m = beta1*m + (1-beta1) * d
-        //v = beta2*v + (1-beta2) * d^2
-        //M = m/(1-beta1^t)
-        //V = v/(1-beta2^t)
-        //theta -=learning*M/sqrt((V)+epsilon)
-        epoch++;
-        for (int j = 0; j < outputSize; j++) {
-            for (int i = 0; i < inputSize; i++) {
-                mw[j][i] = momentum*mw[j][i] + (1-momentum)*dw[j][i]/ gradients.length;
-                vw[j][i] = rms*vw[j][i] + (1-rms)*(dw[j][i]*dw[j][i])/ gradients.length;
-                float Mw = mw[j][i]/(1- (float)Math.pow(momentum,epoch));
-                float Vw = vw[j][i]/(1- (float)Math.pow(rms,epoch));
-                w[j][i] -=learningRate * Mw/ ( (float)Math.sqrt(Vw)+EPSILON);
-            }
-            mb[j] = momentum*mb[j] + (1-momentum)*db[j]/ gradients.length;
-            vb[j] = rms*vb[j] + (1-rms)*(db[j]*db[j])/ gradients.length;
-            float Mb = mb[j]/(1- (float)Math.pow(momentum,epoch));
-            float Vb = vb[j]/(1- (float)Math.pow(rms,epoch));
-            b[j] -=learningRate * Mb/( (float)Math.sqrt(Vb)+EPSILON);
-        }
+    private Adam adam() {
+        if(!(optimizer instanceof Adam adam))
+            throw new IllegalStateException(name + " trains with " + optimizer.getName() + ", not Adam");
+        return adam;
+    }
 
-        return dx;
+    //the layout of the first records, only for plain Adam
+    private boolean isLegacy() {
+        return optimizer.getClass()==Adam.class;
     }
 
     @Override
     public void save(String filename){
+        if(!isLegacy())
+            throw new UnsupportedOperationException(name + " with " + optimizer.getName() + " is only saved to a binary checkpoint");
         try {
             FileWriter writer = new FileWriter(filename+".layer");
 
@@ -123,12 +76,12 @@ public class HiddenAdam extends Hidden {
             writer.write(outputSize+"\n");
             writer.write(name+"\n");
             writer.write(learningRate+"\n");
-            writer.write(momentum+"\n");
-            writer.write(rms+"\n");
+            writer.write(adam().getMomentum()+"\n");
+            writer.write(adam().getRms()+"\n");
 
             for (int j = 0; j < outputSize; j++) {
                 for (int i = 0; i < inputSize; i++) {
-                    writer.write( w[j][i]+"\n");
+                    writer.write( w[j*inputSize+i]+"\n");
                 }
                 writer.write(b[j]+"\n");
             }
@@ -148,17 +101,17 @@ public class HiddenAdam extends Hidden {
             outputSize = reader.nextInt();
             name = reader.next();
             learningRate = reader.nextFloat();
-            momentum = reader.nextFloat();
-            rms = reader.nextFloat();
+            Adam adam = new Adam().setMomentum(reader.nextFloat()).setRms(reader.nextFloat());
 
-            w = new float[outputSize][inputSize];
+            w = new float[outputSize*inputSize];
             b = new float[outputSize];
             for (int j = 0; j < outputSize; j++) {
                 for (int i = 0; i < inputSize; i++) {
-                    w[j][i] = reader.nextFloat();
+                    w[j*inputSize+i] = reader.nextFloat();
                 }
                 b[j] = reader.nextFloat();
             }
+            setOptimizer(adam);
 
             reader.close();
         } catch (FileNotFoundException e) {
@@ -166,4 +119,39 @@ public class HiddenAdam extends Hidden {
         }
     }
 
+    //the moments and step count are kept, so training resumes where it stopped
+    @Override
+    protected void saveOptimizer(Checkpoint.Writer writer) throws IOException {
+        if(!isLegacy()) {
+            writer.writeFloat(Float.NaN);
+            super.saveOptimizer(writer);
+            return;
+        }
+        Adam adam = adam();
+        writer.writeFloat(adam.getMomentum());
+        writer.writeFloat(adam.getRms());
+        writer.writeLong(adam.getSteps());
+        writer.writeFloats(adam.getState(0, 0));
+        writer.writeFloats(adam.getState(1, 0));
+        writer.writeFloats(adam.getState(0, 1));
+        writer.writeFloats(adam.getState(1, 1));
+    }
+
+    @Override
+    protected void readOptimizer(Checkpoint.Reader reader) {
+        float momentum = reader.readFloat();
+        if(Float.isNaN(momentum)) {
+            super.readOptimizer(reader);
+            return;
+        }
+        Adam adam = new Adam().setMomentum(momentum).setRms(reader.readFloat());
+        long steps = reader.readLong();
+        setOptimizer(adam);
+        optimizer.setSteps(steps);
+        reader.readFloats(optimizer.getState(0, 0));
+        reader.readFloats(optimizer.getState(1, 0));
+        reader.readFloats(optimizer.getState(0, 1));
+        reader.readFloats(optimizer.getState(1, 1));
+    }
+
 }
@@ -0,0 +1,24 @@
+package ann.layer.pooling;
+
+import ann.Checkpoint;
+import ann.layer.Pooling;
+
+public class AvgPooling extends Pooling {
+
+    //square size x size windows over an image
+    public AvgPooling(int height, int width, int channels, int size) {
+        super(height, width, channels, size, size);
+        name = "AVG_POOLING";
+    }
+
+    //windows of size steps over a sequence of length steps
+    public AvgPooling(int length, int channels, int size) {
+        super(1, length, channels, 1, size);
+        name = "AVG_POOLING";
+    }
+
+    public AvgPooling(Checkpoint.Reader reader) {
+        super(reader);
+        name = "AVG_POOLING";
+    }
+}
@@ -0,0 +1,89 @@
+package ann.layer.pooling;
+
+import ann.Checkpoint;
+import ann.Workspace;
+import ann.layer.Pooling;
+
+import java.util.Arrays;
+
+/**
+ * Maximum of each window and channel; the gradient goes to the input that was the maximum (the first one on ties)
+ * argmax   : input index of every output of the last output(...) call
+ */
+public class MaxPooling extends Pooling {
+    private int[][] argmax;
+
+    //square size x size windows over an image
+    public MaxPooling(int height, int width, int channels, int size) {
+        super(height, width, channels, size, size);
+        name = "MAX_POOLING";
+    }
+
+    //windows of size steps over a sequence of length steps
+    public MaxPooling(int length, int channels, int size) {
+        super(1, length, channels, 1, size);
+        name = "MAX_POOLING";
+    }
+
+    public MaxPooling(Checkpoint.Reader reader) {
+        super(reader);
+        name = "MAX_POOLING";
+    }
+
+    @Override
+    public float[][] output(float[]... inputs) {
+        y = Workspace.matrix(y, inputs.length, outputSize);
+        if(argmax==null || argmax.length!=inputs.length)
+            argmax = new int[inputs.length][outputSize];
+        for (int t = 0; t < inputs.length; t++)
+            pool(inputs[t], y[t], argmax[t]);
+        return y;
+    }
+
+    @Override
+    public float[][] backward(float[]... gradients) {
+        //dx_argmax(p,c) += dy_pc
+        dx = Workspace.matrix(dx, gradients.length, inputSize);
+        for (int t = 0; t < gradients.length; t++) {
+            Arrays.fill(dx[t], 0);
+            for (int k = 0; k < outputSize; k++)
+                dx[t][argmax[t][k]] += gradients[t][k];
+        }
+        return dx;
+    }
+
+    @Override
+    public void predict(float[] inputs, float[] outputs) {
+        pool(inputs, outputs, null);
+    }
+
+    //y_pc = max_window(x_hwc), its input index in argmax if not null
+    private void pool(float[] x, float[] y, int[] argmax) {
+        int p = 0;
+        for (int oh = 0; oh < outputHeight; oh++) {
+            for (int ow = 0; ow < outputWidth; ow++, p++) {
+                int first = (oh*poolHeight*width+ow*poolWidth)*channels;
+                for (int c = 0; c < channels; c++) {
+                    int best = first+c;
+                    for (int h = oh*poolHeight; h < (oh+1)*poolHeight; h++) {
+                        for (int w = ow*poolWidth; w < (ow+1)*poolWidth; w++) {
+                            int k = (h*width+w)*channels+c;
+                            if(x[k]>x[best])
+                                best = k;
+                        }
+                    }
+                    y[p*channels+c] = x[best];
+                    if(argmax!=null)
+                        argmax[p*channels+c] = best;
+                }
+            }
+        }
+    }
+
+    @Override
+    public MaxPooling replica() {
+        MaxPooling replica = (MaxPooling) super.replica();
+        replica.argmax = null;
+        return replica;
+    }
+}
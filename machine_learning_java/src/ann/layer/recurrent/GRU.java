@@ -0,0 +1,69 @@
+package ann.layer.recurrent;
+
+import ann.Checkpoint;
+import ann.layer.Recurrent;
+
+/**
+ * Gated recurrent unit, gate rows are [r,u,n] blocks of hiddenSize, the recurrent part of n is reset after the product
+ * so all three gates still come from one product with h_prev :
+ * r = sigmoid(zr), u = sigmoid(zu), n = tanh(zxn + r*zhn)
+ * h = (1-u)*n + u*h_prev
+ * Rows also keep zhn after the gates for the backward pass
+ */
+public class GRU extends Recurrent {
+
+    public GRU(int steps, int features, int hiddenSize) {
+        this(steps, features, hiddenSize, false);
+    }
+
+    public GRU(int steps, int features, int hiddenSize, boolean sequences) {
+        super(steps, features, hiddenSize, sequences, 3);
+        name = "GRU";
+    }
+
+    public GRU(Checkpoint.Reader reader) {
+        super(reader);
+    }
+
+    @Override
+    protected int rowSize() {
+        return 4*hiddenSize;
+    }
+
+    @Override
+    protected void cell(float[] z, float[] hz, float[] hPrev, float[] cPrev, float[] h, float[] c) {
+        int n = hiddenSize;
+        for (int j = 0; j < n; j++) {
+            float r = sigmoid(z[j]+hz[j]);
+            float u = sigmoid(z[n+j]+hz[n+j]);
+            float hn = hz[2*n+j];
+            float nj = tanh(z[2*n+j]+r*hn);
+            h[j] = (1-u)*nj+u*hPrev[j];
+            z[j] = r;
+            z[n+j] = u;
+            z[2*n+j] = nj;
+            z[3*n+j] = hn;
+        }
+    }
+
+    @Override
+    protected void cellGradient(float[] z, float[] hPrev, float[] cPrev, float[] c, float[] dh, float[] dc,
+                                float[] dzx, float[] dzh, float[] dhPrev) {
+        //dn = dh*(1-u)*(1-n^2), du = dh*(h_prev-n)
+        //dzr = dn*zhn*r*(1-r), dzu = du*u*(1-u), dzxn = dn, dzhn = dn*r
+        //dh_prev = dh*u + the part through dzh
+        int n = hiddenSize;
+        for (int j = 0; j < n; j++) {
+            float r = z[j], u = z[n+j], nj = z[2*n+j], hn = z[3*n+j];
+            float dn = dh[j]*(1-u)*(1-nj*nj);
+            float du = dh[j]*(hPrev[j]-nj);
+            dzx[j] = dn*hn*r*(1-r);
+            dzx[n+j] = du*u*(1-u);
+            dzx[2*n+j] = dn;
+            dzh[j] = dzx[j];
+            dzh[n+j] = dzx[n+j];
+            dzh[2*n+j] = dn*r;
+            dhPrev[j] = dh[j]*u;
+        }
+    }
+}
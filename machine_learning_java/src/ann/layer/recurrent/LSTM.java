@@ -0,0 +1,71 @@
+package ann.layer.recurrent;
+
+import ann.Checkpoint;
+import ann.layer.Recurrent;
+
+/**
+ * Long short-term memory, gate rows are [i,f,g,o] blocks of hiddenSize :
+ * i = sigmoid(zi), f = sigmoid(zf), g = tanh(zg), o = sigmoid(zo)
+ * c = f*c_prev+i*g, h = o*tanh(c)
+ * The forget gate biases start at 1 so the cell state is kept until training says otherwise
+ */
+public class LSTM extends Recurrent {
+
+    public LSTM(int steps, int features, int hiddenSize) {
+        this(steps, features, hiddenSize, false);
+    }
+
+    public LSTM(int steps, int features, int hiddenSize, boolean sequences) {
+        super(steps, features, hiddenSize, sequences, 4);
+        name = "LSTM";
+        for (int j = hiddenSize; j < 2*hiddenSize; j++)
+            bx[j] = 1;
+    }
+
+    public LSTM(Checkpoint.Reader reader) {
+        super(reader);
+    }
+
+    @Override
+    protected boolean hasCell() {
+        return true;
+    }
+
+    @Override
+    protected void cell(float[] z, float[] hz, float[] hPrev, float[] cPrev, float[] h, float[] c) {
+        int n = hiddenSize;
+        for (int j = 0; j < n; j++) {
+            float i = sigmoid(z[j]+hz[j]);
+            float f = sigmoid(z[n+j]+hz[n+j]);
+            float g = tanh(z[2*n+j]+hz[2*n+j]);
+            float o = sigmoid(z[3*n+j]+hz[3*n+j]);
+            c[j] = f*cPrev[j]+i*g;
+            h[j] = o*tanh(c[j]);
+            z[j] = i;
+            z[n+j] = f;
+            z[2*n+j] = g;
+            z[3*n+j] = o;
+        }
+    }
+
+    @Override
+    protected void cellGradient(float[] z, float[] hPrev, float[] cPrev, float[] c, float[] dh, float[] dc,
+                                float[] dzx, float[] dzh, float[] dhPrev) {
+        //dc += dh*o*(1-tanh(c)^2), then
+        //dzi = dc*g*i*(1-i), dzf = dc*c_prev*f*(1-f), dzg = dc*i*(1-g^2), dzo = dh*tanh(c)*o*(1-o)
+        //dc_prev = dc*f
+        int n = hiddenSize;
+        for (int j = 0; j < n; j++) {
+            float i = z[j], f = z[n+j], g = z[2*n+j], o = z[3*n+j];
+            float tc = tanh(c[j]);
+            float dcj = dc[j]+dh[j]*o*(1-tc*tc);
+            dzx[j] = dcj*g*i*(1-i);
+            dzx[n+j] = dcj*cPrev[j]*f*(1-f);
+            dzx[2*n+j] = dcj*i*(1-g*g);
+            dzx[3*n+j] = dh[j]*tc*o*(1-o);
+            dc[j] = dcj*f;
+            dhPrev[j] = 0;
+        }
+        System.arraycopy(dzx, 0, dzh, 0, 4*n);
+    }
+}
@@ -1,6 +1,7 @@
 package ann.loss;
 
 import ann.Loss;
+import ann.Workspace;
 
 public class BinaryEntropy extends Loss {
     public BinaryEntropy() {
@@ -12,10 +13,9 @@ public class BinaryEntropy extends Loss {
     public float[][] gradient(float[][] inputs, float[][] reference) {
         //Loss -= ref*ln(y)+(1-ref)*ln(1-y)
         //dy = -(ref/y)+(1-ref)/(1-y)
-        float[][] dy =new float[inputs.length][];
+        float[][] dy = g = Workspace.matrix(g, inputs.length, inputs[0].length);
         loss = 0;
         for (int t = 0; t < inputs.length; t++) {
-            dy[t] = new float[inputs[t].length];
             for (int i = 0; i < inputs[t].length; i++) {
                 //System.out.println("*"+inputs[t][i]);
                 if(reference[t][i]>0.5f) {
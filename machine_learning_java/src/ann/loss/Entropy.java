@@ -1,6 +1,7 @@
 package ann.loss;
 
 import ann.Loss;
+import ann.Workspace;
 
 public class Entropy extends Loss {
     public Entropy() {
@@ -10,21 +11,22 @@ public class Entropy extends Loss {
 
     @Override
     public float[][] gradient(float[][] inputs, float[][] reference) {
-        //Loss = ref*ln(y)
-        //dy = ref/y
-        float[][] dy =new float[inputs.length][];
-        loss = 0;
+        //Loss = -sum_i(ref_i*ln(y_i))
+        //dy_i = -ref_i/y_i
+        //y_i is kept above Float.MIN_NORMAL so an underflowed probability gives a large finite loss and gradient
+        float[][] dy = g = Workspace.matrix(g, inputs.length, inputs[0].length);
+        double sumLoss = 0;
         for (int t = 0; t < inputs.length; t++) {
-            dy[t] = new float[inputs[t].length];
             for (int i = 0; i < inputs[t].length; i++) {
-                //System.out.println("*"+inputs[t][i]);
-                if(reference[t][i]>0.5f) {
-                    dy[t][i] = -1/inputs[t][i];
-                    loss += Math.log(inputs[t][i]);
-                }
+                if(reference[t][i]!=0) {
+                    float y = Math.max(inputs[t][i], Float.MIN_NORMAL);
+                    dy[t][i] = -reference[t][i]/y;
+                    sumLoss += reference[t][i]*Math.log(y);
+                }else
+                    dy[t][i] = 0;
             }
         }
-        loss = -loss/dy.length;
-        return super.gradient(inputs, reference);
+        loss = (float) (-sumLoss/dy.length);
+        return dy;
     }
 }
@@ -1,6 +1,7 @@
 package ann.loss;
 
 import ann.Loss;
+import ann.Workspace;
 
 public class MeanSquare extends Loss {
 
@@ -13,9 +14,8 @@ public class MeanSquare extends Loss {
     public float[][] gradient(float[][] inputs, float[][] reference) {
         //Loss = 0.5 * (reference-inputs)^2
         loss = 0;
-        float[][] dy =new float[inputs.length][];
+        float[][] dy = g = Workspace.matrix(g, inputs.length, inputs[0].length);
         for (int t = 0; t < inputs.length; t++) {
-            dy[t] = new float[inputs[t].length];
             for (int i = 0; i < inputs[t].length; i++) {
                 dy[t][i] = inputs[t][i]-reference[t][i];
                 loss += 0.5*Math.pow(reference[t][i]-inputs[t][i],2);
@@ -0,0 +1,56 @@
+package ann.loss;
+
+import ann.Loss;
+import ann.Workspace;
+import ann.kernel.FastMath;
+import ann.kernel.Kernel;
+
+/**
+ * Softmax and categorical cross entropy in one step, on logits
+ * The loss is computed with a stable log-sum-exp and the gradient with respect to the logits is y - ref, O(n) per row
+ * exp follows the global FastMath setting
+ * When the network ends with a Softmax layer, training stops before it and hands its input to this loss,
+ * while predict(...) still runs it and returns probabilities; without one, the network outputs are the logits
+ */
+public class SoftmaxEntropy extends Loss {
+    public SoftmaxEntropy() {
+        super();
+        name = "SOFTMAX_CROSS_ENTROPY";
+    }
+
+    @Override
+    public boolean takesLogits() {
+        return true;
+    }
+
+    @Override
+    public float[][] gradient(float[][] inputs, float[][] reference) {
+        //lse = m+ln(sum_i(exp(x_i-m))), m = max_i(x_i)
+        //Loss = sum_i(ref_i*(lse-x_i))
+        //dx_i = exp(x_i-lse)*sum_j(ref_j)-ref_i = y_i-ref_i for a one-hot ref
+        float[][] dx = g = Workspace.matrix(g, inputs.length, inputs[0].length);
+        Kernel kernel = Kernel.get();
+        double sumLoss = 0;
+        for (int t = 0; t < inputs.length; t++) {
+            float[] x = inputs[t];
+            float[] ref = reference[t];
+            float[] d = dx[t];
+            float max = Float.NEGATIVE_INFINITY;
+            for (int i = 0; i < x.length; i++)
+                max = Math.max(max, x[i]);
+            float sum = FastMath.isEnabled()?kernel.fastExp(x, max, d, x.length):kernel.exp(x, max, d, x.length);
+            float sumRef = 0;
+            for (int i = 0; i < x.length; i++)
+                sumRef += ref[i];
+            float lse = max+(float) Math.log(sum);
+            float scale = sumRef/sum;
+            for (int i = 0; i < x.length; i++) {
+                d[i] = d[i]*scale-ref[i];
+                if(ref[i]!=0)
+                    sumLoss += ref[i]*(lse-x[i]);
+            }
+        }
+        loss = (float) (sumLoss/inputs.length);
+        return dx;
+    }
+}
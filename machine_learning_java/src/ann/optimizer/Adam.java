@@ -0,0 +1,119 @@
+package ann.optimizer;
+
+import ann.Checkpoint;
+import ann.Optimizer;
+import ann.kernel.Kernel;
+
+import java.io.IOException;
+
+/**
+ * Adam: momentum on the gradients, divided by a running root mean square of them, both corrected for their zero start
+ * The corrections 1-beta^t only depend on the step count, so step() computes them once and update(...) is one kernel pass (Kernel.adam)
+ * momentum     : beta1, fraction of the first moment kept from one step to the next
+ * rms          : beta2, fraction of the second moment kept from one step to the next
+ * epsilon      : added to the root mean square, avoids dividing by 0
+ * stepSize     : 1/(1-beta1^t), set by step()
+ * correction   : 1/(1-beta2^t), set by step()
+ * state        : first and second moments of every parameter
+ */
+public class Adam extends Optimizer {
+    protected static final Kernel kernel = Kernel.get();
+
+    protected float momentum;
+    protected float rms;
+    protected float epsilon;
+    protected float stepSize;
+    protected float correction;
+
+    public Adam(){
+        name = "ADAM";
+        momentum = 0.9f;
+        rms = 0.999f;
+        epsilon = 1e-8f;
+    }
+
+    public Adam setMomentum(float momentum) {
+        this.momentum = momentum;
+        return this;
+    }
+
+    public Adam setRms(float rms) {
+        this.rms = rms;
+        return this;
+    }
+
+    public Adam setEpsilon(float epsilon) {
+        this.epsilon = epsilon;
+        return this;
+    }
+
+    public float getMomentum() {
+        return momentum;
+    }
+
+    public float getRms() {
+        return rms;
+    }
+
+    public float getEpsilon() {
+        return epsilon;
+    }
+
+    @Override
+    protected int stateBuffers() {
+        return 2;
+    }
+
+    @Override
+    public void step() {
+        super.step();
+        corrections();
+    }
+
+    @Override
+    public void setSteps(long steps) {
+        super.setSteps(steps);
+        corrections();
+    }
+
+    private void corrections(){
+        //M = m/(1-beta1^t)
+        //V = v/(1-beta2^t)
+        stepSize = (float) (1/(1-Math.pow(momentum, steps)));
+        correction = (float) (1/(1-Math.pow(rms, steps)));
+    }
+
+    @Override
+    public int getFlops() {
+        //g: 1, m: 3, v: 4, p: 5 with the square root
+        return 13;
+    }
+
+    @Override
+    public void update(int slot, float[] p, float[] g, float learningRate, int batchSize) {
+        //m = beta1*m + (1-beta1) * g
+        //v = beta2*v + (1-beta2) * g^2
+        //p -= learning*M/(sqrt(V)+epsilon)
+        kernel.adam(p, 0, g, 0, state[slot][0], state[slot][1], p.length, 1f/batchSize,
+                momentum, rms, learningRate*stepSize, correction, epsilon, decay(learningRate));
+    }
+
+    //decay*p_k subtracted from every parameter, none for Adam
+    protected float decay(float learningRate){
+        return 0;
+    }
+
+    @Override
+    protected void saveSettings(Checkpoint.Writer writer) throws IOException {
+        writer.writeFloat(momentum);
+        writer.writeFloat(rms);
+        writer.writeFloat(epsilon);
+    }
+
+    @Override
+    protected void readSettings(Checkpoint.Reader reader) {
+        momentum = reader.readFloat();
+        rms = reader.readFloat();
+        epsilon = reader.readFloat();
+    }
+}
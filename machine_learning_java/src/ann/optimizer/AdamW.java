@@ -0,0 +1,49 @@
+package ann.optimizer;
+
+import ann.Checkpoint;
+
+import java.io.IOException;
+
+/**
+ * Adam with decoupled weight decay: parameters shrink by learning*weightDecay every step,
+ * independently of the moments, instead of adding an L2 term to the gradients
+ * The decay applies to every buffer the layer hands over, biases included
+ * weightDecay  : decay rate per unit of learning rate
+ */
+public class AdamW extends Adam {
+    protected float weightDecay;
+
+    public AdamW(){
+        name = "ADAMW";
+        weightDecay = 0.01f;
+    }
+
+    public AdamW setWeightDecay(float weightDecay) {
+        this.weightDecay = weightDecay;
+        return this;
+    }
+
+    @Override
+    public int getFlops() {
+        //Adam and the decay
+        return super.getFlops()+1;
+    }
+
+    @Override
+    protected float decay(float learningRate) {
+        //p -= learning*weightDecay*p
+        return learningRate*weightDecay;
+    }
+
+    @Override
+    protected void saveSettings(Checkpoint.Writer writer) throws IOException {
+        super.saveSettings(writer);
+        writer.writeFloat(weightDecay);
+    }
+
+    @Override
+    protected void readSettings(Checkpoint.Reader reader) {
+        super.readSettings(reader);
+        weightDecay = reader.readFloat();
+    }
+}
@@ -0,0 +1,62 @@
+package ann.optimizer;
+
+import ann.Checkpoint;
+import ann.Optimizer;
+
+import java.io.IOException;
+
+/**
+ * SGD with momentum
+ * momentum     : fraction of the velocity kept from one step to the next
+ * state        : velocity of every parameter
+ */
+public class Momentum extends Optimizer {
+    protected float momentum;
+
+    public Momentum(){
+        name = "MOMENTUM";
+        momentum = 0.9f;
+    }
+
+    public Momentum setMomentum(float momentum) {
+        this.momentum = momentum;
+        return this;
+    }
+
+    public float getMomentum() {
+        return momentum;
+    }
+
+    @Override
+    protected int stateBuffers() {
+        return 1;
+    }
+
+    @Override
+    public int getFlops() {
+        //u: 3, p: 2
+        return 5;
+    }
+
+    @Override
+    public void update(int slot, float[] p, float[] g, float learningRate, int batchSize) {
+        //u_k = momentum*u_k + g_k
+        //p_k -= learning * u_k
+        float[] u = state[slot][0];
+        float scale = 1f/batchSize;
+        for (int k = 0; k < p.length; k++) {
+            u[k] = momentum*u[k] + scale*g[k];
+            p[k] -= learningRate*u[k];
+        }
+    }
+
+    @Override
+    protected void saveSettings(Checkpoint.Writer writer) throws IOException {
+        writer.writeFloat(momentum);
+    }
+
+    @Override
+    protected void readSettings(Checkpoint.Reader reader) {
+        momentum = reader.readFloat();
+    }
+}
@@ -0,0 +1,31 @@
+package ann.optimizer;
+
+/**
+ * SGD with Nesterov momentum, the gradient is taken as if the velocity had already been applied
+ * Written in the form that only needs the gradient at the current parameters
+ */
+public class Nesterov extends Momentum {
+
+    public Nesterov(){
+        name = "NESTEROV";
+    }
+
+    @Override
+    public int getFlops() {
+        //g: 1, u: 2, p: 4
+        return 7;
+    }
+
+    @Override
+    public void update(int slot, float[] p, float[] g, float learningRate, int batchSize) {
+        //u_k = momentum*u_k + g_k
+        //p_k -= learning * (g_k + momentum*u_k)
+        float[] u = state[slot][0];
+        float scale = 1f/batchSize;
+        for (int k = 0; k < p.length; k++) {
+            float gradient = scale*g[k];
+            u[k] = momentum*u[k] + gradient;
+            p[k] -= learningRate*(gradient + momentum*u[k]);
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package ann.optimizer;
+
+import ann.Checkpoint;
+
+import java.io.IOException;
+
+/**
+ * Adam with its moments stored in 8 bits, block-wise quantized: about 2 bytes of state per parameter instead of 8
+ * Each buffer is cut into blocks of BLOCK values, every block keeps the largest absolute value of each moment as a float scale
+ * and the moments as Float8 codes of their ratio to it: signed for m, unsigned for v, both with a relative precision of 2^-4
+ * An update decodes a block, runs the Adam step in float, then requantizes the block with its new largest values,
+ * so moments decaying by beta keep their codes and only the scale moves
+ * The parameter step uses the float moments of the current step, only what is kept for the next step is quantized
+ * state[slot][0],state[slot][1] : scales of the first and second moment of every block
+ * m,v          : codes of the first and second moment, m[slot][k], v[slot][k]
+ * mBlock,vBlock: float moments of the block being updated
+ */
+public class QuantizedAdam extends Adam {
+    public static final int BLOCK = 256;
+
+    protected byte[][] m;
+    protected byte[][] v;
+    private float[] mBlock;
+    private float[] vBlock;
+
+    public QuantizedAdam(){
+        name = "ADAM_INT8";
+        mBlock = new float[BLOCK];
+        vBlock = new float[BLOCK];
+    }
+
+    @Override
+    public void allocate(int... lengths) {
+        steps = 0;
+        state = new float[lengths.length][2][];
+        m = new byte[lengths.length][];
+        v = new byte[lengths.length][];
+        for (int slot = 0; slot < lengths.length; slot++) {
+            int blocks = (lengths[slot]+BLOCK-1)/BLOCK;
+            state[slot][0] = new float[blocks];
+            state[slot][1] = new float[blocks];
+            m[slot] = new byte[lengths[slot]];
+            v[slot] = new byte[lengths[slot]];
+        }
+    }
+
+    @Override
+    public void update(int slot, float[] p, float[] g, float learningRate, int batchSize) {
+        //m = beta1*m + (1-beta1) * g
+        //v = beta2*v + (1-beta2) * g^2
+        //p -= learning*M/(sqrt(V)+epsilon)
+        byte[] qm = m[slot];
+        byte[] qv = v[slot];
+        float[] mScales = state[slot][0];
+        float[] vScales = state[slot][1];
+        float scale = 1f/batchSize;
+        float decay = decay(learningRate);
+        for (int block = 0, start = 0; start < p.length; block++, start += BLOCK) {
+            int length = Math.min(BLOCK, p.length-start);
+            kernel.adamFloat8(p, g, qm, qv, start, length, mScales[block], vScales[block], mBlock, vBlock,
+                    scale, momentum, rms, learningRate*stepSize, correction, epsilon, decay);
+
+            //codes of m/max|m| and v/max(v)
+            float mMax = kernel.absMax(mBlock, length);
+            float vMax = kernel.absMax(vBlock, length);
+            mScales[block] = mMax;
+            vScales[block] = vMax;
+            kernel.toSignedFloat8(mBlock, mMax>0?1/mMax:0, qm, start, length);
+            kernel.toUnsignedFloat8(vBlock, vMax>0?1/vMax:0, qv, start, length);
+        }
+    }
+
+    //same settings, no state and its own block buffers
+    @Override
+    public QuantizedAdam copy() {
+        QuantizedAdam copy = (QuantizedAdam) super.copy();
+        copy.m = null;
+        copy.v = null;
+        copy.mBlock = new float[BLOCK];
+        copy.vBlock = new float[BLOCK];
+        return copy;
+    }
+
+    //shares the codes and scales, the block buffers are per replica since replicas update concurrently
+    @Override
+    public QuantizedAdam replica() {
+        QuantizedAdam replica = (QuantizedAdam) super.replica();
+        replica.mBlock = new float[BLOCK];
+        replica.vBlock = new float[BLOCK];
+        return replica;
+    }
+
+    //scales through Optimizer.save(...), then the codes
+    @Override
+    public void save(Checkpoint.Writer writer) throws IOException {
+        super.save(writer);
+        for (int slot = 0; state!=null && slot < state.length; slot++) {
+            writer.writeBytes(m[slot]);
+            writer.writeBytes(v[slot]);
+        }
+    }
+
+    @Override
+    public void read(Checkpoint.Reader reader) {
+        super.read(reader);
+        m = new byte[state.length][];
+        v = new byte[state.length][];
+        for (int slot = 0; slot < state.length; slot++) {
+            m[slot] = reader.readBytes();
+            v[slot] = reader.readBytes();
+        }
+    }
+}
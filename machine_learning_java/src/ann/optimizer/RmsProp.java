@@ -0,0 +1,69 @@
+package ann.optimizer;
+
+import ann.Checkpoint;
+import ann.Optimizer;
+
+import java.io.IOException;
+
+/**
+ * RMSProp: every parameter's step is divided by a running root mean square of its gradients
+ * rms          : fraction of the mean square kept from one step to the next
+ * epsilon      : added to the root mean square, avoids dividing by 0
+ * state        : mean square of the gradients of every parameter
+ */
+public class RmsProp extends Optimizer {
+    protected float rms;
+    protected float epsilon;
+
+    public RmsProp(){
+        name = "RMSPROP";
+        rms = 0.9f;
+        epsilon = 1e-8f;
+    }
+
+    public RmsProp setRms(float rms) {
+        this.rms = rms;
+        return this;
+    }
+
+    public RmsProp setEpsilon(float epsilon) {
+        this.epsilon = epsilon;
+        return this;
+    }
+
+    @Override
+    protected int stateBuffers() {
+        return 1;
+    }
+
+    @Override
+    public int getFlops() {
+        //g: 1, s: 4, p: 5 with the square root
+        return 10;
+    }
+
+    @Override
+    public void update(int slot, float[] p, float[] g, float learningRate, int batchSize) {
+        //s_k = rms*s_k + (1-rms)*g_k^2
+        //p_k -= learning * g_k/(sqrt(s_k)+epsilon)
+        float[] s = state[slot][0];
+        float scale = 1f/batchSize;
+        for (int k = 0; k < p.length; k++) {
+            float gradient = scale*g[k];
+            s[k] = rms*s[k] + (1-rms)*gradient*gradient;
+            p[k] -= learningRate*gradient/((float) Math.sqrt(s[k])+epsilon);
+        }
+    }
+
+    @Override
+    protected void saveSettings(Checkpoint.Writer writer) throws IOException {
+        writer.writeFloat(rms);
+        writer.writeFloat(epsilon);
+    }
+
+    @Override
+    protected void readSettings(Checkpoint.Reader reader) {
+        rms = reader.readFloat();
+        epsilon = reader.readFloat();
+    }
+}
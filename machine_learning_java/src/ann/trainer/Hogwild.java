@@ -0,0 +1,131 @@
+package ann.trainer;
+
+import ann.Network;
+
+import java.util.Random;
+
+/**
+ * Asynchronous lock free SGD (Hogwild)
+ * Every worker owns a replica of the network that shares its parameters,
+ * draws mini-batches from its own part of the data and applies its updates straight to the shared weights
+ * Updates from different workers may overwrite each other, which is harmless for sparse or small gradients
+ * Optimizer state (e.g. Adam moments) is shared too; step counters are per worker
+ * The replicas are kept between train(...) calls and rebuilt when the network's optimizers, learning rates or layers change
+ * network      : network being trained
+ * threads      : number of workers
+ * batchSize    : rows in one mini-batch
+ * loss         : mean loss of the last epoch over all workers
+ */
+public class Hogwild {
+    private final Network network;
+    private final int threads;
+    private int batchSize;
+    private long seed;
+    private float loss;
+
+    private Network[] replicas;//made on the first train call, so optimizer step counters survive between calls
+    private int revision;//network revision the replicas were made from
+
+    public Hogwild(Network network, int threads){
+        this.network = network;
+        this.threads = Math.max(1,threads);
+        this.batchSize = 1;
+        this.seed = new Random().nextLong();
+    }
+
+    public Hogwild setBatchSize(int batchSize) {
+        this.batchSize = Math.max(1,batchSize);
+        return this;
+    }
+
+    public Hogwild setSeed(long seed) {
+        this.seed = seed;
+        return this;
+    }
+
+    public float getLoss() {
+        return loss;
+    }
+
+    /**
+     * Trains the network on x,y_ref
+     * Rows are split into one contiguous part per worker; each worker shuffles its part every epoch
+     * @param x         : inputs
+     * @param y_ref     : reference outputs
+     * @param epochs    : passes over the data
+     */
+    public void train(float[][] x, float[][] y_ref, int epochs){
+        if(replicas==null || revision!=network.getRevision()) {
+            revision = network.getRevision();
+            replicas = new Network[threads];
+            for (int w = 0; w < threads; w++)
+                replicas[w] = network.replica();
+        }
+
+        float[] losses = new float[threads];
+        Thread[] workers = new Thread[threads];
+        for (int w = 0; w < threads; w++) {
+            int worker = w;
+            int from = w*x.length/threads;
+            int to = (w+1)*x.length/threads;
+            workers[w] = new Thread(() -> losses[worker] = work(replicas[worker], x, y_ref, from, to, epochs, seed+worker),
+                    "hogwild-" + w);
+            workers[w].start();
+        }
+        try {
+            for(Thread worker:workers)
+                worker.join();
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+
+        float sum = 0;
+        for(float l:losses)
+            sum += l;
+        loss = sum/threads;
+    }
+
+    //one worker, returns the mean mini-batch loss of its last epoch
+    private float work(Network replica, float[][] x, float[][] y_ref, int from, int to, int epochs, long seed){
+        Random random = new Random(seed);
+        int size = to-from;
+        int[] order = new int[size];
+        for (int i = 0; i < size; i++)
+            order[i] = from+i;
+        float[][][] xBatches = new float[batchSize+1][][];
+        float[][][] yBatches = new float[batchSize+1][][];
+
+        float epochLoss = 0;
+        for (int epoch = 0; epoch < epochs; epoch++) {
+            //Fisher-Yates shuffle of the worker's rows
+            for (int i = size-1; i > 0; i--) {
+                int j = random.nextInt(i+1);
+                int tmp = order[i];
+                order[i] = order[j];
+                order[j] = tmp;
+            }
+
+            epochLoss = 0;
+            int batches = 0;
+            for (int start = 0; start < size; start += batchSize) {
+                int rows = Math.min(batchSize,size-start);
+                if(xBatches[rows]==null) {
+                    xBatches[rows] = new float[rows][];
+                    yBatches[rows] = new float[rows][];
+                }
+                float[][] xb = xBatches[rows];
+                float[][] yb = yBatches[rows];
+                for (int t = 0; t < rows; t++) {
+                    xb[t] = x[order[start+t]];
+                    yb[t] = y_ref[order[start+t]];
+                }
+                replica.train(xb, yb);
+                epochLoss += replica.getLoss();
+                batches++;
+            }
+            if(batches>0)
+                epochLoss /= batches;
+        }
+        return epochLoss;
+    }
+}
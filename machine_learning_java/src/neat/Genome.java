@@ -1,5 +1,7 @@
 package neat;
 
+import ann.kernel.FastMath;
+
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileWriter;
@@ -33,11 +35,14 @@ public class Genome {
     public static final Random random               = new Random(); //random generator
     public static int MUTATE_CONNECTION_MAX_LOOP    = 10;           //maximum loop that is allowed
     private static int mutate_connection_loop       = 0;           //loop records loop in mutation
+    public static Boolean FAST_MATH                 = null;         //sigmoid from ann.kernel.FastMath (absolute error < 1e-7), null follows FastMath.isEnabled()
 
     ////////////////////////////////ACTIVATION///////////////////////////////
     private float activation(float x){
         if (isRelu)
             return x>=0?x:0;
+        if(FAST_MATH!=null?FAST_MATH:FastMath.isEnabled())
+            return FastMath.sigmoid(4.9f*x);
         return (float) (1f/(1f+Math.exp(-4.9*x)));
     }
 